@@ -0,0 +1,135 @@
+import android.database.Cursor;
+
+import com.samsung.android.simplehealth.DataSchema;
+import com.samsung.android.simplehealth.RowEncoder;
+
+import java.lang.management.ManagementFactory;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+
+/** Compares the javax.json serialization of a HeartRate result with {@link RowEncoder}.
+ *
+ * Runs on a desktop JVM against a synthetic cursor of 100k rows with the five
+ * HeartRate columns. The "before" run builds the JSON array with javax.json and
+ * serializes it twice (result and log), as the reporter did before RowEncoder;
+ * the "after" run appends the rows into one StringBuilder. Each run is repeated
+ * 10 times after 5 warm-up runs, allocation is measured per thread (HotSpot).
+ * See README.md in this directory for the command line.
+ */
+public class RowEncoderBenchmark {
+
+    private static final int ROWS = 100000;
+    private static final int WARMUP = 5;
+    private static final int RUNS = 10;
+    private static final String[] COLUMNS = { "start_time", "end_time", "time_offset", "heart_rate", "heart_beat_count" };
+
+    /** HeartRate rows 5 seconds apart, only the methods used by the encoders are meaningful
+     *
+     */
+    private static class SyntheticCursor implements Cursor {
+        private int position = -1;
+
+        public boolean moveToNext() { return ++position < ROWS; }
+        public boolean moveToFirst() { position = 0; return true; }
+        public boolean moveToPosition(int p) { position = p; return p >= 0 && p < ROWS; }
+        public int getPosition() { return position; }
+        public int getCount() { return ROWS; }
+
+        public int getColumnIndex(String name) {
+            for (int i = 0; i < COLUMNS.length; i++) {
+                if (COLUMNS[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public int getColumnCount() { return COLUMNS.length; }
+        public String getColumnName(int i) { return COLUMNS[i]; }
+        public String[] getColumnNames() { return COLUMNS; }
+        public long getLong(int i) { return 1484422968001L + position * 5000L + i; }
+        public int getInt(int i) { return position % 200; }
+        public float getFloat(int i) { return 60f + (position % 700) / 10f; }
+        public double getDouble(int i) { return getFloat(i); }
+        public String getString(int i) { return null; }
+        public byte[] getBlob(int i) { return null; }
+        public boolean isNull(int i) { return false; }
+        public int getType(int i) { return Cursor.FIELD_TYPE_INTEGER; }
+        public void close() { }
+        public boolean isClosed() { return false; }
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static long checksum = 0;
+
+    private static void before() {
+        Cursor c = new SyntheticCursor();
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        while (c.moveToNext()) {
+            array.add(Json.createObjectBuilder()
+                    .add("TYPE", "HeartRate")
+                    .add("START_TIME", c.getLong(c.getColumnIndex("start_time")))
+                    .add("END_TIME", c.getLong(c.getColumnIndex("end_time")))
+                    .add("TIME_OFFSET", c.getLong(c.getColumnIndex("time_offset")))
+                    .add("HEART_RATE", c.getFloat(c.getColumnIndex("heart_rate")))
+                    .add("HEART_BEAT_COUNT", c.getInt(c.getColumnIndex("heart_beat_count"))));
+        }
+        JsonArray result = array.build();
+        String log = result.toString();
+        String message = result.toString();
+        checksum += log.length() + message.length();
+    }
+
+    private static void after() {
+        Cursor c = new SyntheticCursor();
+        RowEncoder encoder = new RowEncoder(DataSchema.get("HeartRate"), c, null);
+        StringBuilder page = new StringBuilder(4096);
+        page.append('[');
+        int rows = 0;
+        while (c.moveToNext()) {
+            if (rows++ > 0) {
+                page.append(',');
+            }
+            encoder.encode(c, page);
+        }
+        page.append(']');
+        checksum += page.toString().length();
+    }
+
+    private static void measure(String name, Runnable run) {
+        for (int i = 0; i < WARMUP; i++) {
+            run.run();
+        }
+
+        long thread = Thread.currentThread().getId();
+        long allocated = THREADS.getThreadAllocatedBytes(thread);
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            run.run();
+        }
+        long nanos = System.nanoTime() - start;
+        allocated = THREADS.getThreadAllocatedBytes(thread) - allocated;
+
+        System.out.printf("%-20s %7.1f ms/run, %6.1f MB allocated/run, %9.0f rows/s%n", name,
+                nanos / 1e6 / RUNS, allocated / 1e6 / RUNS, (double) ROWS * RUNS / (nanos / 1e9));
+    }
+
+    public static void main(String[] args) {
+        measure("javax.json (before)", new Runnable() {
+            @Override
+            public void run() {
+                before();
+            }
+        });
+        measure("RowEncoder (after)", new Runnable() {
+            @Override
+            public void run() {
+                after();
+            }
+        });
+        System.out.println("checksum " + checksum);
+    }
+}
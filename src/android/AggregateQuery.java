@@ -0,0 +1,138 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataResolver.AggregateRequest.AggregateFunction;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.AggregateRequest.TimeGroupUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/** A getAggregatedData request, e.g.
+ * <pre>
+ * {"type": "StepCount", "timeUnit": "DAILY", "amount": 1,
+ *  "functions": [{"function": "SUM", "property": "COUNT"}]}
+ * </pre>
+ */
+public class AggregateQuery {
+
+    /** Pseudo property for session types: END_TIME - START_TIME in milliseconds */
+    public static final String DURATION = "DURATION";
+
+    /** A function applied to a property of every time group
+     *
+     */
+    public static class Function {
+        public final AggregateFunction function;
+        public final String property;
+        public final DataSchema.Column column;
+        public final String alias;
+
+        Function(AggregateFunction pFunction, String pProperty, DataSchema.Column pColumn) {
+            function = pFunction;
+            property = pProperty;
+            column = pColumn;
+            alias = pFunction.name() + "_" + pProperty;
+        }
+    }
+
+    public final DataSchema schema;
+    public final TimeGroupUnit timeUnit;
+    public final int amount;
+    public final List<Function> functions = new ArrayList<Function>();
+
+    /** Identifies the request in the result and for cancel, defaults to the callback id of the call */
+    public String requestId = null;
+
+    /** Cancel the aggregation after this many milliseconds, 0 waits forever */
+    public long timeout = 0;
+
+    /** Maximum number of reads that run at the same time, see {@link ReadScheduler} */
+    public int maxConcurrentReads = 3;
+
+    private AggregateQuery(DataSchema pSchema, TimeGroupUnit pTimeUnit, int pAmount) {
+        schema = pSchema;
+        timeUnit = pTimeUnit;
+        amount = pAmount;
+    }
+
+    /** Reads the request passed by JavaScript
+     *
+     * @param json      The request object
+     * @return          The parsed request
+     * @throws IllegalArgumentException if the type, time unit, a function or a property is unknown
+     */
+    public static AggregateQuery fromJson(JSONObject json) {
+        if (json == null) {
+            throw new IllegalArgumentException("Missing aggregation");
+        }
+
+        DataSchema schema = DataSchema.get(json.optString("type"));
+        if (schema == null) {
+            throw new IllegalArgumentException("Unknown type " + json.optString("type"));
+        }
+
+        AggregateQuery query = new AggregateQuery(
+                schema,
+                TimeGroupUnit.valueOf(json.optString("timeUnit", "DAILY").toUpperCase(Locale.US)),
+                Math.max(1, json.optInt("amount", 1)));
+
+        query.requestId = json.optString("requestId", null);
+        query.timeout = Math.max(0, json.optLong("timeout", 0));
+        query.maxConcurrentReads = Math.max(1, json.optInt("maxConcurrentReads", query.maxConcurrentReads));
+
+        JSONArray functions = json.optJSONArray("functions");
+        if (functions == null || functions.length() == 0) {
+            throw new IllegalArgumentException("Missing functions");
+        }
+
+        for (int i = 0; i < functions.length(); i++) {
+            JSONObject function = functions.optJSONObject(i);
+            if (function == null) {
+                throw new IllegalArgumentException("Invalid function");
+            }
+
+            String property = function.optString("property");
+            DataSchema.Column column = schema.getColumn(property);
+            if (column == null && !(DURATION.equals(property) && query.isSession())) {
+                throw new IllegalArgumentException("Unknown property " + property);
+            }
+
+            AggregateFunction aggregateFunction = AggregateFunction.valueOf(function.optString("function").toUpperCase(Locale.US));
+            if (column != null && !column.isNumeric()
+                    && (aggregateFunction == AggregateFunction.SUM || aggregateFunction == AggregateFunction.AVG)) {
+                throw new IllegalArgumentException(aggregateFunction.name() + " of non-numeric property " + property);
+            }
+
+            query.functions.add(new Function(aggregateFunction, property, column));
+        }
+
+        return query;
+    }
+
+    /** Returns true if the data type has an end time, so DURATION can be aggregated
+     *
+     * @return  Whether the type is a session type
+     */
+    public boolean isSession() {
+        return schema.getColumn("END_TIME") != null;
+    }
+
+    /** Returns true if one of the functions uses the DURATION pseudo property
+     *
+     * Those aggregations cannot be done by S Health and are computed while reading the rows,
+     * together with the other functions of the request.
+     *
+     * @return  Whether the aggregation has to be done locally
+     */
+    public boolean needsLocalAggregation() {
+        for (Function function : functions) {
+            if (function.column == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
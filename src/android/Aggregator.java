@@ -0,0 +1,473 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataResolver;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.AggregateRequest;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.AggregateResult;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.Filter;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.SortOrder;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+import com.samsung.android.sdk.healthdata.HealthResultHolder;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.apache.cordova.*;
+
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Aggregates a data type into time groups.
+ *
+ * The aggregation is done by S Health with an {@link AggregateRequest}, grouped
+ * by the local time of each measurement (start time + TIME_OFFSET). The result
+ * is sent as
+ * <code>{"TYPE":..,"TIME_UNIT":"DAILY","DATA":[{"TIME":"2017-01-15","SUM_COUNT":..},..]}</code>.
+ *
+ * The DURATION pseudo property of session types (e.g. Sleep) is not a column, so
+ * such requests read start/end times and the other requested properties page by
+ * page with a {@link PagedRead} and reduce every function into the same time groups here.
+ *
+ * An aggregation that belongs to a {@link QueryRequest} stops when the request is
+ * cancelled and sends nothing.
+ */
+public class Aggregator implements QueryRequest.Cancellable {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final String TIME_ALIAS = "TIME";
+    private static final long DAY = 86400000L;
+    private static final int LOCAL_PAGE_SIZE = 1000;
+
+    private final HealthDataStore mStore;
+    private final CallbackContext callbackContext;
+
+    private QueryRequest request = null;
+    private Runnable onFinished = null;
+    private HealthResultHolder<AggregateResult> holder = null;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /** Default Constructor.
+     *
+     * @param store             The connected {@link HealthDataStore}
+     * @param pCallbackContext  Object holding callback functions
+     */
+    public Aggregator(HealthDataStore store, CallbackContext pCallbackContext) {
+        mStore = store;
+        callbackContext = pCallbackContext;
+    }
+
+    /** Sets the request the aggregation belongs to
+     *
+     * @param pRequest      The request, may be null
+     * @return              This aggregation
+     */
+    public Aggregator setRequest(QueryRequest pRequest) {
+        request = pRequest;
+        return this;
+    }
+
+    /** Sets the callback run after the result or the error were sent, or the aggregation was cancelled
+     *
+     * @param pOnFinished   The callback, may be null
+     * @return              This aggregation
+     */
+    public Aggregator setOnFinished(Runnable pOnFinished) {
+        onFinished = pOnFinished;
+        return this;
+    }
+
+    /** Starts the aggregation
+     *
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     * @param query         What to aggregate
+     */
+    public void aggregate(long startTime, long endTime, final AggregateQuery query) {
+        if (request != null && !request.add(this)) {
+            finish();
+            return;
+        }
+
+        if (query.needsLocalAggregation()) {
+            aggregateLocally(startTime, endTime, query);
+            return;
+        }
+
+        Filter filter = Filter.and(Filter.greaterThanEquals(query.schema.hcStartTime, startTime),
+                Filter.lessThanEquals(query.schema.hcStartTime, endTime));
+
+        try {
+            AggregateRequest.Builder builder = new AggregateRequest.Builder()
+                    .setDataType(query.schema.hcHDT)
+                    .setTimeGroup(query.timeUnit, query.amount, query.schema.hcStartTime,
+                            query.schema.getColumn("TIME_OFFSET").name, TIME_ALIAS)
+                    .setFilter(filter)
+                    .setSort(TIME_ALIAS, SortOrder.ASC);
+
+            for (AggregateQuery.Function function : query.functions) {
+                builder.addFunction(function.function, function.column.name, function.alias);
+            }
+
+            HealthResultHolder<AggregateResult> pending = new HealthDataResolver(mStore, HealthThread.getHandler())
+                    .aggregate(builder.build());
+            synchronized (this) {
+                holder = pending;
+            }
+            pending.setResultListener(new HealthResultHolder.ResultListener<AggregateResult>() {
+                @Override
+                public void onResult(AggregateResult result) {
+                    sendAggregation(query, result.getResultCursor());
+                }
+            });
+        } catch (Exception e) {
+            Log.e(APP_TAG, e.getClass().getName() + " - " + e.getMessage());
+            sendError(query);
+        }
+    }
+
+    /** Reads the rows page by page and reduces them into the time groups
+     *
+     */
+    private void aggregateLocally(long startTime, long endTime, final AggregateQuery query) {
+        Set<String> properties = new LinkedHashSet<String>();
+        properties.add(query.schema.hcStartTime);
+        properties.add(query.schema.getColumn("END_TIME").name);
+        properties.add(query.schema.getColumn("TIME_OFFSET").name);
+        for (AggregateQuery.Function function : query.functions) {
+            if (function.column != null) {
+                properties.add(function.column.name);
+            }
+        }
+
+        // Pages are sorted by start time, so the groups come out in time order
+        QueryOptions options = new QueryOptions();
+        options.readPageSize = LOCAL_PAGE_SIZE;
+
+        final LocalAggregation groups = new LocalAggregation(query);
+        PagedRead read = new PagedRead(mStore, query.schema, properties.toArray(new String[properties.size()]),
+                startTime, endTime, options, groups, null)
+                .setRequest(request)
+                .setListener(new PagedRead.Listener() {
+                    @Override
+                    public void onReadFinished(PagedRead read) {
+                        if (isCancelled()) {
+                            finish();
+                        } else if (!read.isComplete()) {
+                            sendError(query);
+                        } else {
+                            send(groups.appendTo(startMessage(query)));
+                        }
+                    }
+                });
+
+        if (!read.requestPage()) {
+            if (isCancelled()) {
+                finish();
+            } else {
+                sendError(query);
+            }
+        }
+    }
+
+    /** Cancels the pending aggregation, nothing is sent
+     *
+     */
+    @Override
+    public void cancel() {
+        HealthResultHolder<AggregateResult> pending;
+        synchronized (this) {
+            pending = holder;
+        }
+
+        if (pending != null) {
+            pending.cancel();
+        }
+        finish();
+    }
+
+    private boolean isCancelled() {
+        return request != null && request.isCancelled();
+    }
+
+    private void sendAggregation(AggregateQuery query, Cursor c) {
+        if (isCancelled()) {
+            if (c != null) {
+                c.close();
+            }
+            finish();
+            return;
+        }
+        if (c == null) {
+            sendError(query);
+            return;
+        }
+
+        StringBuilder out = startMessage(query);
+
+        try {
+            int timeIndex = c.getColumnIndex(TIME_ALIAS);
+            int[] indices = new int[query.functions.size()];
+            String[] prefixes = new String[indices.length];
+            for (int i = 0; i < indices.length; i++) {
+                indices[i] = c.getColumnIndex(query.functions.get(i).alias);
+                prefixes[i] = JsonText.keyPrefix(query.functions.get(i).alias);
+            }
+
+            int rows = 0;
+            while (c.moveToNext()) {
+                if (rows++ > 0) {
+                    out.append(',');
+                }
+
+                out.append("{\"TIME\":");
+                JsonText.appendString(out, c.getString(timeIndex));
+                for (int i = 0; i < indices.length; i++) {
+                    out.append(prefixes[i]);
+                    if (c.isNull(indices[i])) {
+                        out.append("null");
+                    } else {
+                        JsonText.appendDouble(out, c.getDouble(indices[i]));
+                    }
+                }
+                out.append('}');
+            }
+        } finally {
+            c.close();
+        }
+
+        send(out);
+    }
+
+    /** Reduces the rows of every page into sum, min, max and count of every function per time group
+     *
+     */
+    private static class LocalAggregation implements ResultSink {
+        private final AggregateQuery query;
+        private final int functionCount;
+        private final Map<String, double[][]> groups = new LinkedHashMap<String, double[][]>();
+        private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+        private int startIndex;
+        private int endIndex;
+        private int offsetIndex;
+        private int[] indices;
+
+        LocalAggregation(AggregateQuery pQuery) {
+            query = pQuery;
+            functionCount = pQuery.functions.size();
+        }
+
+        @Override
+        public void open(Cursor c) {
+            startIndex = c.getColumnIndex(query.schema.hcStartTime);
+            endIndex = c.getColumnIndex(query.schema.getColumn("END_TIME").name);
+            offsetIndex = c.getColumnIndex(query.schema.getColumn("TIME_OFFSET").name);
+
+            // -1 for the DURATION pseudo property
+            indices = new int[functionCount];
+            for (int i = 0; i < functionCount; i++) {
+                AggregateQuery.Function function = query.functions.get(i);
+                indices[i] = function.column == null ? -1 : c.getColumnIndex(function.column.name);
+            }
+        }
+
+        @Override
+        public void addRow(Cursor c) {
+            long start = c.getLong(startIndex);
+            String group = timeGroup(calendar, start + c.getLong(offsetIndex), query);
+
+            double[][] values = groups.get(group);
+            if (values == null) {
+                values = new double[functionCount][];
+                for (int i = 0; i < functionCount; i++) {
+                    values[i] = new double[] { 0, Double.MAX_VALUE, -Double.MAX_VALUE, 0 };
+                }
+                groups.put(group, values);
+            }
+
+            for (int i = 0; i < functionCount; i++) {
+                double value;
+                if (indices[i] < 0) {
+                    value = c.getLong(endIndex) - start;
+                } else if (c.isNull(indices[i])) {
+                    // Like SQL, functions skip missing values
+                    continue;
+                } else {
+                    value = c.getDouble(indices[i]);
+                }
+
+                double[] accumulator = values[i];
+                accumulator[0] += value;
+                accumulator[1] = Math.min(accumulator[1], value);
+                accumulator[2] = Math.max(accumulator[2], value);
+                accumulator[3]++;
+            }
+        }
+
+        @Override
+        public void finish() {
+            // The groups are sent by the listener of the read
+        }
+
+        /** Writes the groups into the DATA array of the result
+         *
+         * @param out   The result, ends with the opening bracket of DATA
+         * @return      The result
+         */
+        StringBuilder appendTo(StringBuilder out) {
+            int rows = 0;
+            for (Map.Entry<String, double[][]> group : groups.entrySet()) {
+                if (rows++ > 0) {
+                    out.append(',');
+                }
+
+                out.append("{\"TIME\":");
+                JsonText.appendString(out, group.getKey());
+                for (int i = 0; i < functionCount; i++) {
+                    AggregateQuery.Function function = query.functions.get(i);
+                    double[] values = group.getValue()[i];
+                    out.append(JsonText.keyPrefix(function.alias));
+                    if (values[3] == 0 && function.function != AggregateRequest.AggregateFunction.COUNT) {
+                        out.append("null");
+                        continue;
+                    }
+
+                    switch (function.function) {
+                        case SUM:
+                            JsonText.appendDouble(out, values[0]);
+                            break;
+                        case MIN:
+                            JsonText.appendDouble(out, values[1]);
+                            break;
+                        case MAX:
+                            JsonText.appendDouble(out, values[2]);
+                            break;
+                        case AVG:
+                            JsonText.appendDouble(out, values[0] / values[3]);
+                            break;
+                        case COUNT:
+                            JsonText.appendDouble(out, values[3]);
+                            break;
+                    }
+                }
+                out.append('}');
+            }
+            return out;
+        }
+    }
+
+    /** Formats a local time like the time groups of S Health
+     *
+     * MINUTELY "yyyy-MM-dd HH:mm", HOURLY "yyyy-MM-dd HH", DAILY "yyyy-MM-dd",
+     * WEEKLY "yyyy-WW" (weeks starting on Monday, as sqlite %W) and MONTHLY "yyyy-MM".
+     * Groups of more than one unit are named after their first unit.
+     *
+     * @param calendar      UTC calendar, reused between calls
+     * @param localTime     Start time plus time offset
+     * @param query         The aggregation
+     * @return              The time group
+     */
+    static String timeGroup(Calendar calendar, long localTime, AggregateQuery query) {
+        switch (query.timeUnit) {
+            case MINUTELY:
+                localTime -= localTime % (query.amount * 60000L);
+                break;
+            case HOURLY:
+                localTime -= localTime % (query.amount * 3600000L);
+                break;
+            case DAILY:
+                localTime -= localTime % (query.amount * DAY);
+                break;
+            case WEEKLY:
+                if (query.amount > 1) {
+                    // Weeks start on Monday, 1970-01-01 was a Thursday
+                    long week = (localTime / DAY + 3) / 7;
+                    localTime = ((week - week % query.amount) * 7 - 3) * DAY;
+                }
+                break;
+            default:
+                break;
+        }
+
+        calendar.setTimeInMillis(localTime);
+        int year = calendar.get(Calendar.YEAR);
+        int month = calendar.get(Calendar.MONTH) + 1;
+        int day = calendar.get(Calendar.DAY_OF_MONTH);
+        int hour = calendar.get(Calendar.HOUR_OF_DAY);
+        int minute = calendar.get(Calendar.MINUTE);
+
+        switch (query.timeUnit) {
+            case MINUTELY:
+                return String.format(Locale.US, "%04d-%02d-%02d %02d:%02d", year, month, day, hour, minute);
+            case HOURLY:
+                return String.format(Locale.US, "%04d-%02d-%02d %02d", year, month, day, hour);
+            case WEEKLY:
+                int yearDay = calendar.get(Calendar.DAY_OF_YEAR) - 1;
+                int weekDay = (calendar.get(Calendar.DAY_OF_WEEK) + 5) % 7;  // Monday = 0
+                return String.format(Locale.US, "%04d-%02d", year, (yearDay + 7 - weekDay) / 7);
+            case MONTHLY:
+                return String.format(Locale.US, "%04d-%02d", year, ((month - 1) / query.amount) * query.amount + 1);
+            default:
+                return String.format(Locale.US, "%04d-%02d-%02d", year, month, day);
+        }
+    }
+
+    private StringBuilder startMessage(AggregateQuery query) {
+        StringBuilder out = new StringBuilder(1024);
+        out.append("{\"TYPE\":");
+        JsonText.appendString(out, query.schema.type);
+        if (query.requestId != null) {
+            out.append(",\"REQUEST_ID\":");
+            JsonText.appendString(out, query.requestId);
+        }
+        out.append(",\"TIME_UNIT\":");
+        JsonText.appendString(out, query.timeUnit.name());
+        out.append(",\"DATA\":[");
+        return out;
+    }
+
+    private void sendError(AggregateQuery query) {
+        StringBuilder out = new StringBuilder("{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Aggregation failed\"");
+        if (query.requestId != null) {
+            out.append(",\"REQUEST_ID\":");
+            JsonText.appendString(out, query.requestId);
+        }
+        out.append('}');
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, out.toString());
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+        finish();
+    }
+
+    private void send(StringBuilder out) {
+        out.append("]}");
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, out.toString());
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+        finish();
+    }
+
+    /** Ends the aggregation once, after the result, an error or the cancellation
+     *
+     */
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (request != null) {
+            request.remove(this);
+        }
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+import com.samsung.android.sdk.healthdata.HealthPermissionManager;
+import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionKey;
+import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionType;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Incremental reads that run without the WebView and write batch files.
+ *
+ * A sync reads the rows added or changed since the last background sync of every
+ * configured data type, one type after the other, and writes them with a
+ * {@link BatchFileSink} into the app-private directory "shealth_sync". The sync
+ * position is kept separate from the incremental reads of JavaScript and only
+ * moves once the files of a type were written. JavaScript gets a small manifest
+ * of the ready files, reads them one by one and deletes them when they are
+ * processed. Scheduling is done by the SyncJobService.
+ */
+public class BackgroundSync {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final String PREFERENCES = "shealth_background";
+    private static final String DIRECTORY = "shealth_sync";
+    private static final long MINUTE_MILLIS = 60000L;
+    private static final int PAGE_SIZE = 1000;
+
+    /** What to sync and when
+     *
+     */
+    public static class Config {
+        /** Names of the data types, null syncs all types */
+        public Set<String> types = null;
+
+        /** Time between two syncs in milliseconds, at least 15 minutes */
+        public long interval = 360 * MINUTE_MILLIS;
+
+        /** Only sync while the device is charging */
+        public boolean requiresCharging = true;
+
+        /** Only sync while the device is idle */
+        public boolean requiresIdle = false;
+
+        /** Maximum number of rows per file */
+        public int batchRows = 2000;
+
+        /** Reads the configuration passed by JavaScript
+         *
+         * @param json  The configuration, may be null
+         * @return      The parsed configuration
+         */
+        public static Config fromJson(JSONObject json) {
+            Config config = new Config();
+            if (json == null) {
+                return config;
+            }
+
+            JSONArray types = json.optJSONArray("types");
+            if (types != null) {
+                config.types = new HashSet<String>();
+                for (int i = 0; i < types.length(); i++) {
+                    config.types.add(types.optString(i));
+                }
+            }
+            config.interval = Math.max(15, json.optLong("intervalMinutes", config.interval / MINUTE_MILLIS)) * MINUTE_MILLIS;
+            config.requiresCharging = json.optBoolean("requiresCharging", config.requiresCharging);
+            config.requiresIdle = json.optBoolean("requiresIdle", config.requiresIdle);
+            config.batchRows = Math.max(1, json.optInt("batchRows", config.batchRows));
+            return config;
+        }
+
+        private boolean includesType(String type) {
+            return types == null || types.contains(type);
+        }
+    }
+
+    /** A batch file that can be handed to JavaScript, named TYPE_CREATED_SEQ_ROWS.ext
+     *
+     */
+    private static class ReadyFile {
+        final File file;
+        final String type;
+        final long created;
+        final int sequence;
+        final int rows;
+
+        ReadyFile(File pFile, String pType, long pCreated, int pSequence, int pRows) {
+            file = pFile;
+            type = pType;
+            created = pCreated;
+            sequence = pSequence;
+            rows = pRows;
+        }
+
+        /** Reads the parts of the file name
+         *
+         * @param file  The file
+         * @return      The ready file, or null if it is no committed batch file
+         */
+        static ReadyFile parse(File file) {
+            String name = file.getName();
+            String base;
+            if (name.endsWith(BatchFileSink.COMPRESSED)) {
+                base = name.substring(0, name.length() - BatchFileSink.COMPRESSED.length());
+            } else if (name.endsWith(BatchFileSink.JSON)) {
+                base = name.substring(0, name.length() - BatchFileSink.JSON.length());
+            } else {
+                return null;
+            }
+
+            String[] parts = base.split("_");
+            if (parts.length != 4 || DataSchema.get(parts[0]) == null) {
+                return null;
+            }
+            try {
+                return new ReadyFile(file, parts[0], Long.parseLong(parts[1]),
+                        Integer.parseInt(parts[2]), Integer.parseInt(parts[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private final SharedPreferences preferences;
+    private final SyncState syncState;
+    private final File directory;
+
+    private QueryRequest request = null;
+    private final List<DataSchema> pending = new ArrayList<DataSchema>();
+    private HealthDataStore mStore = null;
+    private Runnable onFinished = null;
+    private long created = 0;
+    private int rowCount = 0;
+    private boolean complete = true;
+
+    /** Default Constructor.
+     *
+     * @param context   Any context of the application
+     */
+    public BackgroundSync(Context context) {
+        preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+        syncState = new SyncState(context, "shealth_background_sync");
+        directory = new File(context.getApplicationContext().getFilesDir(), DIRECTORY);
+    }
+
+    /** Stores the configuration used by the scheduled syncs
+     *
+     * @param config        The configuration
+     * @param scheduled     Whether syncs are scheduled
+     */
+    public void setConfig(Config config, boolean scheduled) {
+        SharedPreferences.Editor editor = preferences.edit();
+        if (config.types == null) {
+            editor.remove("types");
+        } else {
+            editor.putStringSet("types", config.types);
+        }
+        editor.putLong("interval", config.interval)
+                .putBoolean("requiresCharging", config.requiresCharging)
+                .putBoolean("requiresIdle", config.requiresIdle)
+                .putInt("batchRows", config.batchRows)
+                .putBoolean("scheduled", scheduled)
+                .apply();
+    }
+
+    /** Returns the stored configuration
+     *
+     * @return  The configuration, the defaults if none was stored
+     */
+    public Config getConfig() {
+        Config config = new Config();
+        Set<String> types = preferences.getStringSet("types", null);
+        config.types = types == null ? null : new HashSet<String>(types);
+        config.interval = preferences.getLong("interval", config.interval);
+        config.requiresCharging = preferences.getBoolean("requiresCharging", config.requiresCharging);
+        config.requiresIdle = preferences.getBoolean("requiresIdle", config.requiresIdle);
+        config.batchRows = preferences.getInt("batchRows", config.batchRows);
+        return config;
+    }
+
+    /** Marks the syncs as not scheduled, the configuration is kept
+     *
+     */
+    public void setUnscheduled() {
+        preferences.edit().putBoolean("scheduled", false).apply();
+    }
+
+    /** Reads the data types one after the other into batch files
+     *
+     * Data types the user did not allow to read are skipped, they do not make the sync
+     * incomplete. The permission check talks to S Health, so this must not run on the
+     * main thread.
+     *
+     * @param store         The connected {@link HealthDataStore}
+     * @param pOnFinished   Run once after the last data type, also after {@link #cancel()}
+     */
+    public void run(HealthDataStore store, Runnable pOnFinished) {
+        Config config = getConfig();
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(APP_TAG, "BackgroundSync - cannot create " + directory);
+            complete = false;
+            finished();
+            pOnFinished.run();
+            return;
+        }
+        deleteParts();
+
+        List<DataSchema> schemas = new ArrayList<DataSchema>();
+        for (DataSchema schema : DataSchema.all()) {
+            if (config.includesType(schema.type)) {
+                schemas.add(schema);
+            }
+        }
+
+        // Types the user did not allow would fail every sync and leave it incomplete forever
+        PermissionSnapshot permissions = new PermissionSnapshot();
+        try {
+            Set<PermissionKey> keys = new HashSet<PermissionKey>();
+            for (DataSchema schema : schemas) {
+                keys.add(new PermissionKey(schema.hcHDT, PermissionType.READ));
+            }
+            permissions.update(new HealthPermissionManager(store).isPermissionAcquired(keys));
+        } catch (Exception e) {
+            Log.e(APP_TAG, "BackgroundSync - permission check fails, " + e.getMessage());
+            complete = false;
+            finished();
+            pOnFinished.run();
+            return;
+        }
+
+        synchronized (this) {
+            mStore = store;
+            onFinished = pOnFinished;
+            created = System.currentTimeMillis();
+            for (DataSchema schema : schemas) {
+                if (permissions.isGranted(schema.hcHDT)) {
+                    pending.add(schema);
+                } else {
+                    Log.d(APP_TAG, "BackgroundSync - permission denied, skipping " + schema.type);
+                }
+            }
+            request = new QueryRequest(null, pending.size());
+        }
+
+        Log.d(APP_TAG, "BackgroundSync - " + pending.size() + " data types");
+        next(config.batchRows);
+    }
+
+    /** Stops the running read, its rows are not written
+     *
+     */
+    public void cancel() {
+        QueryRequest running;
+        synchronized (this) {
+            running = request;
+        }
+        if (running != null) {
+            running.cancel();
+        }
+    }
+
+    /** Returns false if a data type could not be synced completely
+     *
+     * @return  Whether the last sync was complete
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    private void next(final int batchRows) {
+        final DataSchema schema;
+        synchronized (this) {
+            if (pending.isEmpty() || request.isCancelled()) {
+                if (request.isCancelled()) {
+                    complete = false;
+                }
+                schema = null;
+            } else {
+                schema = pending.remove(0);
+            }
+        }
+
+        if (schema == null) {
+            finished();
+            onFinished.run();
+            return;
+        }
+
+        QueryOptions readOptions = new QueryOptions();
+        readOptions.incremental = true;
+        readOptions.readPageSize = PAGE_SIZE;
+
+        final BatchFileSink sink = new BatchFileSink(directory, schema, created, batchRows);
+        PagedRead read = new PagedRead(mStore, schema, schema.project(null, true), 0, Long.MAX_VALUE,
+                readOptions, sink, syncState.get(schema.type));
+
+        read.setRequest(request).setListener(new PagedRead.Listener() {
+            @Override
+            public void onReadFinished(PagedRead read) {
+                SyncState.Watermark newest = read.getNewest();
+                if (read.isComplete() && !sink.isFailed() && sink.commit()) {
+                    if (newest != null) {
+                        syncState.put(schema.type, newest);
+                    }
+                    synchronized (BackgroundSync.this) {
+                        rowCount += sink.getRowCount();
+                    }
+                } else {
+                    sink.discard();
+                    complete = false;
+                }
+
+                Log.d(APP_TAG, "BackgroundSync " + schema.type + " - " + sink.getRowCount() + " rows");
+                next(batchRows);
+            }
+        });
+
+        if (!read.requestPage()) {
+            complete = false;
+            next(batchRows);
+        }
+    }
+
+    private void finished() {
+        preferences.edit()
+                .putLong("lastRun", System.currentTimeMillis())
+                .putBoolean("lastComplete", complete)
+                .putInt("lastRows", rowCount)
+                .apply();
+    }
+
+    /** Deletes the batches of a sync that was stopped with the process
+     *
+     */
+    private void deleteParts() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(BatchFileSink.PART) && !file.delete()) {
+                Log.e(APP_TAG, "BackgroundSync - cannot delete " + file.getName());
+            }
+        }
+    }
+
+    /** Returns the ready files
+     *
+     * <code>{"TYPE":"SYNC_READY","SCHEDULED":true,"LAST_RUN":..,"LAST_COMPLETE":true,"ROWS":n,
+     * "FILES":[{"NAME":..,"DATA_TYPE":..,"CREATED":..,"ROWS":..,"BYTES":..,"COMPRESSED":true},..]}</code>,
+     * oldest sync first.
+     *
+     * @return  The manifest
+     */
+    public String getManifest() {
+        List<ReadyFile> ready = listReady();
+        Collections.sort(ready, new Comparator<ReadyFile>() {
+            @Override
+            public int compare(ReadyFile a, ReadyFile b) {
+                if (a.created != b.created) {
+                    return a.created < b.created ? -1 : 1;
+                }
+                int type = a.type.compareTo(b.type);
+                return type != 0 ? type : a.sequence - b.sequence;
+            }
+        });
+
+        StringBuilder out = new StringBuilder(256 + 96 * ready.size());
+        out.append("{\"TYPE\":\"SYNC_READY\",\"SCHEDULED\":").append(preferences.getBoolean("scheduled", false))
+                .append(",\"LAST_RUN\":");
+        long lastRun = preferences.getLong("lastRun", -1);
+        if (lastRun < 0) {
+            out.append("null");
+        } else {
+            out.append(lastRun);
+        }
+        out.append(",\"LAST_COMPLETE\":").append(preferences.getBoolean("lastComplete", true));
+
+        long rows = 0;
+        for (ReadyFile file : ready) {
+            rows += file.rows;
+        }
+        out.append(",\"ROWS\":").append(rows).append(",\"FILES\":[");
+
+        for (int i = 0; i < ready.size(); i++) {
+            ReadyFile file = ready.get(i);
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append("{\"NAME\":");
+            JsonText.appendString(out, file.file.getName());
+            out.append(",\"DATA_TYPE\":");
+            JsonText.appendString(out, file.type);
+            out.append(",\"CREATED\":").append(file.created)
+                    .append(",\"ROWS\":").append(file.rows)
+                    .append(",\"BYTES\":").append(file.file.length())
+                    .append(",\"COMPRESSED\":").append(file.file.getName().endsWith(BatchFileSink.COMPRESSED))
+                    .append('}');
+        }
+        out.append("]}");
+        return out.toString();
+    }
+
+    private List<ReadyFile> listReady() {
+        List<ReadyFile> ready = new ArrayList<ReadyFile>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                ReadyFile parsed = ReadyFile.parse(file);
+                if (parsed != null) {
+                    ready.add(parsed);
+                }
+            }
+        }
+        return ready;
+    }
+
+    /** Returns the content of a ready file
+     *
+     * @param name  Name of the file as listed in the manifest
+     * @return      The content, or null if there is no such file
+     * @throws IOException if the file cannot be read
+     */
+    public byte[] readFile(String name) throws IOException {
+        File file = getReadyFile(name);
+        if (file == null) {
+            return null;
+        }
+
+        byte[] content = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int count = in.read(content, offset, content.length - offset);
+                if (count < 0) {
+                    throw new IOException("Unexpected end of " + name);
+                }
+                offset += count;
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    /** Deletes processed files
+     *
+     * @param names     Names of the files as listed in the manifest
+     * @return          Number of deleted files
+     */
+    public int deleteFiles(Set<String> names) {
+        int deleted = 0;
+        for (String name : names) {
+            File file = getReadyFile(name);
+            if (file != null && file.delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    private File getReadyFile(String name) {
+        if (name == null || name.indexOf('/') >= 0) {
+            return null;
+        }
+        File file = new File(directory, name);
+        return file.isFile() && ReadyFile.parse(file) != null ? file : null;
+    }
+}
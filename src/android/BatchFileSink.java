@@ -0,0 +1,190 @@
+package com.samsung.android.simplehealth;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Writes the rows of a background sync into batch files.
+ *
+ * Every batch of rows is a JSON array in the format of unpaged results, written
+ * deflate compressed with the {@link PayloadCompressor} header (".shcz") or as
+ * plain JSON (".json") if it does not get smaller. Files are named
+ * <code>TYPE_CREATED_SEQ_ROWS.ext</code> and written with a ".part" suffix first,
+ * they only become visible with {@link #commit()} once the read is complete, so
+ * an interrupted sync never leaves rows that the next sync writes again.
+ */
+public class BatchFileSink implements ResultSink {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    public static final String COMPRESSED = ".shcz";
+    public static final String JSON = ".json";
+    public static final String PART = ".part";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+    private final DataSchema schema;
+    private final long created;
+    private final int batchRows;
+    private final PayloadCompressor compressor;
+
+    private RowEncoder encoder = null;
+    private final StringBuilder batch = new StringBuilder(8192);
+    private int batchRowCount = 0;
+    private int sequence = 0;
+    private int rowCount = 0;
+    private boolean failed = false;
+    private final List<File> parts = new ArrayList<File>();
+
+    /** Default Constructor.
+     *
+     * @param pDirectory    Directory of the batch files
+     * @param pSchema       Schema of the data type
+     * @param pCreated      Start time of the sync, part of the file names
+     * @param pBatchRows    Maximum number of rows per file
+     */
+    public BatchFileSink(File pDirectory, DataSchema pSchema, long pCreated, int pBatchRows) {
+        directory = pDirectory;
+        schema = pSchema;
+        created = pCreated;
+        batchRows = pBatchRows;
+
+        // Every batch is compressed if that makes it at least 10% smaller
+        QueryOptions options = new QueryOptions();
+        options.compressThreshold = 1;
+        compressor = new PayloadCompressor(options);
+    }
+
+    /** Returns the number of rows that were read
+     *
+     * @return  Number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** Returns true if a batch could not be written, the sync position must not move then
+     *
+     * @return  Whether writing failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public void open(Cursor c) {
+        encoder = new RowEncoder(schema, c, null);
+    }
+
+    @Override
+    public void addRow(Cursor c) {
+        batch.append(batchRowCount == 0 ? '[' : ',');
+        encoder.encode(c, batch);
+        batchRowCount++;
+        rowCount++;
+
+        if (batchRowCount >= batchRows) {
+            write();
+        }
+    }
+
+    @Override
+    public void finish() {
+        write();
+    }
+
+    /** Makes the written batches visible
+     *
+     * Either all batches become visible or none: if a file cannot be renamed, the
+     * files renamed before it are turned back into parts, so {@link #discard()}
+     * removes the whole sync of the type and the sync position stays where it was.
+     *
+     * @return  False if a file could not be renamed
+     */
+    public boolean commit() {
+        List<File> committed = new ArrayList<File>();
+        for (File part : parts) {
+            File target = getTarget(part);
+            if (!part.renameTo(target)) {
+                Log.e(APP_TAG, "BatchFileSink - cannot rename " + part.getName());
+                rollback(committed);
+                return false;
+            }
+            committed.add(target);
+        }
+        parts.clear();
+        return true;
+    }
+
+    private void rollback(List<File> committed) {
+        for (File target : committed) {
+            File part = new File(directory, target.getName() + PART);
+            // A batch that stays visible would be read again by the next sync
+            if (!target.renameTo(part) && !target.delete()) {
+                Log.e(APP_TAG, "BatchFileSink - cannot roll back " + target.getName());
+            }
+        }
+    }
+
+    private File getTarget(File part) {
+        String name = part.getName();
+        return new File(directory, name.substring(0, name.length() - PART.length()));
+    }
+
+    /** Deletes the batches of an incomplete sync
+     *
+     */
+    public void discard() {
+        for (File part : parts) {
+            if (!part.delete()) {
+                Log.e(APP_TAG, "BatchFileSink - cannot delete " + part.getName());
+            }
+        }
+        parts.clear();
+    }
+
+    private void write() {
+        if (batchRowCount == 0 || failed) {
+            batch.setLength(0);
+            batchRowCount = 0;
+            return;
+        }
+
+        batch.append(']');
+        byte[] payload = batch.toString().getBytes(UTF8);
+        byte[] compressed = compressor.compress(payload, PayloadCompressor.CONTENT_JSON);
+
+        String name = schema.type + "_" + created + "_" + sequence + "_" + batchRowCount
+                + (compressed != null ? COMPRESSED : JSON);
+        File part = new File(directory, name + PART);
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(part);
+            parts.add(part);
+            out.write(compressed != null ? compressed : payload);
+            sequence++;
+        } catch (IOException e) {
+            Log.e(APP_TAG, "BatchFileSink " + schema.type + " - " + e.getMessage());
+            failed = true;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    failed = true;
+                }
+            }
+        }
+
+        batch.setLength(0);
+        batchRowCount = 0;
+    }
+}
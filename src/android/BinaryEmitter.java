@@ -0,0 +1,80 @@
+package com.samsung.android.simplehealth;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.apache.cordova.*;
+
+/** Sends the rows of one data type as binary pages (ArrayBuffer in JavaScript).
+ *
+ * The page format is described in {@link ColumnarEncoder}. Pages are limited by
+ * the same pageRows/pageBytes options as the JSON results; without them all rows
+ * of the data type are sent in a single page. With {@link QueryOptions#compress}
+ * large pages are sent compressed by a {@link PayloadCompressor}.
+ */
+public class BinaryEmitter implements ResultSink {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private final CallbackContext callbackContext;
+    private final QueryOptions options;
+    private final ColumnarEncoder encoder;
+    private final String type;
+
+    private int sequence = 0;
+    private final PayloadCompressor compressor;
+
+    /** Default Constructor.
+     *
+     * @param pCallbackContext  Object holding callback functions
+     * @param pSchema           Schema of the data type
+     * @param pOptions          Options of the query
+     */
+    public BinaryEmitter(CallbackContext pCallbackContext, DataSchema pSchema, QueryOptions pOptions) {
+        this.callbackContext = pCallbackContext;
+        this.options = pOptions;
+        this.encoder = new ColumnarEncoder(pSchema, pOptions.requestId);
+        this.type = pSchema.type;
+        this.compressor = pOptions.compress ? new PayloadCompressor(pOptions) : null;
+    }
+
+    @Override
+    public void open(Cursor c) {
+        encoder.open(c);
+    }
+
+    @Override
+    public void addRow(Cursor c) {
+        encoder.addRow(c);
+
+        if ((options.pageRows > 0 && encoder.getRowCount() >= options.pageRows)
+                || (options.pageBytes > 0 && encoder.getByteCount() >= options.pageBytes)) {
+            sendPage(false);
+        }
+    }
+
+    @Override
+    public void finish() {
+        sendPage(true);
+    }
+
+    private void sendPage(boolean done) {
+        byte[] message = encoder.toBytes(sequence, done);
+        Log.d(APP_TAG, type + " binary page " + sequence + " - " + encoder.getRowCount() + " rows, " + message.length + " bytes");
+
+        sequence++;
+        encoder.reset();
+
+        if (compressor != null) {
+            byte[] compressed = compressor.compress(message, PayloadCompressor.CONTENT_COLUMNAR);
+            if (compressed != null) {
+                Log.d(APP_TAG, type + " compressed to " + compressed.length + " bytes");
+                message = compressed;
+            }
+        }
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, message);
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+}
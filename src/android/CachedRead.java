@@ -0,0 +1,316 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Reads one data type from the {@link QueryCache} and S Health.
+ *
+ * The time window is split into whole hours. Closed hours found in the cache are
+ * replayed from memory, everything else (partial hours at the edges, missing hours
+ * and the current hour) is read from S Health in as few requests as possible.
+ * Missing closed hours are copied into the cache while they are sent. The segments
+ * run one after another into the same sink, so the result looks like a single read.
+ * A segment that cannot be read stops the read without finishing the sink, see
+ * {@link #isComplete()}.
+ */
+public class CachedRead implements PagedRead.Listener {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    /** A part of the window, either cached or read from S Health
+     *
+     */
+    private static class Segment {
+        long from;
+        long to;
+        QueryCache.Bucket cached;
+
+        // Closed hours inside a read segment that go into the cache
+        long fillStart = 0;
+        int fillCount = 0;
+    }
+
+    private final QueryCache cache;
+    private final HealthDataStore mStore;
+    private final DataSchema schema;
+    private final String[] hcString;
+    private final String projection;
+    private final QueryOptions options;
+    private final ResultSink sink;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private int next = 0;
+    private FillSink filling = null;
+    private Runnable onFinished = null;
+    private QueryRequest request = null;
+    private boolean complete = true;
+
+    /** Default Constructor.
+     *
+     * @param pCache        The cache
+     * @param store         The connected {@link HealthDataStore}
+     * @param pSchema       Schema of the data type
+     * @param pHcString     Array of requested attributes
+     * @param pOptions      Options of the query
+     * @param pSink         Receives the rows
+     */
+    public CachedRead(QueryCache pCache, HealthDataStore store, DataSchema pSchema, String[] pHcString,
+                      QueryOptions pOptions, ResultSink pSink) {
+        cache = pCache;
+        mStore = store;
+        schema = pSchema;
+        hcString = pHcString;
+        options = pOptions;
+        sink = pSink;
+
+        StringBuilder names = new StringBuilder();
+        for (String name : pHcString) {
+            names.append(name).append(',');
+        }
+        projection = names.toString();
+    }
+
+    /** Sets the callback run after the last segment was sent
+     *
+     * @param pOnFinished   The callback, may be null
+     * @return              This read
+     */
+    public CachedRead setOnFinished(Runnable pOnFinished) {
+        onFinished = pOnFinished;
+        return this;
+    }
+
+    /** Sets the request the read belongs to, no further segments run once it is cancelled
+     *
+     * @param pRequest      The request, may be null
+     * @return              This read
+     */
+    public CachedRead setRequest(QueryRequest pRequest) {
+        request = pRequest;
+        return this;
+    }
+
+    /** Returns false if a segment could not be read or the read was cancelled
+     *
+     * @return  Whether all rows were sent
+     */
+    public boolean isComplete() {
+        return complete && !isCancelled();
+    }
+
+    /** Plans the segments and starts the first one
+     *
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     */
+    public void start(long startTime, long endTime) {
+        long h = QueryCache.BUCKET_MILLIS;
+        long first = ((startTime + h - 1) / h) * h;
+        long closedEnd = Math.min(((endTime + 1) / h) * h, (System.currentTimeMillis() / h) * h);
+
+        if (startTime < 0 || first >= closedEnd) {
+            addRead(startTime, endTime, 0, 0);
+        } else {
+            if (startTime < first) {
+                addRead(startTime, first - 1, 0, 0);
+            }
+
+            for (long bucket = first; bucket < closedEnd; bucket += h) {
+                QueryCache.Bucket cached = cache.get(schema.type, projection, bucket);
+                if (cached != null) {
+                    Segment segment = new Segment();
+                    segment.cached = cached;
+                    segments.add(segment);
+                } else {
+                    addRead(bucket, bucket + h - 1, bucket, 1);
+                }
+            }
+
+            if (closedEnd <= endTime) {
+                addRead(closedEnd, endTime, 0, 0);
+            }
+        }
+
+        Log.d(APP_TAG, schema.type + " cached read - " + segments.size() + " segments");
+        runNext();
+    }
+
+    /** Adds a range read from S Health, merged into the previous segment if that is a contiguous read
+     *
+     */
+    private void addRead(long from, long to, long fillStart, int fillCount) {
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (last != null && last.cached == null && last.to == from - 1) {
+            last.to = to;
+            if (fillCount > 0) {
+                if (last.fillCount == 0) {
+                    last.fillStart = fillStart;
+                }
+                last.fillCount += fillCount;
+            }
+            return;
+        }
+
+        Segment segment = new Segment();
+        segment.from = from;
+        segment.to = to;
+        segment.fillStart = fillStart;
+        segment.fillCount = fillCount;
+        segments.add(segment);
+    }
+
+    private void runNext() {
+        while (next < segments.size() && !isCancelled()) {
+            Segment segment = segments.get(next++);
+
+            if (segment.cached != null) {
+                replay(segment.cached);
+                continue;
+            }
+
+            filling = new FillSink(segment);
+            // Sorted, so replayed and read segments together are in time order
+            PagedRead read = new PagedRead(mStore, schema, hcString, segment.from, segment.to, options, filling, null)
+                    .setOrdered(true)
+                    .setListener(this)
+                    .setRequest(request);
+            if (read.requestPage()) {
+                return;
+            }
+
+            filling = null;
+            complete = false;
+            break;
+        }
+
+        if (isComplete()) {
+            sink.finish();
+        }
+
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    private void replay(QueryCache.Bucket bucket) {
+        if (bucket.getRowCount() == 0) {
+            return;
+        }
+
+        Cursor c = bucket.toCursor();
+        try {
+            sink.open(c);
+            while (c.moveToNext() && !isCancelled()) {
+                sink.addRow(c);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private boolean isCancelled() {
+        return request != null && request.isCancelled();
+    }
+
+    @Override
+    public void onReadFinished(PagedRead read) {
+        if (read.isComplete()) {
+            filling.store();
+        } else {
+            complete = false;
+        }
+        filling = null;
+
+        if (complete) {
+            runNext();
+        } else {
+            // The rows of the failed segment are missing, the read must not look complete
+            if (onFinished != null) {
+                onFinished.run();
+            }
+        }
+    }
+
+    /** Forwards the rows of a read segment and copies the closed hours into builders
+     *
+     */
+    private class FillSink implements ResultSink {
+        private final Segment segment;
+        private final int generation;
+        private QueryCache.BucketBuilder[] builders;
+        private long bytes = 0;
+        private int startIndex = -1;
+
+        FillSink(Segment pSegment) {
+            segment = pSegment;
+            generation = cache.getGeneration(schema.type);
+            builders = new QueryCache.BucketBuilder[pSegment.fillCount];
+        }
+
+        @Override
+        public void open(Cursor c) {
+            sink.open(c);
+            startIndex = c.getColumnIndex(schema.hcStartTime);
+
+            if (builders == null) {
+                return;
+            }
+
+            for (int i = 0; i < builders.length; i++) {
+                if (builders[i] == null) {
+                    builders[i] = QueryCache.BucketBuilder.forCursor(schema, c);
+                }
+            }
+        }
+
+        @Override
+        public void addRow(Cursor c) {
+            sink.addRow(c);
+
+            if (builders == null || builders.length == 0 || startIndex < 0) {
+                return;
+            }
+
+            long offset = c.getLong(startIndex) - segment.fillStart;
+            if (offset < 0 || offset >= builders.length * QueryCache.BUCKET_MILLIS) {
+                return;
+            }
+
+            QueryCache.BucketBuilder builder = builders[(int) (offset / QueryCache.BUCKET_MILLIS)];
+            bytes -= builder.getByteCount();
+            builder.add(c);
+            bytes += builder.getByteCount();
+
+            // A single read larger than the whole cache would only evict everything else
+            if (bytes > cache.getBudget()) {
+                builders = null;
+            }
+        }
+
+        @Override
+        public void finish() {
+            // The segments share the sink, it is finished after the last one
+        }
+
+        void store() {
+            if (builders == null) {
+                return;
+            }
+
+            for (int i = 0; i < builders.length; i++) {
+                if (builders[i] == null) {
+                    // No page was opened, the hours are empty
+                    builders[i] = new QueryCache.BucketBuilder(new DataSchema.Column[0], new int[0]);
+                }
+                cache.put(schema.type, projection, segment.fillStart + i * QueryCache.BUCKET_MILLIS,
+                        builders[i].build(), generation);
+            }
+        }
+    }
+}
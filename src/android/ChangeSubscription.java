@@ -0,0 +1,146 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataObserver;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.apache.cordova.*;
+
+/** Pushes new rows of one data type whenever S Health reports a change.
+ *
+ * Every notification starts an incremental read after the newest row that was
+ * pushed so far, so only added or changed rows are sent. The first read starts at
+ * the time of the subscription. Notifications that arrive while a read is running
+ * are coalesced into a single follow-up read. A change that yields no rows, e.g.
+ * a deletion, sends nothing.
+ */
+public class ChangeSubscription extends HealthDataObserver implements PagedRead.Listener {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private final HealthDataStore mStore;
+    private final DataSchema schema;
+    private final String[] hcString;
+    private final QueryOptions options;
+    private final CallbackContext callbackContext;
+
+    private SyncState.Watermark watermark;
+    private boolean reading = false;
+    private boolean pending = false;
+    private boolean active = true;
+
+    /** Default Constructor.
+     *
+     * @param store             The connected {@link HealthDataStore}
+     * @param pSchema           Schema of the data type
+     * @param pOptions          Options of the subscription, with incremental set
+     * @param pCallbackContext  Keep-alive callback receiving the rows
+     */
+    public ChangeSubscription(HealthDataStore store, DataSchema pSchema, QueryOptions pOptions, CallbackContext pCallbackContext) {
+        super(HealthThread.getHandler());
+        mStore = store;
+        schema = pSchema;
+        options = pOptions;
+        hcString = pSchema.project(pOptions.getProperties(pSchema.type), true);
+        callbackContext = pCallbackContext;
+        watermark = new SyncState.Watermark(System.currentTimeMillis(), "");
+    }
+
+    /** Registers the observer at S Health, again after a reconnect
+     *
+     */
+    public void register() {
+        try {
+            // Registering twice would read and send every change twice
+            HealthDataObserver.removeObserver(mStore, this);
+        } catch (Exception e) {
+            Log.d(APP_TAG, "ChangeSubscription removeObserver - " + e.getMessage());
+        }
+        HealthDataObserver.addObserver(mStore, schema.hcHDT, this);
+    }
+
+    /** Removes the observer from S Health, reads that are already running still finish
+     *
+     */
+    public synchronized void unregister() {
+        active = false;
+        pending = false;
+        HealthDataObserver.removeObserver(mStore, this);
+    }
+
+    @Override
+    public synchronized void onChange(String dataTypeName) {
+        Log.d(APP_TAG, "onChange " + dataTypeName);
+
+        if (!active) {
+            return;
+        }
+        if (reading) {
+            pending = true;
+            return;
+        }
+        read();
+    }
+
+    @Override
+    public synchronized void onReadFinished(PagedRead read) {
+        SyncState.Watermark newest = read.getNewest();
+        if (newest != null) {
+            watermark = newest;
+        }
+
+        reading = false;
+        if (pending && active) {
+            pending = false;
+            read();
+        }
+    }
+
+    private void read() {
+        ResultSink sink = options.isBinary()
+                ? new BinaryEmitter(callbackContext, schema, options)
+                : new ResultEmitter(callbackContext, schema, options);
+
+        reading = new PagedRead(mStore, schema, hcString, 0, Long.MAX_VALUE, options, new ChangedRows(sink), watermark)
+                .setListener(this)
+                .requestPage();
+    }
+
+    /** Forwards the rows of a change, nothing at all if there are none
+     *
+     */
+    private static class ChangedRows implements ResultSink {
+        private final ResultSink sink;
+        private boolean opened = false;
+        private int rows = 0;
+
+        ChangedRows(ResultSink pSink) {
+            sink = pSink;
+        }
+
+        @Override
+        public void open(Cursor c) {
+            // Pages are only opened once they have a row
+            opened = false;
+        }
+
+        @Override
+        public void addRow(Cursor c) {
+            if (!opened) {
+                sink.open(c);
+                opened = true;
+            }
+            sink.addRow(c);
+            rows++;
+        }
+
+        @Override
+        public void finish() {
+            if (rows > 0) {
+                sink.finish();
+            }
+        }
+    }
+}
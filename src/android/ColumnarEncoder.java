@@ -0,0 +1,304 @@
+package com.samsung.android.simplehealth;
+
+import android.database.Cursor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Collects cursor rows column by column and writes them in a binary columnar format.
+ *
+ * All numbers are little endian, every section starts at a multiple of 8 bytes
+ * so JavaScript can map the columns to typed arrays without copying:
+ * <pre>
+ *  0  char[4]  magic "SHCB"
+ *  4  uint8    version (2)
+ *  5  uint8    flags, bit 0 = last page of the data type
+ *  6  uint16   column count
+ *  8  uint32   sequence number of the page
+ * 12  uint32   row count
+ * 16  uint16   length of the type name, followed by the UTF-8 type name
+ *     uint16   length of the request id, followed by the UTF-8 request id ("" if none)
+ *     per column: uint8 kind, uint16 key length, UTF-8 key
+ *     padding to 8 bytes
+ *     per column, each padded to 8 bytes:
+ *       1 LONG    float64[rows] (exact for values below 2^53, e.g. timestamps)
+ *       2 INT     int32[rows]
+ *       3 FLOAT   float32[rows]
+ *       4 STRING  int32[rows + 1] offsets, padding, UTF-8 bytes (null is written as "")
+ *       5 BLOB    int32[rows + 1] offsets, padding, raw bytes
+ * </pre>
+ * The buffers are reused after {@link #reset()}.
+ */
+public class ColumnarEncoder {
+
+    public static final int VERSION = 2;
+    public static final int FLAG_DONE = 1;
+
+    private static final byte[] MAGIC = { 'S', 'H', 'C', 'B' };
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final DataSchema schema;
+    private final byte[] requestIdBytes;
+    private final List<ColumnBuffer> columns = new ArrayList<ColumnBuffer>();
+    private int rowCount = 0;
+
+    /** Default Constructor.
+     *
+     * @param pSchema       Schema of the data type
+     * @param requestId     Id of the request written into the header, may be null
+     */
+    public ColumnarEncoder(DataSchema pSchema, String requestId) {
+        schema = pSchema;
+        requestIdBytes = (requestId == null ? "" : requestId).getBytes(UTF8);
+    }
+
+    /** Binds the encoder to a new result cursor
+     *
+     * The columns are taken from the first cursor, later cursors of the same
+     * read have the same projection.
+     *
+     * @param c     The cursor
+     */
+    public void open(Cursor c) {
+        if (columns.isEmpty()) {
+            for (DataSchema.Column column : schema.getColumns()) {
+                if (c.getColumnIndex(column.name) >= 0) {
+                    columns.add(new ColumnBuffer(column));
+                }
+            }
+        }
+
+        for (ColumnBuffer buffer : columns) {
+            buffer.index = c.getColumnIndex(buffer.column.name);
+        }
+    }
+
+    /** Adds the current row of the cursor
+     *
+     * @param c     The cursor, positioned on a row
+     */
+    public void addRow(Cursor c) {
+        for (int i = 0; i < columns.size(); i++) {
+            columns.get(i).add(c, rowCount);
+        }
+        rowCount++;
+    }
+
+    /** Returns the number of rows added since the last reset
+     *
+     * @return  Number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** Returns the approximate encoded size of the rows added since the last reset
+     *
+     * @return  Size in bytes
+     */
+    public int getByteCount() {
+        int size = 0;
+        for (ColumnBuffer buffer : columns) {
+            size += buffer.byteCount(rowCount);
+        }
+        return size;
+    }
+
+    /** Removes all rows, the buffers are kept
+     *
+     */
+    public void reset() {
+        rowCount = 0;
+        for (ColumnBuffer buffer : columns) {
+            buffer.byteCount = 0;
+        }
+    }
+
+    /** Writes the rows added since the last reset
+     *
+     * @param sequence  Sequence number of the page
+     * @param done      True if this is the last page of the data type
+     * @return          The encoded page
+     */
+    public byte[] toBytes(int sequence, boolean done) {
+        byte[] typeBytes = schema.type.getBytes(UTF8);
+        byte[][] keyBytes = new byte[columns.size()][];
+
+        int headerSize = 16 + 2 + typeBytes.length + 2 + requestIdBytes.length;
+        for (int i = 0; i < columns.size(); i++) {
+            keyBytes[i] = columns.get(i).column.key.getBytes(UTF8);
+            headerSize += 1 + 2 + keyBytes[i].length;
+        }
+
+        int size = align(headerSize);
+        for (ColumnBuffer buffer : columns) {
+            size += buffer.byteCount(rowCount);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.put(MAGIC);
+        out.put((byte) VERSION);
+        out.put((byte) (done ? FLAG_DONE : 0));
+        out.putShort((short) columns.size());
+        out.putInt(sequence);
+        out.putInt(rowCount);
+        out.putShort((short) typeBytes.length);
+        out.put(typeBytes);
+        out.putShort((short) requestIdBytes.length);
+        out.put(requestIdBytes);
+
+        for (int i = 0; i < columns.size(); i++) {
+            out.put((byte) kindCode(columns.get(i).column.kind));
+            out.putShort((short) keyBytes[i].length);
+            out.put(keyBytes[i]);
+        }
+        out.position(align(out.position()));
+
+        for (ColumnBuffer buffer : columns) {
+            buffer.write(out, rowCount);
+            out.position(align(out.position()));
+        }
+
+        return out.array();
+    }
+
+    private static int align(int position) {
+        return (position + 7) & ~7;
+    }
+
+    private static int kindCode(DataSchema.Kind kind) {
+        switch (kind) {
+            case LONG:
+                return 1;
+            case INT:
+                return 2;
+            case FLOAT:
+                return 3;
+            case STRING:
+                return 4;
+            default:
+                return 5;
+        }
+    }
+
+    /** Values of one column, stored in a primitive array of the column kind
+     *
+     */
+    private static class ColumnBuffer {
+        final DataSchema.Column column;
+        int index;
+
+        double[] longs;
+        int[] ints;
+        float[] floats;
+
+        // STRING and BLOB: end offset of every value in bytes
+        int[] ends;
+        byte[] bytes;
+        int byteCount = 0;
+
+        ColumnBuffer(DataSchema.Column pColumn) {
+            column = pColumn;
+
+            switch (column.kind) {
+                case LONG:
+                    longs = new double[256];
+                    break;
+                case INT:
+                    ints = new int[256];
+                    break;
+                case FLOAT:
+                    floats = new float[256];
+                    break;
+                default:
+                    ends = new int[256];
+                    bytes = new byte[4096];
+                    break;
+            }
+        }
+
+        void add(Cursor c, int row) {
+            switch (column.kind) {
+                case LONG:
+                    if (row == longs.length) {
+                        longs = Arrays.copyOf(longs, row * 2);
+                    }
+                    longs[row] = c.getLong(index);
+                    break;
+                case INT:
+                    if (row == ints.length) {
+                        ints = Arrays.copyOf(ints, row * 2);
+                    }
+                    ints[row] = c.getInt(index);
+                    break;
+                case FLOAT:
+                    if (row == floats.length) {
+                        floats = Arrays.copyOf(floats, row * 2);
+                    }
+                    floats[row] = c.getFloat(index);
+                    break;
+                default:
+                    if (row == ends.length) {
+                        ends = Arrays.copyOf(ends, row * 2);
+                    }
+                    if (!c.isNull(index)) {
+                        byte[] value = column.kind == DataSchema.Kind.STRING
+                                ? c.getString(index).getBytes(UTF8)
+                                : c.getBlob(index);
+                        if (byteCount + value.length > bytes.length) {
+                            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, byteCount + value.length));
+                        }
+                        System.arraycopy(value, 0, bytes, byteCount, value.length);
+                        byteCount += value.length;
+                    }
+                    ends[row] = byteCount;
+                    break;
+            }
+        }
+
+        int byteCount(int rows) {
+            switch (column.kind) {
+                case LONG:
+                    return rows * 8;
+                case INT:
+                    return align(rows * 4);
+                case FLOAT:
+                    return align(rows * 4);
+                default:
+                    return align((rows + 1) * 4) + align(byteCount);
+            }
+        }
+
+        void write(ByteBuffer out, int rows) {
+            switch (column.kind) {
+                case LONG:
+                    for (int i = 0; i < rows; i++) {
+                        out.putDouble(longs[i]);
+                    }
+                    break;
+                case INT:
+                    for (int i = 0; i < rows; i++) {
+                        out.putInt(ints[i]);
+                    }
+                    break;
+                case FLOAT:
+                    for (int i = 0; i < rows; i++) {
+                        out.putFloat(floats[i]);
+                    }
+                    break;
+                default:
+                    out.putInt(0);
+                    for (int i = 0; i < rows; i++) {
+                        out.putInt(ends[i]);
+                    }
+                    out.position(align(out.position()));
+                    out.put(bytes, 0, byteCount);
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package com.wopo.plugin;
+
+import com.samsung.android.sdk.healthdata.HealthConnectionErrorResult;
+import com.samsung.android.sdk.healthdata.HealthDataService;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import com.samsung.android.simplehealth.HealthThread;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Keeps one connection to S Health per app process.
+ *
+ * The {@link HealthDataStore} is created once and reused by every plugin instance.
+ * Requests that arrive while the store is connecting are queued and run as soon as
+ * it is connected. After a disconnect or a temporary failure the store reconnects
+ * with an exponential backoff; failures that need the user (S Health missing, too
+ * old, agreement needed, ...) stop the retries until the next {@link #connect()}.
+ * Once the retries of a temporary failure are used up, the next request starts
+ * a new series of attempts.
+ */
+public class ConnectionManager {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    /** State of the connection as shown to JavaScript
+     *
+     */
+    public enum State { DISCONNECTED, CONNECTING, CONNECTED, FAILED }
+
+    /** Notified about every state change
+     *
+     */
+    public interface Listener {
+        void onStateChanged(State state, HealthConnectionErrorResult error);
+    }
+
+    private static final long MIN_BACKOFF = 1000;
+    private static final long MAX_BACKOFF = 60000;
+    private static final int MAX_ATTEMPTS = 6;
+
+    private static ConnectionManager sInstance = null;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final List<Runnable> mPending = new ArrayList<Runnable>();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    private HealthDataStore mStore = null;
+    private State mState = State.DISCONNECTED;
+    private HealthConnectionErrorResult mError = null;
+    private long mBackoff = MIN_BACKOFF;
+    private int mAttempts = 0;
+
+    /** Returns the connection of the app process
+     *
+     * @param context   Any context of the application
+     * @return          The connection manager
+     */
+    public static synchronized ConnectionManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConnectionManager(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ConnectionManager(Context pContext) {
+        mContext = pContext;
+        mHandler = HealthThread.getHandler();
+    }
+
+    /** Starts connecting unless the store is connected or connecting
+     *
+     */
+    public void connect() {
+        synchronized (this) {
+            if (mState == State.CONNECTED || mState == State.CONNECTING) {
+                return;
+            }
+            mAttempts = 0;
+            mBackoff = MIN_BACKOFF;
+            mState = State.CONNECTING;
+        }
+
+        setState(State.CONNECTING, null);
+        mHandler.post(mConnectRunnable);
+    }
+
+    /** Runs a task once the store is connected
+     *
+     * Connected: the task runs right away. Connecting, or failed for a reason that may
+     * go away: the task is queued and a connect is started. Failed for a reason that
+     * needs the user: the task runs right away and has to report the missing connection itself.
+     *
+     * @param task  The task
+     */
+    public void whenConnected(Runnable task) {
+        boolean runNow;
+        synchronized (this) {
+            runNow = mState == State.CONNECTED
+                    || (mState == State.FAILED && mError != null && !isTemporary(mError));
+            if (!runNow) {
+                mPending.add(task);
+            }
+        }
+
+        if (runNow) {
+            task.run();
+        } else {
+            connect();
+        }
+    }
+
+    /** Returns the shared store
+     *
+     * @return  The store, or null before the first connect
+     */
+    public synchronized HealthDataStore getStore() {
+        return mStore;
+    }
+
+    /** Returns the current state
+     *
+     * @return  The state
+     */
+    public synchronized State getState() {
+        return mState;
+    }
+
+    /** Returns the error of the last failed connection attempt
+     *
+     * @return  The error, or null
+     */
+    public synchronized HealthConnectionErrorResult getError() {
+        return mError;
+    }
+
+    /** Adds a listener for state changes
+     *
+     * @param listener  The listener
+     */
+    public void addListener(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /** Removes a listener for state changes
+     *
+     * @param listener  The listener
+     */
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private final Runnable mConnectRunnable = new Runnable() {
+        @Override
+        public void run() {
+            HealthDataStore store;
+            int attempt;
+            synchronized (ConnectionManager.this) {
+                if (mStore == null) {
+                    try {
+                        new HealthDataService().initialize(mContext);
+
+                        // Create a HealthDataStore instance and set its listener
+                        mStore = new HealthDataStore(mContext, mConnectionListener);
+                    } catch (Exception e) {
+                        Log.e(APP_TAG, "healthDataService.initialize - " + e.toString());
+                    }
+                }
+                store = mStore;
+                attempt = ++mAttempts;
+            }
+
+            if (store == null) {
+                setState(State.FAILED, null);
+                runPending();
+                return;
+            }
+
+            Log.d(APP_TAG, "connectService - attempt " + attempt);
+            store.connectService();
+        }
+    };
+
+    /** Tries again after the backoff, or gives up after too many attempts
+     *
+     */
+    private void scheduleReconnect(HealthConnectionErrorResult error) {
+        long delay;
+        synchronized (this) {
+            delay = mAttempts >= MAX_ATTEMPTS ? -1 : mBackoff;
+            mBackoff = Math.min(mBackoff * 2, MAX_BACKOFF);
+        }
+
+        if (delay < 0) {
+            setState(State.FAILED, error);
+            runPending();
+            return;
+        }
+
+        Log.d(APP_TAG, "Reconnecting in " + delay + " ms");
+        setState(State.CONNECTING, error);
+        mHandler.postDelayed(mConnectRunnable, delay);
+    }
+
+    private static boolean isTemporary(HealthConnectionErrorResult error) {
+        switch (error.getErrorCode()) {
+            case HealthConnectionErrorResult.CONNECTION_FAILURE:
+            case HealthConnectionErrorResult.TIMEOUT:
+            case HealthConnectionErrorResult.PLATFORM_INITIALIZING:
+            case HealthConnectionErrorResult.UNKNOWN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /** Stores the state and notifies the listeners, must not be called while holding the lock
+     *
+     */
+    private void setState(State state, HealthConnectionErrorResult error) {
+        synchronized (this) {
+            mState = state;
+            mError = error;
+        }
+
+        for (Listener listener : mListeners) {
+            listener.onStateChanged(state, error);
+        }
+    }
+
+    /** Runs the queued requests on the worker thread
+     *
+     */
+    private void runPending() {
+        mHandler.post(mRunPendingRunnable);
+    }
+
+    private final Runnable mRunPendingRunnable = new Runnable() {
+        @Override
+        public void run() {
+            runPendingNow();
+        }
+    };
+
+    private void runPendingNow() {
+        List<Runnable> tasks;
+        synchronized (this) {
+            tasks = new ArrayList<Runnable>(mPending);
+            mPending.clear();
+        }
+
+        for (Runnable task : tasks) {
+            task.run();
+        }
+    }
+
+    /** Callback object for {@link HealthDataStore}
+     *
+     */
+    private final HealthDataStore.ConnectionListener mConnectionListener = new HealthDataStore.ConnectionListener() {
+
+        @Override
+        public void onConnected() {
+            Log.d(APP_TAG, "Health data service is connected.");
+
+            synchronized (ConnectionManager.this) {
+                mAttempts = 0;
+                mBackoff = MIN_BACKOFF;
+            }
+            setState(State.CONNECTED, null);
+            runPending();
+        }
+
+        @Override
+        public void onConnectionFailed(HealthConnectionErrorResult error) {
+            Log.d(APP_TAG, "Health data service is not available - " + error.getErrorCode());
+
+            if (isTemporary(error)) {
+                scheduleReconnect(error);
+            } else {
+                setState(State.FAILED, error);
+                runPending();
+            }
+        }
+
+        @Override
+        public void onDisconnected() {
+            Log.d(APP_TAG, "Health data service is disconnected.");
+
+            synchronized (ConnectionManager.this) {
+                mAttempts = 0;
+                mBackoff = MIN_BACKOFF;
+            }
+            scheduleReconnect(null);
+        }
+    };
+}
@@ -19,37 +19,43 @@
 package com.samsung.android.simplehealth;
 
 import com.samsung.android.sdk.healthdata.HealthConstants;
-import com.samsung.android.sdk.healthdata.HealthDataObserver;
-import com.samsung.android.sdk.healthdata.HealthDataResolver;
-import com.samsung.android.sdk.healthdata.HealthDataResolver.Filter;
-import com.samsung.android.sdk.healthdata.HealthDataResolver.ReadRequest;
-import com.samsung.android.sdk.healthdata.HealthDataResolver.ReadResult;
 import com.samsung.android.sdk.healthdata.HealthDataStore;
-import com.samsung.android.sdk.healthdata.HealthResultHolder;
 
-import android.app.AlertDialog;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
-import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-
 import org.apache.cordova.*;
 
 import android.app.Activity;
 
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class DataReporter {
     private final HealthDataStore mStore;
 
     Activity activity;
     CallbackContext callbackContext;
+    SyncState mSyncState;
+    final PermissionSnapshot mPermissions;
+    final QueryCache mCache;
+    final ReadScheduler mScheduler = new ReadScheduler();
+    final Map<String, QueryRequest> mRequests = new HashMap<String, QueryRequest>();
+    final Map<String, ChangeSubscription> mSubscriptions = new HashMap<String, ChangeSubscription>();
 
     String APP_TAG = "CordovaSHealthPlugin";
 
+    private static final long CACHE_BYTES = 8 * 1024 * 1024;
+    private static final int MIRROR_PAGE_SIZE = 1000;
+    private static final int MERGE_PAGE_SIZE = 500;
+
     /** Default Constructor.
      *
      * @param store             The connected {@link HealthDataStore}
@@ -57,9 +63,23 @@ public class DataReporter {
      * @param pCallbackContext  Object holding callback functions
      */
     public DataReporter(HealthDataStore store, Activity pActivity, CallbackContext pCallbackContext) {
+        this(store, pActivity, pCallbackContext, new PermissionSnapshot());
+    }
+
+    /** Constructor with the permission state kept by the connector.
+     *
+     * @param store             The connected {@link HealthDataStore}
+     * @param pActivity         Activity of the cordova application
+     * @param pCallbackContext  Object holding callback functions
+     * @param pPermissions      Data types that may be read, types known to be denied are skipped
+     */
+    public DataReporter(HealthDataStore store, Activity pActivity, CallbackContext pCallbackContext, PermissionSnapshot pPermissions) {
         mStore = store;
         activity = pActivity;
         this.callbackContext = pCallbackContext;
+        mPermissions = pPermissions;
+        mSyncState = new SyncState(pActivity, "shealth_sync");
+        mCache = new QueryCache(store, CACHE_BYTES);
     }
 
     /** Initiates the database query
@@ -68,911 +88,687 @@ public class DataReporter {
      * @param pEndTime      Latest time of measurement
      */
     public void start(long pStartTime, long pEndTime) {
-        Log.d(APP_TAG,"Time: " + pStartTime + " - " + pEndTime);
-
-        // StepCount
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.StepCount.START_TIME,
-                HealthConstants.StepCount.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.StepCount.START_TIME,
-                        HealthConstants.StepCount.END_TIME,
-                        HealthConstants.StepCount.TIME_OFFSET,
-                        HealthConstants.StepCount.COUNT,
-                        HealthConstants.StepCount.DISTANCE,
-                        HealthConstants.StepCount.CALORIE,
-                        HealthConstants.StepCount.SPEED,
-                        HealthConstants.StepCount.SAMPLE_POSITION_TYPE
-                },
-                mListenerStepCount
-        );
-
-        // Exercise
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.Exercise.START_TIME,
-                HealthConstants.Exercise.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.Exercise.START_TIME,
-                        HealthConstants.Exercise.END_TIME,
-                        HealthConstants.Exercise.TIME_OFFSET,
-                        HealthConstants.Exercise.CALORIE,
-                        HealthConstants.Exercise.DURATION,
-                        HealthConstants.Exercise.EXERCISE_TYPE,
-                        HealthConstants.Exercise.EXERCISE_CUSTOM_TYPE,
-                        HealthConstants.Exercise.DISTANCE,
-                        HealthConstants.Exercise.ALTITUDE_GAIN,
-                        HealthConstants.Exercise.ALTITUDE_LOSS,
-                        HealthConstants.Exercise.COUNT,
-                        HealthConstants.Exercise.COUNT_TYPE,
-                        HealthConstants.Exercise.MAX_SPEED,
-                        HealthConstants.Exercise.MEAN_SPEED,
-                        HealthConstants.Exercise.MAX_CALORICBURN_RATE,
-                        HealthConstants.Exercise.MEAN_CALORICBURN_RATE,
-                        HealthConstants.Exercise.MAX_CADENCE,
-                        HealthConstants.Exercise.MEAN_CADENCE,
-                        HealthConstants.Exercise.MAX_HEART_RATE,
-                        HealthConstants.Exercise.MEAN_HEART_RATE,
-                        HealthConstants.Exercise.MIN_HEART_RATE,
-                        HealthConstants.Exercise.MAX_ALTITUDE,
-                        HealthConstants.Exercise.MIN_ALTITUDE,
-                        HealthConstants.Exercise.INCLINE_DISTANCE,
-                        HealthConstants.Exercise.DECLINE_DISTANCE,
-                        HealthConstants.Exercise.MAX_POWER,
-                        HealthConstants.Exercise.MEAN_POWER,
-                        HealthConstants.Exercise.MEAN_RPM,
-                        HealthConstants.Exercise.LOCATION_DATA
-                },
-                mListenerExercise
-        );
-
-        // Sleep
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.Sleep.START_TIME,
-                HealthConstants.Sleep.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.Sleep.START_TIME,
-                        HealthConstants.Sleep.END_TIME,
-                        HealthConstants.Sleep.TIME_OFFSET
-                },
-                mListenerSleep
-        );
-
-        // SleepStage
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.SleepStage.START_TIME,
-                HealthConstants.SleepStage.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.SleepStage.START_TIME,
-                        HealthConstants.SleepStage.END_TIME,
-                        HealthConstants.SleepStage.TIME_OFFSET,
-                        HealthConstants.SleepStage.SLEEP_ID,
-                        HealthConstants.SleepStage.STAGE
-                },
-                mListenerSleepStage
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.FoodIntake.START_TIME,
-                HealthConstants.FoodIntake.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.FoodIntake.START_TIME,
-                        HealthConstants.FoodIntake.TIME_OFFSET,
-                        HealthConstants.FoodIntake.CALORIE,
-                        HealthConstants.FoodIntake.FOOD_INFO_ID,
-                        HealthConstants.FoodIntake.AMOUNT,
-                        HealthConstants.FoodIntake.UNIT,
-                        HealthConstants.FoodIntake.NAME,
-                        HealthConstants.FoodIntake.MEAL_TYPE
-                },
-                mListenerFoodIntake
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.WaterIntake.START_TIME,
-                HealthConstants.WaterIntake.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.WaterIntake.START_TIME,
-                        HealthConstants.WaterIntake.TIME_OFFSET,
-                        HealthConstants.WaterIntake.AMOUNT,
-                        HealthConstants.WaterIntake.UNIT_AMOUNT
-                },
-                mListenerWaterIntake
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.CaffeineIntake.START_TIME,
-                HealthConstants.CaffeineIntake.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.CaffeineIntake.START_TIME,
-                        HealthConstants.CaffeineIntake.TIME_OFFSET,
-                        HealthConstants.CaffeineIntake.AMOUNT,
-                        HealthConstants.CaffeineIntake.UNIT_AMOUNT
-                },
-                mListenerCaffeineIntake
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.HeartRate.START_TIME,
-                HealthConstants.HeartRate.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.HeartRate.START_TIME,
-                        HealthConstants.HeartRate.END_TIME,
-                        HealthConstants.HeartRate.TIME_OFFSET,
-                        HealthConstants.HeartRate.HEART_RATE,
-                        HealthConstants.HeartRate.HEART_BEAT_COUNT
-                },
-                mListenerHeartRate
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.BodyTemperature.START_TIME,
-                HealthConstants.BodyTemperature.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.BodyTemperature.START_TIME,
-                        HealthConstants.BodyTemperature.TIME_OFFSET,
-                        HealthConstants.BodyTemperature.TEMPERATURE
-                },
-                mListenerBodyTemperature
-
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.BloodPressure.START_TIME,
-                HealthConstants.BloodPressure.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.BloodPressure.START_TIME,
-                        HealthConstants.BloodPressure.TIME_OFFSET,
-                        HealthConstants.BloodPressure.SYSTOLIC,
-                        HealthConstants.BloodPressure.DIASTOLIC,
-                        HealthConstants.BloodPressure.MEAN,
-                        HealthConstants.BloodPressure.PULSE
-                },
-                mListenerBloodPressure
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.BloodGlucose.START_TIME,
-                HealthConstants.BloodGlucose.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.BloodGlucose.START_TIME,
-                        HealthConstants.BloodGlucose.TIME_OFFSET,
-                        HealthConstants.BloodGlucose.GLUCOSE,
-                        HealthConstants.BloodGlucose.MEAL_TIME,
-                        HealthConstants.BloodGlucose.MEAL_TYPE,
-                        HealthConstants.BloodGlucose.MEASUREMENT_TYPE,
-                        HealthConstants.BloodGlucose.SAMPLE_SOURCE_TYPE
-                },
-                mListenerBloodGlucose
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.OxygenSaturation.START_TIME,
-                HealthConstants.OxygenSaturation.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.OxygenSaturation.START_TIME,
-                        HealthConstants.OxygenSaturation.END_TIME,
-                        HealthConstants.OxygenSaturation.TIME_OFFSET,
-                        HealthConstants.OxygenSaturation.SPO2,
-                        HealthConstants.OxygenSaturation.HEART_RATE
-                },
-                mListenerOxygenSaturation
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.HbA1c.START_TIME,
-                HealthConstants.HbA1c.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.HbA1c.START_TIME,
-                        HealthConstants.HbA1c.TIME_OFFSET,
-                        HealthConstants.HbA1c.HBA1C
-                },
-                mListenerHbA1c
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.AmbientTemperature.START_TIME,
-                HealthConstants.AmbientTemperature.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.AmbientTemperature.START_TIME,
-                        HealthConstants.AmbientTemperature.TIME_OFFSET,
-                        HealthConstants.AmbientTemperature.TEMPERATURE,
-                        HealthConstants.AmbientTemperature.HUMIDITY,
-                        HealthConstants.AmbientTemperature.LATITUDE,
-                        HealthConstants.AmbientTemperature.LONGITUDE,
-                        HealthConstants.AmbientTemperature.ALTITUDE,
-                        HealthConstants.AmbientTemperature.ACCURACY
-                },
-                mListenerAmbientTemperature
-        );
-
-        readHealthConstant(
-                pStartTime,
-                pEndTime,
-                HealthConstants.UvExposure.START_TIME,
-                HealthConstants.UvExposure.HEALTH_DATA_TYPE,
-                new String[] {
-                        HealthConstants.UvExposure.START_TIME,
-                        HealthConstants.UvExposure.TIME_OFFSET,
-                        HealthConstants.UvExposure.UV_INDEX,
-                        HealthConstants.UvExposure.LATITUDE,
-                        HealthConstants.UvExposure.LONGITUDE,
-                        HealthConstants.UvExposure.ALTITUDE,
-                        HealthConstants.UvExposure.ACCURACY
-                },
-                mListenerUvExposure
-        );
+        start(pStartTime, pEndTime, new QueryOptions());
     }
 
-    /** Starts the database query for a specific {@link HealthConstants}
+    /** Initiates the database query
      *
-     * @param pStatTime     Earliest time of measurement
+     * @param pStartTime    Earliest time of measurement
      * @param pEndTime      Latest time of measurement
-     * @param hcStartTime   Enum for start time
-     * @param hcHDT
-     * @param hcString      Array of requestet attributes
-     * @param pmListener    Callback function for results
+     * @param pOptions      Paging options for the results
      */
-    private void readHealthConstant(long pStatTime, long pEndTime, String hcStartTime, String hcHDT, String[] hcString, HealthResultHolder.ResultListener<ReadResult> pmListener) {
-        HealthDataResolver resolver = new HealthDataResolver(mStore, null);
-
-        Filter filter = Filter.and(Filter.greaterThanEquals(hcStartTime, pStatTime),
-                Filter.lessThanEquals(hcStartTime, pEndTime));
-
-        HealthDataResolver.ReadRequest request = new ReadRequest.Builder()
-                .setDataType(hcHDT)
-                .setProperties(hcString)
-                .setFilter(filter)
-                .build();
-
-        try {
-            resolver.read(request).setResultListener(pmListener);
-        } catch (Exception e) {
-            Log.e(APP_TAG, e.getClass().getName() + " - " + e.getMessage());
-        }
+    public void start(long pStartTime, long pEndTime, QueryOptions pOptions) {
+        start(pStartTime, pEndTime, pOptions, callbackContext);
     }
 
-    /** Callback for  {@link HealthConstants.StepCount}
+    /** Initiates the database query, sending the results to the callback of the request
      *
+     * @param pStartTime        Earliest time of measurement
+     * @param pEndTime          Latest time of measurement
+     * @param pOptions          Paging options for the results
+     * @param pCallbackContext  Callback of the request
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerStepCount = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "StepCount").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.StepCount.START_TIME))).
-                                add("END_TIME", c.getLong(c.getColumnIndex(HealthConstants.StepCount.END_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.StepCount.TIME_OFFSET))).
-                                add("COUNT", c.getInt(c.getColumnIndex(HealthConstants.StepCount.COUNT))).
-                                add("DISTANCE", c.getFloat(c.getColumnIndex(HealthConstants.StepCount.DISTANCE))).
-                                add("CALORIE", c.getFloat(c.getColumnIndex(HealthConstants.StepCount.CALORIE))).
-                                add("SPEED", c.getFloat(c.getColumnIndex(HealthConstants.StepCount.SPEED))).
-                                add("SAMPLE_POSITION_TYPE", c.getInt(c.getColumnIndex(HealthConstants.StepCount.SAMPLE_POSITION_TYPE)))
-                        );
+    public void start(long pStartTime, long pEndTime, QueryOptions pOptions, final CallbackContext pCallbackContext) {
+        Log.d(APP_TAG,"Time: " + pStartTime + " - " + pEndTime + " - " + pOptions.requestId);
+
+        List<DataSchema> schemas = new ArrayList<DataSchema>();
+        int denied = 0;
+        for (DataSchema schema : DataSchema.all()) {
+            if (!pOptions.includesType(schema.type)) {
+                continue;
+            }
+            if (!mPermissions.isGranted(schema.hcHDT)) {
+                // The caller still gets one final message per requested type
+                Log.d(APP_TAG, "Permission denied, skipping " + schema.type);
+                sendError(pCallbackContext, "Permission not granted", schema.type, pOptions.requestId);
+                denied++;
+                continue;
+            }
+            schemas.add(schema);
+        }
+        if (schemas.isEmpty()) {
+            if (denied == 0) {
+                sendError(pCallbackContext, "Permission not granted", pOptions.requestId);
+            }
+            return;
+        }
 
-                    }
-                }
+        // A merged read is a single read of the request
+        final QueryRequest request = register(pOptions.requestId, pOptions.merge ? 1 : schemas.size(),
+                pOptions.timeout, pCallbackContext);
 
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+        if (pOptions.merge) {
+            readMerged(pStartTime, pEndTime, schemas, pOptions, pCallbackContext, request);
+            return;
+        }
+
+        for (DataSchema schema : schemas) {
+            Set<String> properties = pOptions.getProperties(schema.type);
+            if (properties != null && pOptions.isDownsampled(schema)) {
+                // The reduced column has to be read even if it was not requested
+                properties = new HashSet<String>(properties);
+                properties.add(DownsampleSink.getValueColumn(schema, pOptions).key);
             }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+            String[] hcString = schema.project(properties, pOptions.incremental);
+            if (pOptions.routes && schema.getColumn("LOCATION_DATA") != null) {
+                hcString = withColumn(hcString, HealthConstants.Exercise.LOCATION_DATA);
+            }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+            readHealthConstant(
+                    pStartTime,
+                    pEndTime,
+                    schema,
+                    hcString,
+                    pOptions,
+                    pCallbackContext,
+                    request
+            );
         }
-    };
+    }
 
-    /** Callback for  {@link HealthConstants.Exercise}
+    /** Creates a request that can be cancelled by its id and times out
      *
+     * @param requestId     Id of the request, may be null
+     * @param reads         Number of reads that belong to the request
+     * @param timeout       Milliseconds after which the request is cancelled, 0 for none
+     * @param target        Callback of the request, receives the timeout error
+     * @return              The request
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerExercise = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "Sleep").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.Exercise.START_TIME))).
-                                add("END_TIME", c.getLong(c.getColumnIndex(HealthConstants.Exercise.END_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.Exercise.TIME_OFFSET))).
-                                add("CALORIE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.CALORIE))).
-                                add("DURATION", c.getLong(c.getColumnIndex(HealthConstants.Exercise.DURATION))).
-                                add("EXERCISE_TYPE", c.getInt(c.getColumnIndex(HealthConstants.Exercise.EXERCISE_TYPE))).
-                                add("EXERCISE_CUSTOM_TYPE", c.getInt(c.getColumnIndex(HealthConstants.Exercise.EXERCISE_CUSTOM_TYPE))).
-                                add("DISTANCE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.DISTANCE))).
-                                add("ALTITUDE_GAIN", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.ALTITUDE_GAIN))).
-                                add("ALTITUDE_LOSS", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.ALTITUDE_LOSS))).
-                                add("COUNT", c.getInt(c.getColumnIndex(HealthConstants.Exercise.COUNT))).
-                                add("COUNT_TYPE", c.getInt(c.getColumnIndex(HealthConstants.Exercise.COUNT_TYPE))).
-                                add("MAX_SPEED", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MAX_SPEED))).
-                                add("MEAN_SPEED", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MEAN_SPEED))).
-                                add("MAX_CALORICBURN_RATE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MAX_CALORICBURN_RATE))).
-                                add("MEAN_CALORICBURN_RATE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MEAN_CALORICBURN_RATE))).
-                                add("MAX_CADENCE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MAX_CADENCE))).
-                                add("MEAN_CADENCE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MEAN_CADENCE))).
-                                add("MAX_HEART_RATE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MAX_HEART_RATE))).
-                                add("MEAN_HEART_RATE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MEAN_HEART_RATE))).
-                                add("MIN_HEART_RATE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MIN_HEART_RATE))).
-                                add("MAX_ALTITUDE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MAX_ALTITUDE))).
-                                add("MIN_ALTITUDE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MIN_ALTITUDE))).
-                                add("INCLINE_DISTANCE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.INCLINE_DISTANCE))).
-                                add("DECLINE_DISTANCE", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.DECLINE_DISTANCE))).
-                                add("MAX_POWER", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MAX_POWER))).
-                                add("MEAN_POWER", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MEAN_POWER))).
-                                add("MEAN_RPM", c.getFloat(c.getColumnIndex(HealthConstants.Exercise.MEAN_RPM)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+    private QueryRequest register(String requestId, int reads, long timeout, final CallbackContext target) {
+        final QueryRequest request = new QueryRequest(requestId, reads);
+        if (requestId != null) {
+            synchronized (mRequests) {
+                mRequests.put(requestId, request);
             }
+        }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
-
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        if (timeout > 0) {
+            Runnable timer = new Runnable() {
+                @Override
+                public void run() {
+                    if (request.cancel()) {
+                        Log.d(APP_TAG, "Request timed out - " + request.requestId);
+                        forget(request);
+                        sendError(target, "Request timed out", request.requestId);
+                    }
+                }
+            };
+            request.setTimer(timer);
+            HealthThread.getHandler().postDelayed(timer, timeout);
         }
-    };
+        return request;
+    }
 
-    /** Callback for  {@link HealthConstants.Sleep}
+    /** Reads the data types as one stream ordered by start time, see {@link MergedRead}
+     *
+     * The merged read reserves one slot of the {@link ReadScheduler} per data type, up
+     * to maxConcurrentReads, and never has more page requests pending than it reserved.
+     * Rows are always sent as JSON, pages have the TYPE "Timeline".
      *
+     * @param pStartTime        Earliest time of measurement
+     * @param pEndTime          Latest time of measurement
+     * @param schemas           The data types
+     * @param pOptions          Options of the query
+     * @param target            Callback of the request
+     * @param request           The request the read belongs to
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerSleep = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "Sleep").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.Sleep.START_TIME))).
-                                add("END_TIME", c.getLong(c.getColumnIndex(HealthConstants.Sleep.END_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.Sleep.TIME_OFFSET)))
-                        );
-                    }
+    private void readMerged(final long pStartTime, final long pEndTime, final List<DataSchema> schemas,
+                            final QueryOptions pOptions, final CallbackContext target, final QueryRequest request) {
+        final QueryOptions readOptions = new QueryOptions();
+        readOptions.readPageSize = pOptions.readPageSize > 0 ? pOptions.readPageSize : MERGE_PAGE_SIZE;
+        final int slots = ReadScheduler.slots(pOptions.maxConcurrentReads, schemas.size());
+
+        mScheduler.submit(new ReadScheduler.Task() {
+            @Override
+            public boolean start(final Runnable done) {
+                if (request.isCancelled()) {
+                    requestFinished(request);
+                    return false;
                 }
-            } finally {
-                if (c != null) {
-                    c.close();
+
+                final MergedRead read = new MergedRead(mStore, readOptions, new ResultEmitter(target, "Timeline", pOptions))
+                        .setRequest(request)
+                        .setMaxConcurrentReads(slots);
+                read.setOnFinished(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!read.isComplete() && !request.isCancelled()) {
+                            String type = read.getFailedType();
+                            sendError(target, "Reading " + type + " failed", type, request.requestId);
+                        }
+                        done.run();
+                        requestFinished(request);
+                    }
+                });
+
+                for (DataSchema schema : schemas) {
+                    String[] hcString = schema.project(pOptions.getProperties(schema.type), false);
+                    if (pOptions.routes && schema.getColumn("LOCATION_DATA") != null) {
+                        hcString = withColumn(hcString, HealthConstants.Exercise.LOCATION_DATA);
+                    }
+                    read.add(schema, hcString, pStartTime, pEndTime);
                 }
-            }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+                read.start();
+                return true;
+            }
+        }, 0, pOptions.maxConcurrentReads, slots);
+    }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+    private static String[] withColumn(String[] hcString, String name) {
+        for (String column : hcString) {
+            if (column.equals(name)) {
+                return hcString;
+            }
         }
-    };
 
-    /** Callback for  {@link HealthConstants.SleepStage}
+        String[] extended = Arrays.copyOf(hcString, hcString.length + 1);
+        extended[hcString.length] = name;
+        return extended;
+    }
+
+    /** Stops a running query, rows that were not sent yet are dropped
      *
+     * @param requestId     Id of the request
+     * @return              False if there is no running request with the id
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerSleepStage = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "Sleep").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.SleepStage.START_TIME))).
-                                add("END_TIME", c.getLong(c.getColumnIndex(HealthConstants.SleepStage.END_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.SleepStage.TIME_OFFSET))).
-                                add("SLEEP_ID", c.getString(c.getColumnIndex(HealthConstants.SleepStage.SLEEP_ID))).
-                                add("STAGE", c.getInt(c.getColumnIndex(HealthConstants.SleepStage.STAGE)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
-            }
+    public boolean cancel(String requestId) {
+        QueryRequest request;
+        synchronized (mRequests) {
+            request = mRequests.remove(requestId);
+        }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+        if (request == null || !request.cancel()) {
+            return false;
+        }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        Log.d(APP_TAG, "Request cancelled - " + requestId);
+        return true;
+    }
+
+    /** Counts a finished read and forgets the request after its last read
+     *
+     * @param request   The request
+     */
+    private void requestFinished(QueryRequest request) {
+        if (request.readFinished()) {
+            forget(request);
         }
-    };
+    }
 
-    /** Callback for  {@link HealthConstants.FoodIntake}
+    /** Sends an error of a query
      *
+     * @param target        Callback of the request
+     * @param message       The message
+     * @param requestId     Id of the request, may be null
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerFoodIntake = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "FoodIntake").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.FoodIntake.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.FoodIntake.TIME_OFFSET))).
-                                add("CALORIE", c.getFloat(c.getColumnIndex(HealthConstants.FoodIntake.CALORIE))).
-                                add("FOOD_INFO_ID", c.getString(c.getColumnIndex(HealthConstants.FoodIntake.FOOD_INFO_ID))).
-                                add("AMOUNT", c.getFloat(c.getColumnIndex(HealthConstants.FoodIntake.AMOUNT))).
-                                add("UNIT", c.getString(c.getColumnIndex(HealthConstants.FoodIntake.UNIT))).
-                                add("NAME", c.getString(c.getColumnIndex(HealthConstants.FoodIntake.NAME))).
-                                add("MEAL_TYPE", c.getInt(c.getColumnIndex(HealthConstants.FoodIntake.MEAL_TYPE)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
-            }
+    private void sendError(CallbackContext target, String message, String requestId) {
+        sendError(target, message, null, requestId);
+    }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+    /** Sends an error of one data type of a query
+     *
+     * @param target        Callback of the request
+     * @param message       The message
+     * @param dataType      Name of the data type, written as DATA_TYPE, may be null
+     * @param requestId     Id of the request, may be null
+     */
+    private void sendError(CallbackContext target, String message, String dataType, String requestId) {
+        StringBuilder out = new StringBuilder("{\"TYPE\":\"ERROR\",\"MESSAGE\":");
+        JsonText.appendString(out, message);
+        if (dataType != null) {
+            out.append(",\"DATA_TYPE\":");
+            JsonText.appendString(out, dataType);
+        }
+        if (requestId != null) {
+            out.append(",\"REQUEST_ID\":");
+            JsonText.appendString(out, requestId);
+        }
+        out.append('}');
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, out.toString());
+        pluginResult.setKeepCallback(true);
+        target.sendPluginResult(pluginResult);
+    }
+
+    private void forget(QueryRequest request) {
+        synchronized (mRequests) {
+            if (request.requestId != null && mRequests.get(request.requestId) == request) {
+                mRequests.remove(request.requestId);
+            }
         }
-    };
 
-    /** Callback for  {@link HealthConstants.WaterIntake}
+        // A finished request neither times out nor can be cancelled
+        Runnable timer = request.finish();
+        if (timer != null) {
+            HealthThread.getHandler().removeCallbacks(timer);
+        }
+    }
+
+    /** Forgets how far incremental reads got
      *
+     * @param types     Names of the data types, or null for all types
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerWaterIntake = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "WaterIntake").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.WaterIntake.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.WaterIntake.TIME_OFFSET))).
-                                add("AMOUNT", c.getFloat(c.getColumnIndex(HealthConstants.WaterIntake.AMOUNT))).
-                                add("UNIT_AMOUNT", c.getFloat(c.getColumnIndex(HealthConstants.WaterIntake.UNIT_AMOUNT)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
-            }
-
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+    public void resetSync(Set<String> types) {
+        if (types == null) {
+            mSyncState.clear();
+            return;
+        }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        for (String type : types) {
+            mSyncState.remove(type);
         }
-    };
+    }
 
-    /** Callback for  {@link HealthConstants.CaffeineIntake}
+    /** Pushes new rows of the data types whenever they change in S Health
+     *
+     * A data type that is already subscribed is moved to the new callback.
      *
+     * @param pOptions          Types, properties and format of the pushed rows
+     * @param pCallbackContext  Keep-alive callback receiving the rows
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerCaffeineIntake = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "CaffeineIntake").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.CaffeineIntake.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.CaffeineIntake.TIME_OFFSET))).
-                                add("AMOUNT", c.getFloat(c.getColumnIndex(HealthConstants.CaffeineIntake.AMOUNT))).
-                                add("UNIT_AMOUNT", c.getString(c.getColumnIndex(HealthConstants.CaffeineIntake.UNIT_AMOUNT)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+    public void subscribe(QueryOptions pOptions, CallbackContext pCallbackContext) {
+        pOptions.incremental = true;
+
+        for (DataSchema schema : DataSchema.all()) {
+            if (!pOptions.includesType(schema.type) || !mPermissions.isGranted(schema.hcHDT)) {
+                continue;
             }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+            ChangeSubscription subscription = new ChangeSubscription(mStore, schema, pOptions, pCallbackContext);
+            ChangeSubscription previous;
+            synchronized (mSubscriptions) {
+                previous = mSubscriptions.put(schema.type, subscription);
+            }
+            if (previous != null) {
+                previous.unregister();
+            }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+            Log.d(APP_TAG, "subscribe " + schema.type);
+            subscription.register();
         }
-    };
+    }
 
-    /** Callback for  {@link HealthConstants.HeartRate}
+    /** Stops pushing changes of the data types
      *
+     * @param types     Names of the data types, or null for all types
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerHeartRate = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "HeartRate").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.HeartRate.START_TIME))).
-                                add("END_TIME", c.getLong(c.getColumnIndex(HealthConstants.HeartRate.END_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.HeartRate.TIME_OFFSET))).
-                                add("HEART_RATE", c.getFloat(c.getColumnIndex(HealthConstants.HeartRate.HEART_RATE))).
-                                add("HEART_BEAT_COUNT", c.getInt(c.getColumnIndex(HealthConstants.HeartRate.HEART_BEAT_COUNT)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
+    public void unsubscribe(Set<String> types) {
+        List<ChangeSubscription> removed = new ArrayList<ChangeSubscription>();
+
+        synchronized (mSubscriptions) {
+            Iterator<Map.Entry<String, ChangeSubscription>> it = mSubscriptions.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, ChangeSubscription> entry = it.next();
+                if (types == null || types.contains(entry.getKey())) {
+                    removed.add(entry.getValue());
+                    it.remove();
                 }
             }
+        }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
-
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        for (ChangeSubscription subscription : removed) {
+            subscription.unregister();
         }
-    };
+    }
 
-    /** Callback for  {@link HealthConstants.BodyTemperature}
+    /** Restores the observers after S Health reconnected
      *
+     * Changes made while disconnected were not observed, so the cache is dropped.
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerBodyTemperature = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "BodyTemperature").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.BodyTemperature.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.BodyTemperature.TIME_OFFSET))).
-                                add("TEMPERATURE", c.getFloat(c.getColumnIndex(HealthConstants.BodyTemperature.TEMPERATURE)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
-            }
+    public void onReconnected() {
+        mCache.reset();
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+        List<ChangeSubscription> subscriptions;
+        synchronized (mSubscriptions) {
+            subscriptions = new ArrayList<ChangeSubscription>(mSubscriptions.values());
+        }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        for (ChangeSubscription subscription : subscriptions) {
+            subscription.register();
         }
-    };
+    }
 
-    /** Callback for  {@link HealthConstants.BloodPressure}
+    /** Aggregates a data type into time groups
      *
+     * @param pStartTime        Earliest time of measurement
+     * @param pEndTime          Latest time of measurement
+     * @param pQuery            What to aggregate
+     * @param pCallbackContext  Callback of the request
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerBloodPressure = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "BloodPressure").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.BloodPressure.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.BloodPressure.TIME_OFFSET))).
-                                add("SYSTOLIC", c.getFloat(c.getColumnIndex(HealthConstants.BloodPressure.SYSTOLIC))).
-                                add("DIASTOLIC", c.getFloat(c.getColumnIndex(HealthConstants.BloodPressure.DIASTOLIC))).
-                                add("MEAN", c.getFloat(c.getColumnIndex(HealthConstants.BloodPressure.MEAN))).
-                                add("PULSE", c.getInt(c.getColumnIndex(HealthConstants.BloodPressure.PULSE)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
+    public void aggregate(final long pStartTime, final long pEndTime, final AggregateQuery pQuery,
+                          final CallbackContext pCallbackContext) {
+        Log.d(APP_TAG,"Aggregate " + pQuery.schema.type + " " + pQuery.timeUnit + ": " + pStartTime + " - " + pEndTime);
+
+        if (!mPermissions.isGranted(pQuery.schema.hcHDT)) {
+            sendError(pCallbackContext, "Permission not granted", pQuery.schema.type, pQuery.requestId);
+            return;
+        }
+
+        final QueryRequest request = register(pQuery.requestId, 1, pQuery.timeout, pCallbackContext);
+        mScheduler.submit(new ReadScheduler.Task() {
+            @Override
+            public boolean start(final Runnable done) {
+                if (request.isCancelled()) {
+                    requestFinished(request);
+                    return false;
                 }
-            }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+                new Aggregator(mStore, pCallbackContext)
+                        .setRequest(request)
+                        .setOnFinished(new Runnable() {
+                            @Override
+                            public void run() {
+                                done.run();
+                                requestFinished(request);
+                            }
+                        })
+                        .aggregate(pStartTime, pEndTime, pQuery);
+                return true;
+            }
+        }, 0, pQuery.maxConcurrentReads);
+    }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+    /** Reads sleep sessions with their stage timelines
+     *
+     * @param pStartTime        Earliest time of measurement
+     * @param pEndTime          Latest time of measurement
+     * @param pOptions          Id, timeout and maxConcurrentReads of the request
+     * @param pCallbackContext  Callback of the request
+     */
+    public void getSleepSessions(final long pStartTime, final long pEndTime, final QueryOptions pOptions,
+                                 final CallbackContext pCallbackContext) {
+        Log.d(APP_TAG,"Sleep sessions: " + pStartTime + " - " + pEndTime);
+
+        if (!mPermissions.isGranted(HealthConstants.Sleep.HEALTH_DATA_TYPE)
+                || !mPermissions.isGranted(HealthConstants.SleepStage.HEALTH_DATA_TYPE)) {
+            sendError(pCallbackContext, "Permission not granted", pOptions.requestId);
+            return;
         }
-    };
 
-    /** Callback for  {@link HealthConstants.BloodGlucose}
+        final QueryRequest request = register(pOptions.requestId, 1, pOptions.timeout, pCallbackContext);
+        mScheduler.submit(new ReadScheduler.Task() {
+            @Override
+            public boolean start(final Runnable done) {
+                if (request.isCancelled()) {
+                    requestFinished(request);
+                    return false;
+                }
+
+                new SleepSessions(mStore, pCallbackContext, pOptions.requestId)
+                        .setRequest(request)
+                        .setOnFinished(new Runnable() {
+                            @Override
+                            public void run() {
+                                done.run();
+                                requestFinished(request);
+                            }
+                        })
+                        .read(pStartTime, pEndTime);
+                return true;
+            }
+        }, 0, pOptions.maxConcurrentReads);
+    }
+
+    /** Computes derived metrics without sending the rows, see {@link MetricsEngine}
      *
+     * @param pStartTime        Earliest time of measurement
+     * @param pEndTime          Latest time of measurement
+     * @param pQuery            The metrics to compute
+     * @param pCallbackContext  Callback of the request
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerBloodGlucose = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "BloodGlucose").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.BloodGlucose.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.BloodGlucose.TIME_OFFSET))).
-                                add("GLUCOSE", c.getFloat(c.getColumnIndex(HealthConstants.BloodGlucose.GLUCOSE))).
-                                add("MEAL_TIME", c.getLong(c.getColumnIndex(HealthConstants.BloodGlucose.MEAL_TIME))).
-                                add("MEAL_TYPE", c.getInt(c.getColumnIndex(HealthConstants.BloodGlucose.MEAL_TYPE))).
-                                add("MEASUREMENT_TYPE", c.getInt(c.getColumnIndex(HealthConstants.BloodGlucose.MEASUREMENT_TYPE))).
-                                add("SAMPLE_SOURCE_TYPE", c.getInt(c.getColumnIndex(HealthConstants.BloodGlucose.SAMPLE_SOURCE_TYPE)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+    public void computeMetrics(final long pStartTime, final long pEndTime, final MetricsQuery pQuery,
+                               final CallbackContext pCallbackContext) {
+        Log.d(APP_TAG,"Metrics " + pQuery.metrics + ": " + pStartTime + " - " + pEndTime);
+
+        for (String dataType : pQuery.getDataTypes()) {
+            if (!mPermissions.isGranted(dataType)) {
+                sendError(pCallbackContext, "Permission not granted", pQuery.requestId);
+                return;
             }
+        }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+        // The engine reads its data types side by side, one slot per concurrent read
+        final QueryRequest request = register(pQuery.requestId, 1, pQuery.timeout, pCallbackContext);
+        int reads = pQuery.getDataTypes().size();
+        mScheduler.submit(new ReadScheduler.Task() {
+            @Override
+            public boolean start(final Runnable done) {
+                if (request.isCancelled()) {
+                    requestFinished(request);
+                    return false;
+                }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
-        }
-    };
+                new MetricsEngine(mStore, pCallbackContext, pQuery)
+                        .setRequest(request)
+                        .setOnFinished(new Runnable() {
+                            @Override
+                            public void run() {
+                                done.run();
+                                requestFinished(request);
+                            }
+                        })
+                        .compute(pStartTime, pEndTime);
+                return true;
+            }
+        }, 0, pQuery.maxConcurrentReads, ReadScheduler.slots(pQuery.maxConcurrentReads, reads));
+    }
 
-    /** Callback for  {@link HealthConstants.OxygenSaturation}
+    /** Starts the database query for a specific {@link HealthConstants}
      *
+     * @param pStatTime     Earliest time of measurement
+     * @param pEndTime      Latest time of measurement
+     * @param schema        Schema of the data type
+     * @param hcString      Array of requestet attributes
+     * @param options       Options of the query
+     * @param target        Callback of the request
+     * @param request       The request the read belongs to
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerOxygenSaturation = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "OxygenSaturation").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.OxygenSaturation.START_TIME))).
-                                add("END_TIME", c.getLong(c.getColumnIndex(HealthConstants.OxygenSaturation.END_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.OxygenSaturation.TIME_OFFSET))).
-                                add("SPO2", c.getFloat(c.getColumnIndex(HealthConstants.OxygenSaturation.SPO2))).
-                                add("HEART_RATE", c.getFloat(c.getColumnIndex(HealthConstants.OxygenSaturation.HEART_RATE)))
-                        );
-                    }
+    private void readHealthConstant(final long pStatTime, final long pEndTime, final DataSchema schema,
+                                    final String[] hcString, final QueryOptions options, final CallbackContext target,
+                                    final QueryRequest request) {
+        mScheduler.submit(new ReadScheduler.Task() {
+            @Override
+            public boolean start(final Runnable done) {
+                if (request.isCancelled()) {
+                    requestFinished(request);
+                    return false;
                 }
-            } finally {
-                if (c != null) {
-                    c.close();
+
+                // The sink is only created once the read may run, queued reads hold no buffers
+                ResultSink sink = options.isBinary()
+                        ? new BinaryEmitter(target, schema, options)
+                        : new ResultEmitter(target, schema, options);
+                if (options.isDownsampled(schema)) {
+                    sink = new DownsampleSink(sink, schema, options, pStatTime, pEndTime);
                 }
-            }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+                if (options.isMirror()) {
+                    readMirror(schema, hcString, pStatTime, pEndTime, sink, request);
+                    done.run();
+                    requestFinished(request);
+                    return true;
+                }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
-        }
-    };
+                if (options.cache && !options.incremental) {
+                    mCache.watch(schema);
+                    final CachedRead cached = new CachedRead(mCache, mStore, schema, hcString, options, sink)
+                            .setRequest(request);
+                    cached.setOnFinished(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!cached.isComplete() && !request.isCancelled()) {
+                                sendError(target, "Reading " + schema.type + " failed", schema.type, request.requestId);
+                            }
+                            done.run();
+                            requestFinished(request);
+                        }
+                    }).start(pStatTime, pEndTime);
+                    return true;
+                }
 
-    /** Callback for  {@link HealthConstants.HbA1c}
-     *
-     */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerHbA1c = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "HbA1c").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.HbA1c.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.HbA1c.TIME_OFFSET))).
-                                add("HBA1C", c.getFloat(c.getColumnIndex(HealthConstants.HbA1c.HBA1C)))
-                        );
-                    }
+                if (options.splitRows > 0 && !options.incremental) {
+                    final SplitRead split = new SplitRead(mStore, schema, hcString, options, sink)
+                            .setRequest(request);
+                    split.setOnFinished(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!split.isComplete() && !request.isCancelled()) {
+                                sendError(target, "Reading " + schema.type + " failed", schema.type, request.requestId);
+                            }
+                            done.run();
+                            requestFinished(request);
+                        }
+                    }).start(pStatTime, pEndTime);
+                    return true;
                 }
-            } finally {
-                if (c != null) {
-                    c.close();
+
+                PagedRead read = new PagedRead(mStore, schema, hcString, pStatTime, pEndTime, options, sink,
+                        options.incremental ? mSyncState.get(schema.type) : null);
+
+                read.setOrdered(options.isDownsampled(schema)).setRequest(request).setListener(new PagedRead.Listener() {
+                    @Override
+                    public void onReadFinished(PagedRead read) {
+                        // A cancelled or failed read dropped rows, its mark must not be stored
+                        if (!read.isComplete()) {
+                            if (!request.isCancelled()) {
+                                sendError(target, "Reading " + schema.type + " failed", schema.type, request.requestId);
+                            }
+                        } else if (options.incremental) {
+                            mSyncListener.onReadFinished(read);
+                        } else {
+                            // Teaches the split planner how dense the data type is
+                            SplitRead.learn(schema.type, read.getRowCount(), pStatTime, pEndTime);
+                        }
+                        done.run();
+                        requestFinished(request);
+                    }
+                });
+
+                if (!read.requestPage()) {
+                    if (!request.isCancelled()) {
+                        sendError(target, "Reading " + schema.type + " failed", schema.type, request.requestId);
+                    }
+                    requestFinished(request);
+                    return false;
                 }
+                return true;
             }
+        }, options.getPriority(schema.type), options.maxConcurrentReads);
+    }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+    /** Sends the rows of a time window from the {@link LocalMirror}
+     *
+     * @param schema        Schema of the data type
+     * @param hcString      Array of requested attributes
+     * @param pStartTime    Earliest time of measurement
+     * @param pEndTime      Latest time of measurement
+     * @param sink          Receives the rows
+     * @param request       The request the read belongs to
+     */
+    private void readMirror(DataSchema schema, String[] hcString, long pStartTime, long pEndTime,
+                            ResultSink sink, QueryRequest request) {
+        Cursor c = null;
+        try {
+            c = LocalMirror.getInstance(activity).query(schema, hcString, pStartTime, pEndTime);
+            sink.open(c);
+            while (c.moveToNext() && !request.isCancelled()) {
+                sink.addRow(c);
+            }
+        } catch (SQLiteException e) {
+            Log.e(APP_TAG, "readMirror " + schema.type + " - " + e.getMessage());
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        if (!request.isCancelled()) {
+            sink.finish();
         }
-    };
+    }
 
-    /** Callback for  {@link HealthConstants.AmbientTemperature}
+    /** Copies the rows added or changed since the last sync into the {@link LocalMirror}
+     *
+     * Sends <code>{"TYPE":"MIRROR","DATA_TYPE":..,"ROWS":n,"COMPLETE":true}</code> per data type.
      *
+     * @param pOptions          Types to sync and readPageSize
+     * @param reset             Clear the mirror of the types first and read them again
+     * @param pCallbackContext  Callback receiving the progress
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerAmbientTemperature = new HealthResultHolder.ResultListener<ReadResult>() {
-        @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "AmbientTemperature").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.AmbientTemperature.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.AmbientTemperature.TIME_OFFSET))).
-                                add("TEMPERATURE", c.getFloat(c.getColumnIndex(HealthConstants.AmbientTemperature.TEMPERATURE))).
-                                add("HUMIDITY", c.getFloat(c.getColumnIndex(HealthConstants.AmbientTemperature.HUMIDITY))).
-                                add("LATITUDE", c.getFloat(c.getColumnIndex(HealthConstants.AmbientTemperature.LATITUDE))).
-                                add("LONGITUDE", c.getFloat(c.getColumnIndex(HealthConstants.AmbientTemperature.LONGITUDE))).
-                                add("ALTITUDE", c.getFloat(c.getColumnIndex(HealthConstants.AmbientTemperature.ALTITUDE))).
-                                add("ACCURACY", c.getFloat(c.getColumnIndex(HealthConstants.AmbientTemperature.ACCURACY)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+    public void syncMirror(QueryOptions pOptions, boolean reset, final CallbackContext pCallbackContext) {
+        final LocalMirror mirror = LocalMirror.getInstance(activity);
+
+        final QueryOptions readOptions = new QueryOptions();
+        readOptions.incremental = true;
+        readOptions.readPageSize = pOptions.readPageSize > 0 ? pOptions.readPageSize : MIRROR_PAGE_SIZE;
+
+        for (final DataSchema schema : DataSchema.all()) {
+            if (!pOptions.includesType(schema.type) || !mPermissions.isGranted(schema.hcHDT)) {
+                continue;
             }
 
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
+            if (reset) {
+                try {
+                    mirror.clear(schema);
+                } catch (SQLiteException e) {
+                    Log.e(APP_TAG, "syncMirror " + schema.type + " - " + e.getMessage());
+                }
+            }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+            mScheduler.submit(new ReadScheduler.Task() {
+                @Override
+                public boolean start(final Runnable done) {
+                    final MirrorSink sink = new MirrorSink(mirror, schema);
+                    PagedRead read = new PagedRead(mStore, schema, mirror.getColumns(schema), 0, Long.MAX_VALUE,
+                            readOptions, sink, mirror.getSyncState().get(schema.type));
+
+                    read.setListener(new PagedRead.Listener() {
+                        @Override
+                        public void onReadFinished(PagedRead read) {
+                            boolean complete = read.isComplete() && !sink.isFailed();
+                            SyncState.Watermark newest = read.getNewest();
+                            if (complete && newest != null) {
+                                mirror.getSyncState().put(schema.type, newest);
+                            }
+
+                            Log.d(APP_TAG, "syncMirror " + schema.type + " - " + sink.getRowCount() + " rows");
+                            sendMirrorResult(pCallbackContext, schema, sink.getRowCount(), complete);
+                            done.run();
+                        }
+                    });
+
+                    if (!read.requestPage()) {
+                        sendMirrorResult(pCallbackContext, schema, 0, false);
+                        return false;
+                    }
+                    return true;
+                }
+            }, pOptions.getPriority(schema.type), pOptions.maxConcurrentReads);
         }
-    };
+    }
+
+    private void sendMirrorResult(CallbackContext target, DataSchema schema, int rows, boolean complete) {
+        StringBuilder message = new StringBuilder("{\"TYPE\":\"MIRROR\",\"DATA_TYPE\":");
+        JsonText.appendString(message, schema.type);
+        message.append(",\"ROWS\":").append(rows).append(",\"COMPLETE\":").append(complete).append('}');
+
+        PluginResult pluginResult = new PluginResult(complete ? PluginResult.Status.OK : PluginResult.Status.ERROR, message.toString());
+        pluginResult.setKeepCallback(true);
+        target.sendPluginResult(pluginResult);
+    }
 
-    /** Callback for  {@link HealthConstants.UvExposure}
+    /** Stores the mark of the newest row once an incremental read is done
      *
      */
-    private final HealthResultHolder.ResultListener<ReadResult> mListenerUvExposure = new HealthResultHolder.ResultListener<ReadResult>() {
+    private final PagedRead.Listener mSyncListener = new PagedRead.Listener() {
         @Override
-        public void onResult(ReadResult result) {
-            Cursor c = null;
-            JsonArrayBuilder array = Json.createArrayBuilder();
-
-            try {
-                c = result.getResultCursor();
-
-                if (c != null) {
-                    while (c.moveToNext()) {
-                        array.add(Json.createObjectBuilder().
-                                add("TYPE", "UvExposure").
-                                add("START_TIME", c.getLong(c.getColumnIndex(HealthConstants.UvExposure.START_TIME))).
-                                add("TIME_OFFSET", c.getLong(c.getColumnIndex(HealthConstants.UvExposure.TIME_OFFSET))).
-                                add("UV_INDEX", c.getFloat(c.getColumnIndex(HealthConstants.UvExposure.UV_INDEX))).
-                                add("LATITUDE", c.getFloat(c.getColumnIndex(HealthConstants.UvExposure.LATITUDE))).
-                                add("LONGITUDE", c.getFloat(c.getColumnIndex(HealthConstants.UvExposure.LONGITUDE))).
-                                add("ALTITUDE", c.getFloat(c.getColumnIndex(HealthConstants.UvExposure.ALTITUDE))).
-                                add("ACCURACY", c.getFloat(c.getColumnIndex(HealthConstants.UvExposure.ACCURACY)))
-                        );
-                    }
-                }
-            } finally {
-                if (c != null) {
-                    c.close();
-                }
+        public void onReadFinished(PagedRead read) {
+            SyncState.Watermark newest = read.getNewest();
+            if (newest != null) {
+                mSyncState.put(read.getSchema().type, newest);
             }
-
-            JsonArray jsonarr = array.build();
-            Log.d(APP_TAG, jsonarr.toString());
-
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, jsonarr.toString());
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
         }
     };
-
 }
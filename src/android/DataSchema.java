@@ -0,0 +1,290 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/** Describes a {@link HealthConstants} data type and the columns that are read from it.
+ *
+ * Every data type the plugin can read is registered here. The results use the
+ * type name as "TYPE" and the upper case column names as keys, e.g.
+ * <code>{"TYPE":"HeartRate","START_TIME":..,"HEART_RATE":..}</code>.
+ * UUID and UPDATE_TIME exist for every type but are only read on request.
+ */
+public class DataSchema {
+
+    /** How a column is read from the cursor */
+    public enum Kind {
+        LONG, INT, FLOAT, STRING, BLOB
+    }
+
+    /** A column of a data type
+     *
+     */
+    public static class Column {
+        public final String name;
+        public final String key;
+        public final Kind kind;
+        public final boolean optional;
+
+        Column(String pName, Kind pKind, boolean pOptional) {
+            name = pName;
+            key = pName.toUpperCase(Locale.US);
+            kind = pKind;
+            optional = pOptional;
+        }
+
+        /** Returns true if the column holds numbers that can be summed
+         *
+         * @return  Whether the column is numeric
+         */
+        public boolean isNumeric() {
+            return kind == Kind.LONG || kind == Kind.INT || kind == Kind.FLOAT;
+        }
+    }
+
+    private static final Map<String, DataSchema> SCHEMAS = new LinkedHashMap<String, DataSchema>();
+
+    public final String type;
+    public final String hcHDT;
+    public final String hcStartTime;
+
+    private final List<Column> columns = new ArrayList<Column>();
+
+    /** Default Constructor.
+     *
+     * @param pType         Name of the data type used in the results, e.g. "StepCount"
+     * @param pHcHDT        Enum for the health data type
+     * @param pHcStartTime  Enum for start time
+     */
+    DataSchema(String pType, String pHcHDT, String pHcStartTime) {
+        type = pType;
+        hcHDT = pHcHDT;
+        hcStartTime = pHcStartTime;
+    }
+
+    private DataSchema column(String name, Kind kind) {
+        columns.add(new Column(name, kind, false));
+        return this;
+    }
+
+    // Optional columns are only read if they are requested by name
+    private DataSchema optionalColumn(String name, Kind kind) {
+        columns.add(new Column(name, kind, true));
+        return this;
+    }
+
+    private static void register(DataSchema schema) {
+        schema.optionalColumn(HealthConstants.Common.UUID, Kind.STRING)
+                .optionalColumn(HealthConstants.Common.UPDATE_TIME, Kind.LONG);
+
+        SCHEMAS.put(schema.type, schema);
+    }
+
+    /** Returns the schema of a data type
+     *
+     * @param type  Name of the data type, e.g. "StepCount"
+     * @return      The schema or null if the type is unknown
+     */
+    public static DataSchema get(String type) {
+        return SCHEMAS.get(type);
+    }
+
+    /** Returns all registered schemas, in the order they are read
+     *
+     * @return  All schemas
+     */
+    public static Collection<DataSchema> all() {
+        return Collections.unmodifiableCollection(SCHEMAS.values());
+    }
+
+    /** Returns all columns of the data type
+     *
+     * @return  The columns
+     */
+    public List<Column> getColumns() {
+        return Collections.unmodifiableList(columns);
+    }
+
+    /** Returns a column by its key
+     *
+     * @param key   Property name as used in the results, e.g. "COUNT"
+     * @return      The column or null if the type has no such property
+     */
+    public Column getColumn(String key) {
+        for (Column column : columns) {
+            if (column.key.equals(key)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the attributes to request for the given property names
+     *
+     * The start time is always requested, unknown names are ignored.
+     *
+     * @param properties    Property names as used in the results, e.g. "COUNT", or null for all
+     *                      columns that are not optional
+     * @param sync          True to add UUID and UPDATE_TIME, as needed for incremental reads
+     * @return              Array of attributes for the read request
+     */
+    public String[] project(Set<String> properties, boolean sync) {
+        List<String> names = new ArrayList<String>();
+        for (Column column : columns) {
+            boolean requested = properties == null ? !column.optional : properties.contains(column.key);
+            boolean syncColumn = column.name.equals(HealthConstants.Common.UUID)
+                    || column.name.equals(HealthConstants.Common.UPDATE_TIME);
+
+            if (requested || column.name.equals(hcStartTime) || (sync && syncColumn)) {
+                names.add(column.name);
+            }
+        }
+
+        return names.toArray(new String[names.size()]);
+    }
+
+    static {
+        register(new DataSchema("StepCount", HealthConstants.StepCount.HEALTH_DATA_TYPE, HealthConstants.StepCount.START_TIME)
+                .column(HealthConstants.StepCount.START_TIME, Kind.LONG)
+                .column(HealthConstants.StepCount.END_TIME, Kind.LONG)
+                .column(HealthConstants.StepCount.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.StepCount.COUNT, Kind.INT)
+                .column(HealthConstants.StepCount.DISTANCE, Kind.FLOAT)
+                .column(HealthConstants.StepCount.CALORIE, Kind.FLOAT)
+                .column(HealthConstants.StepCount.SPEED, Kind.FLOAT)
+                .column(HealthConstants.StepCount.SAMPLE_POSITION_TYPE, Kind.INT));
+
+        register(new DataSchema("Exercise", HealthConstants.Exercise.HEALTH_DATA_TYPE, HealthConstants.Exercise.START_TIME)
+                .column(HealthConstants.Exercise.START_TIME, Kind.LONG)
+                .column(HealthConstants.Exercise.END_TIME, Kind.LONG)
+                .column(HealthConstants.Exercise.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.Exercise.CALORIE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.DURATION, Kind.LONG)
+                .column(HealthConstants.Exercise.EXERCISE_TYPE, Kind.INT)
+                .column(HealthConstants.Exercise.EXERCISE_CUSTOM_TYPE, Kind.INT)
+                .column(HealthConstants.Exercise.DISTANCE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.ALTITUDE_GAIN, Kind.FLOAT)
+                .column(HealthConstants.Exercise.ALTITUDE_LOSS, Kind.FLOAT)
+                .column(HealthConstants.Exercise.COUNT, Kind.INT)
+                .column(HealthConstants.Exercise.COUNT_TYPE, Kind.INT)
+                .column(HealthConstants.Exercise.MAX_SPEED, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MEAN_SPEED, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MAX_CALORICBURN_RATE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MEAN_CALORICBURN_RATE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MAX_CADENCE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MEAN_CADENCE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MAX_HEART_RATE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MEAN_HEART_RATE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MIN_HEART_RATE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MAX_ALTITUDE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MIN_ALTITUDE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.INCLINE_DISTANCE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.DECLINE_DISTANCE, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MAX_POWER, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MEAN_POWER, Kind.FLOAT)
+                .column(HealthConstants.Exercise.MEAN_RPM, Kind.FLOAT)
+                .optionalColumn(HealthConstants.Exercise.LOCATION_DATA, Kind.BLOB));
+
+        register(new DataSchema("Sleep", HealthConstants.Sleep.HEALTH_DATA_TYPE, HealthConstants.Sleep.START_TIME)
+                .column(HealthConstants.Sleep.START_TIME, Kind.LONG)
+                .column(HealthConstants.Sleep.END_TIME, Kind.LONG)
+                .column(HealthConstants.Sleep.TIME_OFFSET, Kind.LONG));
+
+        register(new DataSchema("SleepStage", HealthConstants.SleepStage.HEALTH_DATA_TYPE, HealthConstants.SleepStage.START_TIME)
+                .column(HealthConstants.SleepStage.START_TIME, Kind.LONG)
+                .column(HealthConstants.SleepStage.END_TIME, Kind.LONG)
+                .column(HealthConstants.SleepStage.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.SleepStage.SLEEP_ID, Kind.STRING)
+                .column(HealthConstants.SleepStage.STAGE, Kind.INT));
+
+        register(new DataSchema("FoodIntake", HealthConstants.FoodIntake.HEALTH_DATA_TYPE, HealthConstants.FoodIntake.START_TIME)
+                .column(HealthConstants.FoodIntake.START_TIME, Kind.LONG)
+                .column(HealthConstants.FoodIntake.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.FoodIntake.CALORIE, Kind.FLOAT)
+                .column(HealthConstants.FoodIntake.FOOD_INFO_ID, Kind.STRING)
+                .column(HealthConstants.FoodIntake.AMOUNT, Kind.FLOAT)
+                .column(HealthConstants.FoodIntake.UNIT, Kind.STRING)
+                .column(HealthConstants.FoodIntake.NAME, Kind.STRING)
+                .column(HealthConstants.FoodIntake.MEAL_TYPE, Kind.INT));
+
+        register(new DataSchema("WaterIntake", HealthConstants.WaterIntake.HEALTH_DATA_TYPE, HealthConstants.WaterIntake.START_TIME)
+                .column(HealthConstants.WaterIntake.START_TIME, Kind.LONG)
+                .column(HealthConstants.WaterIntake.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.WaterIntake.AMOUNT, Kind.FLOAT)
+                .column(HealthConstants.WaterIntake.UNIT_AMOUNT, Kind.FLOAT));
+
+        register(new DataSchema("CaffeineIntake", HealthConstants.CaffeineIntake.HEALTH_DATA_TYPE, HealthConstants.CaffeineIntake.START_TIME)
+                .column(HealthConstants.CaffeineIntake.START_TIME, Kind.LONG)
+                .column(HealthConstants.CaffeineIntake.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.CaffeineIntake.AMOUNT, Kind.FLOAT)
+                .column(HealthConstants.CaffeineIntake.UNIT_AMOUNT, Kind.STRING));
+
+        register(new DataSchema("HeartRate", HealthConstants.HeartRate.HEALTH_DATA_TYPE, HealthConstants.HeartRate.START_TIME)
+                .column(HealthConstants.HeartRate.START_TIME, Kind.LONG)
+                .column(HealthConstants.HeartRate.END_TIME, Kind.LONG)
+                .column(HealthConstants.HeartRate.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.HeartRate.HEART_RATE, Kind.FLOAT)
+                .column(HealthConstants.HeartRate.HEART_BEAT_COUNT, Kind.INT));
+
+        register(new DataSchema("BodyTemperature", HealthConstants.BodyTemperature.HEALTH_DATA_TYPE, HealthConstants.BodyTemperature.START_TIME)
+                .column(HealthConstants.BodyTemperature.START_TIME, Kind.LONG)
+                .column(HealthConstants.BodyTemperature.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.BodyTemperature.TEMPERATURE, Kind.FLOAT));
+
+        register(new DataSchema("BloodPressure", HealthConstants.BloodPressure.HEALTH_DATA_TYPE, HealthConstants.BloodPressure.START_TIME)
+                .column(HealthConstants.BloodPressure.START_TIME, Kind.LONG)
+                .column(HealthConstants.BloodPressure.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.BloodPressure.SYSTOLIC, Kind.FLOAT)
+                .column(HealthConstants.BloodPressure.DIASTOLIC, Kind.FLOAT)
+                .column(HealthConstants.BloodPressure.MEAN, Kind.FLOAT)
+                .column(HealthConstants.BloodPressure.PULSE, Kind.INT));
+
+        register(new DataSchema("BloodGlucose", HealthConstants.BloodGlucose.HEALTH_DATA_TYPE, HealthConstants.BloodGlucose.START_TIME)
+                .column(HealthConstants.BloodGlucose.START_TIME, Kind.LONG)
+                .column(HealthConstants.BloodGlucose.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.BloodGlucose.GLUCOSE, Kind.FLOAT)
+                .column(HealthConstants.BloodGlucose.MEAL_TIME, Kind.LONG)
+                .column(HealthConstants.BloodGlucose.MEAL_TYPE, Kind.INT)
+                .column(HealthConstants.BloodGlucose.MEASUREMENT_TYPE, Kind.INT)
+                .column(HealthConstants.BloodGlucose.SAMPLE_SOURCE_TYPE, Kind.INT));
+
+        register(new DataSchema("OxygenSaturation", HealthConstants.OxygenSaturation.HEALTH_DATA_TYPE, HealthConstants.OxygenSaturation.START_TIME)
+                .column(HealthConstants.OxygenSaturation.START_TIME, Kind.LONG)
+                .column(HealthConstants.OxygenSaturation.END_TIME, Kind.LONG)
+                .column(HealthConstants.OxygenSaturation.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.OxygenSaturation.SPO2, Kind.FLOAT)
+                .column(HealthConstants.OxygenSaturation.HEART_RATE, Kind.FLOAT));
+
+        register(new DataSchema("HbA1c", HealthConstants.HbA1c.HEALTH_DATA_TYPE, HealthConstants.HbA1c.START_TIME)
+                .column(HealthConstants.HbA1c.START_TIME, Kind.LONG)
+                .column(HealthConstants.HbA1c.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.HbA1c.HBA1C, Kind.FLOAT));
+
+        register(new DataSchema("AmbientTemperature", HealthConstants.AmbientTemperature.HEALTH_DATA_TYPE, HealthConstants.AmbientTemperature.START_TIME)
+                .column(HealthConstants.AmbientTemperature.START_TIME, Kind.LONG)
+                .column(HealthConstants.AmbientTemperature.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.AmbientTemperature.TEMPERATURE, Kind.FLOAT)
+                .column(HealthConstants.AmbientTemperature.HUMIDITY, Kind.FLOAT)
+                .column(HealthConstants.AmbientTemperature.LATITUDE, Kind.FLOAT)
+                .column(HealthConstants.AmbientTemperature.LONGITUDE, Kind.FLOAT)
+                .column(HealthConstants.AmbientTemperature.ALTITUDE, Kind.FLOAT)
+                .column(HealthConstants.AmbientTemperature.ACCURACY, Kind.FLOAT));
+
+        register(new DataSchema("UvExposure", HealthConstants.UvExposure.HEALTH_DATA_TYPE, HealthConstants.UvExposure.START_TIME)
+                .column(HealthConstants.UvExposure.START_TIME, Kind.LONG)
+                .column(HealthConstants.UvExposure.TIME_OFFSET, Kind.LONG)
+                .column(HealthConstants.UvExposure.UV_INDEX, Kind.FLOAT)
+                .column(HealthConstants.UvExposure.LATITUDE, Kind.FLOAT)
+                .column(HealthConstants.UvExposure.LONGITUDE, Kind.FLOAT)
+                .column(HealthConstants.UvExposure.ALTITUDE, Kind.FLOAT)
+                .column(HealthConstants.UvExposure.ACCURACY, Kind.FLOAT));
+    }
+}
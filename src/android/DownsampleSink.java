@@ -0,0 +1,332 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Reduces the rows of a data type to a fixed time resolution while they are read.
+ *
+ * The window is divided into buckets of {@link QueryOptions#downsampleInterval}
+ * milliseconds (or into {@link QueryOptions#downsamplePoints} buckets) and every
+ * row is folded into its bucket as it arrives. Only the reduced rows reach the
+ * wrapped sink, so the result grows with the resolution, not with the number of
+ * samples. The rows must arrive sorted by start time.
+ *
+ * <ul>
+ *     <li>"minmax" sends the rows with the lowest and the highest value of every bucket</li>
+ *     <li>"mean" sends one row per bucket, starting at the bucket, with the mean value</li>
+ *     <li>"lttb" sends one row per bucket chosen by Largest-Triangle-Three-Buckets</li>
+ * </ul>
+ *
+ * LTTB picks the row with the largest triangle between the row picked for the
+ * previous bucket and the average of the next bucket. To keep the memory constant,
+ * only the first, last, lowest and highest row of a bucket are candidates.
+ */
+public class DownsampleSink implements ResultSink {
+
+    private static final int DEFAULT_POINTS = 500;
+    private static final int OUTPUT_ROWS = 256;
+
+    // Value column per data type when the options name none
+    private static final Map<String, String> DEFAULT_COLUMNS = new HashMap<String, String>();
+
+    static {
+        DEFAULT_COLUMNS.put("HeartRate", HealthConstants.HeartRate.HEART_RATE);
+        DEFAULT_COLUMNS.put("OxygenSaturation", HealthConstants.OxygenSaturation.SPO2);
+        DEFAULT_COLUMNS.put("StepCount", HealthConstants.StepCount.COUNT);
+    }
+
+    /** A row that may be sent for a bucket
+     *
+     */
+    private static class Candidate {
+        final Object[] row;
+        final long time;
+        final double value;
+
+        Candidate(Object[] pRow, long pTime, double pValue) {
+            row = pRow;
+            time = pTime;
+            value = pValue;
+        }
+    }
+
+    /** Running state of one bucket
+     *
+     */
+    private static class Bucket {
+        long index;
+        int count = 0;
+        double sumTime = 0;
+        double sumValue = 0;
+        Candidate first;
+        Candidate last;
+        Candidate min;
+        Candidate max;
+
+        Bucket(long pIndex) {
+            index = pIndex;
+        }
+
+        void add(Candidate candidate) {
+            if (count == 0) {
+                first = candidate;
+                min = candidate;
+                max = candidate;
+            }
+            if (candidate.value < min.value) {
+                min = candidate;
+            }
+            if (candidate.value > max.value) {
+                max = candidate;
+            }
+            last = candidate;
+
+            count++;
+            sumTime += candidate.time;
+            sumValue += candidate.value;
+        }
+    }
+
+    private final ResultSink sink;
+    private final DataSchema schema;
+    private final String mode;
+    private final String valueColumn;
+    private final long origin;
+    private final long interval;
+
+    private QueryCache.BucketBuilder copier = null;
+    private int startIndex = -1;
+    private int valueIndex = -1;
+    private int rowStartIndex = -1;
+    private int rowValueIndex = -1;
+
+    private Bucket current = null;
+    private Bucket pending = null;
+    private Candidate selected = null;
+
+    private String[] outputColumns = null;
+    private MatrixCursor output = null;
+
+    /** Default Constructor.
+     *
+     * Only for data types with a value column, see {@link #getValueColumn(DataSchema, QueryOptions)}.
+     *
+     * @param pSink         Receives the reduced rows
+     * @param pSchema       Schema of the data type
+     * @param pOptions      Options of the query
+     * @param pStartTime    Earliest time of measurement, start of the first bucket
+     * @param pEndTime      Latest time of measurement
+     */
+    public DownsampleSink(ResultSink pSink, DataSchema pSchema, QueryOptions pOptions, long pStartTime, long pEndTime) {
+        sink = pSink;
+        schema = pSchema;
+        mode = pOptions.downsample;
+        valueColumn = getValueColumn(pSchema, pOptions).name;
+        origin = pStartTime;
+
+        if (pOptions.downsampleInterval > 0) {
+            interval = pOptions.downsampleInterval;
+        } else {
+            int points = pOptions.downsamplePoints > 0 ? pOptions.downsamplePoints : DEFAULT_POINTS;
+            long span = Math.max(pStartTime, Math.min(pEndTime, System.currentTimeMillis())) - pStartTime + 1;
+            interval = Math.max(1, (span + points - 1) / points);
+        }
+    }
+
+    /** Returns the column that is reduced
+     *
+     * @param schema    Schema of the data type
+     * @param options   Options of the query
+     * @return          The column, or null if the data type cannot be downsampled
+     */
+    public static DataSchema.Column getValueColumn(DataSchema schema, QueryOptions options) {
+        if (options.downsampleColumn != null) {
+            DataSchema.Column column = schema.getColumn(options.downsampleColumn);
+            if (column != null && (column.kind == DataSchema.Kind.FLOAT || column.kind == DataSchema.Kind.INT
+                    || column.kind == DataSchema.Kind.LONG)) {
+                return column;
+            }
+        }
+
+        String name = DEFAULT_COLUMNS.get(schema.type);
+        for (DataSchema.Column column : schema.getColumns()) {
+            if (column.name.equals(name)) {
+                return column;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void open(Cursor c) {
+        flushOutput();
+
+        startIndex = c.getColumnIndex(schema.hcStartTime);
+        valueIndex = c.getColumnIndex(valueColumn);
+        copier = QueryCache.BucketBuilder.forCursor(schema, c);
+        rowStartIndex = copier.indexOf(schema.hcStartTime);
+        rowValueIndex = copier.indexOf(valueColumn);
+
+        if (outputColumns == null) {
+            outputColumns = copier.getColumnNames();
+        }
+    }
+
+    @Override
+    public void addRow(Cursor c) {
+        if (startIndex < 0 || valueIndex < 0 || c.isNull(valueIndex)) {
+            return;
+        }
+
+        long time = c.getLong(startIndex);
+        long index = Math.max(0, time - origin) / interval;
+
+        if (current == null || current.index != index) {
+            closeBucket();
+            current = new Bucket(index);
+        }
+
+        // Only rows that may be sent are copied
+        double value = c.getDouble(valueIndex);
+        boolean candidate = current.count == 0 || value < current.min.value || value > current.max.value;
+        Candidate row = new Candidate(candidate || "lttb".equals(mode) ? copier.copy(c) : null, time, value);
+        current.add(row);
+    }
+
+    @Override
+    public void finish() {
+        closeBucket();
+
+        if ("lttb".equals(mode) && pending != null) {
+            // The last row of the window is always kept, like the first one
+            Candidate last = pending.last;
+            Candidate pick = pickLargestTriangle(pending, last.time, last.value);
+            if (pick != selected) {
+                emit(pick);
+            }
+            if (last != pick && last != selected) {
+                emit(last);
+            }
+            pending = null;
+        }
+
+        flushOutput();
+        sink.finish();
+    }
+
+    private void closeBucket() {
+        Bucket bucket = current;
+        current = null;
+        if (bucket == null || bucket.count == 0) {
+            return;
+        }
+
+        if ("mean".equals(mode)) {
+            emitMean(bucket);
+        } else if ("lttb".equals(mode)) {
+            closeLttb(bucket);
+        } else {
+            // minmax: both extremes, in time order
+            Candidate a = bucket.min.time <= bucket.max.time ? bucket.min : bucket.max;
+            Candidate b = a == bucket.min ? bucket.max : bucket.min;
+            emit(a);
+            if (b != a) {
+                emit(b);
+            }
+        }
+    }
+
+    private void closeLttb(Bucket bucket) {
+        if (selected == null) {
+            // The first row of the window is always kept
+            emit(bucket.first);
+            selected = bucket.first;
+        }
+
+        if (pending != null) {
+            Candidate pick = pickLargestTriangle(pending, bucket.sumTime / bucket.count, bucket.sumValue / bucket.count);
+            if (pick != selected) {
+                emit(pick);
+            }
+            selected = pick;
+        }
+        pending = bucket;
+    }
+
+    private Candidate pickLargestTriangle(Bucket bucket, double nextTime, double nextValue) {
+        Candidate best = bucket.first;
+        double bestArea = -1;
+
+        Candidate[] candidates = new Candidate[] { bucket.first, bucket.min, bucket.max, bucket.last };
+        for (Candidate candidate : candidates) {
+            double area = Math.abs((selected.time - nextTime) * (candidate.value - selected.value)
+                    - (selected.time - candidate.time) * (nextValue - selected.value));
+            if (area > bestArea) {
+                bestArea = area;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private void emitMean(Bucket bucket) {
+        Object[] row = bucket.first.row.clone();
+        double mean = bucket.sumValue / bucket.count;
+
+        switch (copier.getColumn(rowValueIndex).kind) {
+            case INT:
+                row[rowValueIndex] = (int) Math.round(mean);
+                break;
+            case LONG:
+                row[rowValueIndex] = Math.round(mean);
+                break;
+            default:
+                row[rowValueIndex] = (float) mean;
+                break;
+        }
+        if (rowStartIndex >= 0) {
+            row[rowStartIndex] = origin + bucket.index * interval;
+        }
+        addOutput(row);
+    }
+
+    private void emit(Candidate candidate) {
+        addOutput(candidate.row);
+    }
+
+    private void addOutput(Object[] row) {
+        if (output == null) {
+            output = new MatrixCursor(outputColumns, OUTPUT_ROWS);
+        }
+        output.addRow(row);
+
+        if (output.getCount() >= OUTPUT_ROWS) {
+            flushOutput();
+        }
+    }
+
+    /** Hands the reduced rows to the wrapped sink
+     *
+     */
+    private void flushOutput() {
+        MatrixCursor c = output;
+        output = null;
+        if (c == null) {
+            return;
+        }
+
+        try {
+            sink.open(c);
+            while (c.moveToNext()) {
+                sink.addRow(c);
+            }
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.samsung.android.simplehealth;
+
+import android.util.Log;
+
+import javax.json.Json;
+import javax.json.stream.JsonParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/** Turns the LOCATION_DATA of an exercise into a simplified GPS route.
+ *
+ * S Health stores the route as gzip compressed JSON, an array of objects with
+ * latitude, longitude, altitude and start_time. The array is parsed as a stream
+ * into primitive arrays, simplified with Douglas-Peucker (the tolerance is the
+ * largest allowed distance of a dropped point from the simplified line, in
+ * meters) and written as a Google encoded polyline, or as coordinate arrays with
+ * <code>routeFormat: "points"</code>.
+ */
+public class ExerciseRoute {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    /** Default tolerance of the simplification in meters */
+    public static final double DEFAULT_TOLERANCE = 5;
+
+    private static final double EARTH_RADIUS = 6371008.8;
+
+    private final double tolerance;
+    private final boolean points;
+
+    private int count = 0;
+    private double[] latitude = new double[256];
+    private double[] longitude = new double[256];
+    private double[] altitude = new double[256];
+    private long[] time = new long[256];
+
+    /** Default Constructor.
+     *
+     * @param pOptions  Options of the query
+     */
+    public ExerciseRoute(QueryOptions pOptions) {
+        tolerance = pOptions.routeTolerance >= 0 ? pOptions.routeTolerance : DEFAULT_TOLERANCE;
+        points = "points".equals(pOptions.routeFormat);
+    }
+
+    /** Writes the route of a LOCATION_DATA blob as JSON value
+     *
+     * <code>{"POINTS":n,"ORIGINAL_POINTS":m,"POLYLINE":".."}</code>, or with coordinate
+     * arrays <code>"LATITUDE","LONGITUDE","ALTITUDE","TIME"</code> instead of the polyline.
+     * A blob that cannot be read is written as null.
+     *
+     * @param blob  The LOCATION_DATA blob, may be null
+     * @param out   Buffer the value is appended to
+     */
+    public void append(byte[] blob, StringBuilder out) {
+        if (blob == null || !parse(blob)) {
+            out.append("null");
+            return;
+        }
+
+        boolean[] keep = simplify();
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                kept++;
+            }
+        }
+
+        out.append("{\"POINTS\":").append(kept).append(",\"ORIGINAL_POINTS\":").append(count);
+
+        if (points) {
+            out.append(",\"LATITUDE\":[");
+            appendKept(out, latitude, keep);
+            out.append("],\"LONGITUDE\":[");
+            appendKept(out, longitude, keep);
+            out.append("],\"ALTITUDE\":[");
+            appendKept(out, altitude, keep);
+            out.append("],\"TIME\":[");
+            boolean first = true;
+            for (int i = 0; i < count; i++) {
+                if (keep[i]) {
+                    if (!first) {
+                        out.append(',');
+                    }
+                    first = false;
+                    out.append(time[i]);
+                }
+            }
+            out.append(']');
+        } else {
+            out.append(",\"POLYLINE\":");
+            JsonText.appendString(out, encodePolyline(keep));
+        }
+
+        out.append('}');
+    }
+
+    /** Reads the points of the blob into the coordinate arrays
+     *
+     * @return  False if the blob is not a route
+     */
+    private boolean parse(byte[] blob) {
+        count = 0;
+
+        InputStream in = null;
+        try {
+            in = new ByteArrayInputStream(blob);
+            if (blob.length > 2 && (blob[0] & 0xff) == 0x1f && (blob[1] & 0xff) == 0x8b) {
+                in = new GZIPInputStream(in, 8192);
+            }
+
+            JsonParser parser = Json.createParser(in);
+            String key = null;
+            double lat = Double.NaN;
+            double lng = Double.NaN;
+            double alt = 0;
+            long start = 0;
+
+            while (parser.hasNext()) {
+                switch (parser.next()) {
+                    case START_OBJECT:
+                        lat = Double.NaN;
+                        lng = Double.NaN;
+                        alt = 0;
+                        start = 0;
+                        break;
+                    case KEY_NAME:
+                        key = parser.getString();
+                        break;
+                    case VALUE_NUMBER:
+                        if ("latitude".equals(key)) {
+                            lat = parser.getBigDecimal().doubleValue();
+                        } else if ("longitude".equals(key)) {
+                            lng = parser.getBigDecimal().doubleValue();
+                        } else if ("altitude".equals(key)) {
+                            alt = parser.getBigDecimal().doubleValue();
+                        } else if ("start_time".equals(key)) {
+                            start = parser.getLong();
+                        }
+                        break;
+                    case END_OBJECT:
+                        if (!Double.isNaN(lat) && !Double.isNaN(lng)) {
+                            add(lat, lng, alt, start);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            parser.close();
+            return true;
+        } catch (Exception e) {
+            Log.e(APP_TAG, "ExerciseRoute - " + e.getClass().getName() + " - " + e.getMessage());
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to release for in-memory streams
+                }
+            }
+        }
+    }
+
+    private void add(double lat, double lng, double alt, long start) {
+        if (count == latitude.length) {
+            int size = count * 2;
+            latitude = Arrays.copyOf(latitude, size);
+            longitude = Arrays.copyOf(longitude, size);
+            altitude = Arrays.copyOf(altitude, size);
+            time = Arrays.copyOf(time, size);
+        }
+        latitude[count] = lat;
+        longitude[count] = lng;
+        altitude[count] = alt;
+        time[count] = start;
+        count++;
+    }
+
+    /** Marks the points kept by Douglas-Peucker
+     *
+     * The points are projected to meters around the first point, which is exact
+     * enough for the extent of a single exercise. An explicit stack replaces the
+     * recursion, so long routes cannot overflow the thread stack.
+     *
+     * @return  Per point, true if it is kept
+     */
+    private boolean[] simplify() {
+        boolean[] keep = new boolean[count];
+        if (count <= 2 || tolerance <= 0) {
+            Arrays.fill(keep, true);
+            return keep;
+        }
+
+        double scale = Math.cos(Math.toRadians(latitude[0]));
+        double[] x = new double[count];
+        double[] y = new double[count];
+        for (int i = 0; i < count; i++) {
+            x[i] = Math.toRadians(longitude[i] - longitude[0]) * scale * EARTH_RADIUS;
+            y[i] = Math.toRadians(latitude[i] - latitude[0]) * EARTH_RADIUS;
+        }
+
+        keep[0] = true;
+        keep[count - 1] = true;
+
+        int[] stack = new int[64];
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+
+            double dx = x[last] - x[first];
+            double dy = y[last] - y[first];
+            double length = dx * dx + dy * dy;
+
+            int farthest = -1;
+            double max = tolerance * tolerance;
+            for (int i = first + 1; i < last; i++) {
+                double distance = squaredDistance(x[i], y[i], x[first], y[first], dx, dy, length);
+                if (distance > max) {
+                    max = distance;
+                    farthest = i;
+                }
+            }
+
+            if (farthest >= 0) {
+                keep[farthest] = true;
+                if (top + 4 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                stack[top++] = first;
+                stack[top++] = farthest;
+                stack[top++] = farthest;
+                stack[top++] = last;
+            }
+        }
+        return keep;
+    }
+
+    private static double squaredDistance(double px, double py, double ax, double ay, double dx, double dy, double length) {
+        double t = length == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / length;
+        t = Math.max(0, Math.min(1, t));
+        double ex = px - (ax + t * dx);
+        double ey = py - (ay + t * dy);
+        return ex * ex + ey * ey;
+    }
+
+    /** Writes the kept points in the Google encoded polyline format (precision 1e5)
+     *
+     */
+    private String encodePolyline(boolean[] keep) {
+        StringBuilder polyline = new StringBuilder(count);
+        long previousLat = 0;
+        long previousLng = 0;
+
+        for (int i = 0; i < count; i++) {
+            if (!keep[i]) {
+                continue;
+            }
+            long lat = Math.round(latitude[i] * 1e5);
+            long lng = Math.round(longitude[i] * 1e5);
+            encodeValue(lat - previousLat, polyline);
+            encodeValue(lng - previousLng, polyline);
+            previousLat = lat;
+            previousLng = lng;
+        }
+        return polyline.toString();
+    }
+
+    private static void encodeValue(long value, StringBuilder out) {
+        long v = value < 0 ? ~(value << 1) : value << 1;
+        while (v >= 0x20) {
+            out.append((char) ((0x20 | (v & 0x1f)) + 63));
+            v >>= 5;
+        }
+        out.append((char) (v + 63));
+    }
+
+    private void appendKept(StringBuilder out, double[] values, boolean[] keep) {
+        boolean first = true;
+        for (int i = 0; i < count; i++) {
+            if (keep[i]) {
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                JsonText.appendDouble(out, values[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.samsung.android.simplehealth;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/** Background thread on which S Health delivers results and change notifications.
+ *
+ * Resolvers and observers are created with its {@link Handler}, so cursors are
+ * drained and encoded here instead of on the main thread. All callbacks run on this
+ * single thread, so readers need no locking between their pages.
+ */
+public final class HealthThread {
+
+    private static Handler handler = null;
+
+    private HealthThread() {
+    }
+
+    /** Returns the handler of the thread, the thread is started on first use
+     *
+     * @return  The handler
+     */
+    public static synchronized Handler getHandler() {
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("SHealthWorker", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            handler = new Handler(thread.getLooper());
+        }
+        return handler;
+    }
+}
@@ -0,0 +1,94 @@
+package com.samsung.android.simplehealth;
+
+/** Helpers to write JSON values directly into a {@link StringBuilder}.
+ *
+ * Used on the hot path instead of javax.json, so encoding a row does not
+ * allocate a tree of JSON values.
+ */
+public final class JsonText {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private JsonText() {
+    }
+
+    /** Appends a quoted and escaped JSON string
+     *
+     * @param out   Target buffer
+     * @param value The string, must not be null
+     */
+    public static void appendString(StringBuilder out, String value) {
+        out.append('"');
+
+        int length = value.length();
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            char ch = value.charAt(i);
+            if (ch >= 0x20 && ch != '"' && ch != '\\') {
+                continue;
+            }
+
+            out.append(value, start, i);
+            start = i + 1;
+
+            switch (ch) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    out.append("\\u00").append(HEX[ch >> 4]).append(HEX[ch & 0xF]);
+                    break;
+            }
+        }
+        out.append(value, start, length);
+
+        out.append('"');
+    }
+
+    /** Appends a JSON number, NaN and infinity are written as null
+     *
+     * @param out   Target buffer
+     * @param value The number
+     */
+    public static void appendFloat(StringBuilder out, float value) {
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            out.append("null");
+        } else {
+            out.append(value);
+        }
+    }
+
+    /** Appends a JSON number, NaN and infinity are written as null
+     *
+     * @param out   Target buffer
+     * @param value The number
+     */
+    public static void appendDouble(StringBuilder out, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            out.append("null");
+        } else {
+            out.append(value);
+        }
+    }
+
+    /** Returns the prefix for a key inside an object, e.g. <code>,"COUNT":</code>
+     *
+     * @param key   The key, must not need escaping
+     * @return      The prefix including the leading comma
+     */
+    public static String keyPrefix(String key) {
+        return ",\"" + key + "\":";
+    }
+}
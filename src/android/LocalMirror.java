@@ -0,0 +1,228 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** App-private SQLite copy of the S Health data.
+ *
+ * Every data type has its own table with all columns of its {@link DataSchema},
+ * keyed by UUID and indexed on the start time. The tables are filled by
+ * incremental reads (see {@link DataReporter#syncMirror}), which keep their own
+ * {@link SyncState} separate from the incremental reads of JavaScript. Queries with
+ * <code>source: "mirror"</code> read the tables instead of S Health and produce the
+ * same results, without the IPC to the S Health provider.
+ *
+ * Rows deleted in S Health are not seen by incremental reads and stay in the
+ * mirror until the data type is cleared.
+ */
+public class LocalMirror extends SQLiteOpenHelper {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final String DATABASE = "shealth_mirror.db";
+    private static final int VERSION = 1;
+
+    private static LocalMirror sInstance = null;
+
+    private final SyncState syncState;
+    private final Set<String> tables = new HashSet<String>();
+
+    /** Returns the mirror of the app process
+     *
+     * @param context   Any context of the application
+     * @return          The mirror
+     */
+    public static synchronized LocalMirror getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LocalMirror(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private LocalMirror(Context pContext) {
+        super(pContext, DATABASE, null, VERSION);
+        setWriteAheadLoggingEnabled(true);
+        syncState = new SyncState(pContext, "shealth_mirror_sync");
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // The tables are created when a data type is first used
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The columns changed, the mirror is read again from scratch
+        for (DataSchema schema : DataSchema.all()) {
+            db.execSQL("DROP TABLE IF EXISTS " + quote(schema.type));
+        }
+        syncState.clear();
+    }
+
+    /** Returns how far the mirror of every data type got
+     *
+     * @return  The sync state of the mirror
+     */
+    public SyncState getSyncState() {
+        return syncState;
+    }
+
+    /** Returns the attributes stored per row, all columns of the data type
+     *
+     * @param schema    Schema of the data type
+     * @return          Array of attributes for the read request
+     */
+    public String[] getColumns(DataSchema schema) {
+        List<DataSchema.Column> columns = schema.getColumns();
+        String[] names = new String[columns.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = columns.get(i).name;
+        }
+        return names;
+    }
+
+    /** Inserts or replaces rows in one transaction
+     *
+     * @param schema    Schema of the data type
+     * @param columns   Column names of the rows, must contain the UUID
+     * @param rows      Values in column order
+     */
+    public void write(DataSchema schema, String[] columns, List<Object[]> rows) {
+        SQLiteDatabase db = getWritableDatabase();
+        ensureTable(db, schema);
+
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ").append(quote(schema.type)).append(" (");
+        StringBuilder values = new StringBuilder(") VALUES (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+                values.append(',');
+            }
+            sql.append(quote(columns[i]));
+            values.append('?');
+        }
+        sql.append(values).append(')');
+
+        db.beginTransaction();
+        SQLiteStatement statement = db.compileStatement(sql.toString());
+        try {
+            for (Object[] row : rows) {
+                statement.clearBindings();
+                for (int i = 0; i < row.length; i++) {
+                    bind(statement, i + 1, row[i]);
+                }
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            statement.close();
+            db.endTransaction();
+        }
+    }
+
+    /** Returns the rows of a time window sorted by start time
+     *
+     * @param schema        Schema of the data type
+     * @param columns       Attributes to return
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     * @return              The cursor, must be closed by the caller
+     */
+    public Cursor query(DataSchema schema, String[] columns, long startTime, long endTime) {
+        SQLiteDatabase db = getWritableDatabase();
+        ensureTable(db, schema);
+
+        StringBuilder sql = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(quote(columns[i]));
+        }
+        sql.append(" FROM ").append(quote(schema.type))
+                .append(" WHERE ").append(quote(schema.hcStartTime)).append(" BETWEEN ? AND ?")
+                .append(" ORDER BY ").append(quote(schema.hcStartTime));
+
+        return db.rawQuery(sql.toString(), new String[] { Long.toString(startTime), Long.toString(endTime) });
+    }
+
+    /** Deletes the rows of a data type, the next sync reads it again from the start
+     *
+     * @param schema    Schema of the data type
+     */
+    public void clear(DataSchema schema) {
+        SQLiteDatabase db = getWritableDatabase();
+        ensureTable(db, schema);
+        db.delete(quote(schema.type), null, null);
+        syncState.remove(schema.type);
+
+        Log.d(APP_TAG, "LocalMirror cleared " + schema.type);
+    }
+
+    private synchronized void ensureTable(SQLiteDatabase db, DataSchema schema) {
+        if (tables.contains(schema.type)) {
+            return;
+        }
+
+        StringBuilder sql = new StringBuilder("CREATE TABLE IF NOT EXISTS ").append(quote(schema.type)).append(" (");
+        List<DataSchema.Column> columns = schema.getColumns();
+        for (int i = 0; i < columns.size(); i++) {
+            DataSchema.Column column = columns.get(i);
+            if (i > 0) {
+                sql.append(',');
+            }
+            sql.append(quote(column.name)).append(' ').append(sqlType(column.kind));
+            if (column.name.equals(HealthConstants.Common.UUID)) {
+                sql.append(" PRIMARY KEY");
+            }
+        }
+        sql.append(')');
+
+        db.execSQL(sql.toString());
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + quote(schema.type + "_start") + " ON "
+                + quote(schema.type) + " (" + quote(schema.hcStartTime) + ")");
+        tables.add(schema.type);
+    }
+
+    private static String sqlType(DataSchema.Kind kind) {
+        switch (kind) {
+            case LONG:
+            case INT:
+                return "INTEGER";
+            case FLOAT:
+                return "REAL";
+            case BLOB:
+                return "BLOB";
+            default:
+                return "TEXT";
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Long || value instanceof Integer) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Float) {
+            statement.bindDouble(index, (Float) value);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+
+    private static String quote(String name) {
+        return "\"" + name.replace("\"", "\"\"") + "\"";
+    }
+}
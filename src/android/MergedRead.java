@@ -0,0 +1,426 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Reads several data types as one stream ordered by start time.
+ *
+ * Every data type is read page by page sorted by start time, and a k-way merge
+ * over a heap keyed by the start time of each type's next row writes the rows
+ * into a single {@link ResultEmitter}. A type holds at most the page being merged
+ * and the page fetched after it, the next page is only requested once the merge
+ * reaches the last buffered one, so memory grows with the number of types and
+ * the page size but not with the window. Rows keep their own TYPE, rows with
+ * the same start time are ordered like the data types.
+ *
+ * If a data type cannot be read, the reads of the other types are cancelled and
+ * the emitter is not finished, see {@link #isComplete()}.
+ *
+ * At most {@link #setMaxConcurrentReads(int)} page requests are pending at once,
+ * the others wait until a page has arrived, so a merge of many types takes no more
+ * of S Health than the slots it reserved in the {@link ReadScheduler}.
+ */
+public class MergedRead implements PagedRead.Listener {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    /** The rows of one data type
+     *
+     */
+    private class Source implements ResultSink {
+        final DataSchema schema;
+        final int order;
+        PagedRead read = null;
+        boolean finished = false;
+        boolean started = false;
+        boolean requesting = false;
+
+        final ArrayDeque<MatrixCursor> pages = new ArrayDeque<MatrixCursor>();
+        MatrixCursor current = null;
+        RowEncoder encoder = null;
+        int startIndex = -1;
+
+        // The page being copied, handed to the merge when its last row arrived
+        QueryCache.BucketBuilder copier = null;
+        MatrixCursor building = null;
+        int expected = 0;
+        int received = 0;
+
+        Source(DataSchema pSchema, int pOrder) {
+            schema = pSchema;
+            order = pOrder;
+        }
+
+        @Override
+        public void open(Cursor c) {
+            if (copier == null) {
+                copier = QueryCache.BucketBuilder.forCursor(schema, c);
+            }
+            expected = c.getCount();
+            received = 0;
+            building = expected > 0 ? new MatrixCursor(copier.getColumnNames(), expected) : null;
+        }
+
+        @Override
+        public void addRow(Cursor c) {
+            building.addRow(copier.copy(c));
+            if (++received < expected) {
+                return;
+            }
+
+            List<Source> wanted = new ArrayList<Source>();
+            synchronized (MergedRead.this) {
+                pages.add(building);
+                building = null;
+                // The page is complete, its request no longer counts
+                release(this, wanted);
+                merge(wanted);
+            }
+            requestPages(wanted);
+        }
+
+        @Override
+        public void finish() {
+            // The sources share the emitter, it is finished after the last row of all of them
+        }
+
+        /** Moves to the next buffered page if the current one is used up
+         *
+         * @param wanted    Collects the source if its next page should be fetched
+         * @return          True if there is a row to merge
+         */
+        boolean hasHead(List<Source> wanted) {
+            if (current != null) {
+                return true;
+            }
+
+            current = pages.poll();
+            if (current == null) {
+                return false;
+            }
+
+            current.moveToFirst();
+            if (encoder == null) {
+                encoder = emitter.createEncoder(schema, current);
+                startIndex = current.getColumnIndex(schema.hcStartTime);
+            }
+            if (pages.isEmpty() && !finished) {
+                wanted.add(this);
+            }
+            return true;
+        }
+
+        long headTime() {
+            return current.getLong(startIndex);
+        }
+
+        void advance() {
+            if (!current.moveToNext()) {
+                current.close();
+                current = null;
+            }
+        }
+    }
+
+    private final HealthDataStore mStore;
+    private final QueryOptions options;
+    private final ResultEmitter emitter;
+
+    private final List<Source> sources = new ArrayList<Source>();
+    private final List<Source> idle = new ArrayList<Source>();
+    private final ArrayDeque<Source> waiting = new ArrayDeque<Source>();
+    private final PriorityQueue<Source> heap = new PriorityQueue<Source>(16, new Comparator<Source>() {
+        @Override
+        public int compare(Source a, Source b) {
+            long ta = a.headTime();
+            long tb = b.headTime();
+            if (ta != tb) {
+                return ta < tb ? -1 : 1;
+            }
+            return a.order < b.order ? -1 : (a.order == b.order ? 0 : 1);
+        }
+    });
+
+    private int readsFinished = 0;
+    private int maxReads = Integer.MAX_VALUE;
+    private int requesting = 0;
+    private int rowCount = 0;
+    private boolean done = false;
+    private String failedType = null;
+    private Runnable onFinished = null;
+    private QueryRequest request = null;
+
+    /** Default Constructor.
+     *
+     * @param store         The connected {@link HealthDataStore}
+     * @param pOptions      Options of the query, readPageSize must be set
+     * @param pEmitter      Receives the rows of all data types
+     */
+    public MergedRead(HealthDataStore store, QueryOptions pOptions, ResultEmitter pEmitter) {
+        mStore = store;
+        options = pOptions;
+        emitter = pEmitter;
+    }
+
+    /** Sets the callback run after the last row was sent
+     *
+     * @param pOnFinished   The callback, may be null
+     * @return              This read
+     */
+    public MergedRead setOnFinished(Runnable pOnFinished) {
+        onFinished = pOnFinished;
+        return this;
+    }
+
+    /** Sets the request the read belongs to
+     *
+     * @param pRequest      The request, may be null
+     * @return              This read
+     */
+    public MergedRead setRequest(QueryRequest pRequest) {
+        request = pRequest;
+        return this;
+    }
+
+    /** Limits the number of page requests that are pending at the same time
+     *
+     * @param pMaxReads     Maximum number of pending requests, at least 1
+     * @return              This read
+     */
+    public MergedRead setMaxConcurrentReads(int pMaxReads) {
+        maxReads = Math.max(1, pMaxReads);
+        return this;
+    }
+
+    /** Returns false if a data type could not be read or the read was cancelled
+     *
+     * @return  Whether all rows were sent
+     */
+    public synchronized boolean isComplete() {
+        return failedType == null && !isCancelled();
+    }
+
+    /** Returns the data type that could not be read
+     *
+     * @return  Name of the data type, or null
+     */
+    public synchronized String getFailedType() {
+        return failedType;
+    }
+
+    /** Adds a data type to the merge, before {@link #start()}
+     *
+     * @param schema        Schema of the data type
+     * @param hcString      Array of requested attributes
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     */
+    public void add(DataSchema schema, String[] hcString, long startTime, long endTime) {
+        Source source = new Source(schema, sources.size());
+        source.read = new PagedRead(mStore, schema, hcString, startTime, endTime, options, source, null)
+                .setOrdered(true)
+                .setManualPaging(true)
+                .setRequest(request)
+                .setListener(this);
+        sources.add(source);
+    }
+
+    /** Requests the first page of every data type
+     *
+     */
+    public void start() {
+        Log.d(APP_TAG, "Merged read - " + sources.size() + " data types");
+
+        synchronized (this) {
+            idle.addAll(sources);
+        }
+        requestPages(new ArrayList<Source>(sources));
+    }
+
+    @Override
+    public void onReadFinished(PagedRead read) {
+        readFinished(read, read.isComplete());
+    }
+
+    /** Counts a finished read, a read that failed stops the others
+     *
+     * @param read      The read
+     * @param complete  Whether all its rows were read
+     */
+    private void readFinished(PagedRead read, boolean complete) {
+        List<Source> wanted = new ArrayList<Source>();
+        List<PagedRead> stop = new ArrayList<PagedRead>();
+        synchronized (this) {
+            for (Source source : sources) {
+                if (source.read == read && !source.finished) {
+                    source.finished = true;
+                    readsFinished++;
+                    waiting.remove(source);
+                    release(source, wanted);
+
+                    // The rows of the type are missing, the merged stream must not look complete
+                    if (!complete && failedType == null && !isCancelled()) {
+                        failedType = source.schema.type;
+                        for (Source other : sources) {
+                            if (!other.finished) {
+                                stop.add(other.read);
+                            }
+                        }
+                    }
+                    break;
+                }
+            }
+            merge(wanted);
+        }
+
+        for (PagedRead other : stop) {
+            other.cancel();
+        }
+        requestPages(wanted);
+        finishIfDone();
+    }
+
+    /** Writes rows in time order as long as every unfinished data type has a buffered row
+     *
+     * @param wanted    Collects the sources whose next page should be fetched
+     */
+    private void merge(List<Source> wanted) {
+        while (failedType == null && !isCancelled()) {
+            for (Iterator<Source> it = idle.iterator(); it.hasNext(); ) {
+                Source source = it.next();
+                if (source.hasHead(wanted)) {
+                    heap.add(source);
+                    it.remove();
+                } else if (source.finished) {
+                    it.remove();
+                }
+            }
+
+            // A data type without buffered rows may still have an earlier row to come
+            if (!idle.isEmpty()) {
+                return;
+            }
+
+            Source next = heap.poll();
+            if (next == null) {
+                return;
+            }
+
+            emitter.addRow(next.encoder, next.current);
+            rowCount++;
+
+            next.advance();
+            if (next.hasHead(wanted)) {
+                heap.add(next);
+            } else {
+                idle.add(next);
+            }
+        }
+    }
+
+    /** Frees the request slot of a source whose page arrived or whose read finished
+     *
+     * @param source    The source
+     * @param wanted    Receives the waiting source that may request its page now
+     */
+    private void release(Source source, List<Source> wanted) {
+        if (!source.requesting) {
+            return;
+        }
+        source.requesting = false;
+        requesting--;
+
+        Source next = waiting.poll();
+        if (next != null) {
+            wanted.add(next);
+        }
+    }
+
+    /** Fetches the first or next pages outside the lock, sources over the limit wait for a free slot
+     *
+     * A failed request finishes its read.
+     *
+     * @param wanted    The sources
+     */
+    private void requestPages(List<Source> wanted) {
+        for (int i = 0; i < wanted.size(); i++) {
+            Source source = wanted.get(i);
+            boolean first;
+            synchronized (this) {
+                if (source.finished || source.requesting) {
+                    continue;
+                }
+                if (requesting >= maxReads) {
+                    if (!waiting.contains(source)) {
+                        waiting.add(source);
+                    }
+                    continue;
+                }
+                waiting.remove(source);
+                source.requesting = true;
+                requesting++;
+                first = !source.started;
+                source.started = true;
+            }
+
+            if (first) {
+                if (!source.read.requestPage()) {
+                    readFinished(source.read, false);
+                }
+            } else if (!source.read.requestNextPage()) {
+                // Either there is no next page or the read already reported its failure
+                synchronized (this) {
+                    release(source, wanted);
+                }
+            }
+        }
+    }
+
+    /** Finishes the emitter once after the last row, the rows of a cancelled or failed read are dropped
+     *
+     */
+    private void finishIfDone() {
+        boolean stopped;
+
+        synchronized (this) {
+            stopped = failedType != null || isCancelled();
+            if (done) {
+                return;
+            }
+            if (stopped ? readsFinished < sources.size() : !(idle.isEmpty() && heap.isEmpty())) {
+                return;
+            }
+            done = true;
+
+            for (Source source : sources) {
+                if (source.current != null) {
+                    source.current.close();
+                }
+                source.pages.clear();
+            }
+        }
+
+        if (!stopped) {
+            Log.d(APP_TAG, "Merged read - " + rowCount + " rows");
+            emitter.finish();
+        }
+
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    private boolean isCancelled() {
+        return request != null && request.isCancelled();
+    }
+}
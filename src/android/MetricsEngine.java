@@ -0,0 +1,737 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.apache.cordova.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/** Computes derived metrics while the rows are read, without sending the rows.
+ *
+ * Every needed data type is read once, sorted by start time and page by page,
+ * and every row is handed to the reducers of the type. Reducers keep primitive
+ * accumulators per day and ring buffers for their rolling windows, so memory
+ * does not grow with the number of rows. Days use the local time of the
+ * measurement. The result is sent as
+ * <code>{"TYPE":"Metrics","HEART_RATE_ZONES":{..},"RESTING_HEART_RATE":[..],"HYDRATION":[..],"CADENCE":[..]}</code>
+ * with the requested metrics only.
+ *
+ * At most {@link ReadScheduler#slots(int, int)} of the reads run at once, the
+ * slots the request reserved for {@link MetricsQuery#maxConcurrentReads}.
+ */
+public class MetricsEngine implements PagedRead.Listener {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final long MINUTE_MILLIS = 60000L;
+    private static final long DAY_MILLIS = 86400000L;
+    private static final int PAGE_SIZE = 1000;
+
+    // A heart rate sample counts until the next one, but not across longer gaps
+    private static final long MAX_SAMPLE_GAP = 15 * MINUTE_MILLIS;
+    private static final int MIN_RESTING_SAMPLES = 3;
+
+    /** Timed values of a rolling window, oldest first, with running sums
+     *
+     */
+    private static class Ring {
+        long[] time = new long[64];
+        double[] a = new double[64];
+        double[] b = new double[64];
+        int head = 0;
+        int size = 0;
+        double sumA = 0;
+        double sumB = 0;
+
+        void add(long t, double va, double vb) {
+            if (size == time.length) {
+                grow();
+            }
+            int i = (head + size) % time.length;
+            time[i] = t;
+            a[i] = va;
+            b[i] = vb;
+            size++;
+            sumA += va;
+            sumB += vb;
+        }
+
+        /** Drops the values older than a time
+         *
+         * @param t     Values before this time are dropped
+         */
+        void evictBefore(long t) {
+            while (size > 0 && time[head] < t) {
+                sumA -= a[head];
+                sumB -= b[head];
+                head = (head + 1) % time.length;
+                size--;
+            }
+        }
+
+        void clear() {
+            head = 0;
+            size = 0;
+            sumA = 0;
+            sumB = 0;
+        }
+
+        private void grow() {
+            int length = time.length * 2;
+            long[] t = new long[length];
+            double[] va = new double[length];
+            double[] vb = new double[length];
+            for (int i = 0; i < size; i++) {
+                int j = (head + i) % time.length;
+                t[i] = time[j];
+                va[i] = a[j];
+                vb[i] = b[j];
+            }
+            time = t;
+            a = va;
+            b = vb;
+            head = 0;
+        }
+    }
+
+    /** Reduces the rows of one data type
+     *
+     */
+    private abstract static class Reducer {
+        abstract void open(Cursor c);
+
+        abstract void add(Cursor c);
+
+        /** Called once after the last row
+         *
+         */
+        abstract void finish();
+    }
+
+    /** Hands the rows of a read to the reducers of its data type
+     *
+     */
+    private static class Feed implements ResultSink {
+        final List<Reducer> reducers = new ArrayList<Reducer>();
+
+        @Override
+        public void open(Cursor c) {
+            for (Reducer reducer : reducers) {
+                reducer.open(c);
+            }
+        }
+
+        @Override
+        public void addRow(Cursor c) {
+            for (Reducer reducer : reducers) {
+                reducer.add(c);
+            }
+        }
+
+        @Override
+        public void finish() {
+            // The reducers are finished once all reads are done
+        }
+    }
+
+    /** Samples and time per heart rate zone
+     *
+     */
+    private class HeartRateZones extends Reducer {
+        // Lower bound of every zone in bpm, zone 0 is below 50% of the maximum
+        final int[] lower = new int[6];
+        final int[] samples = new int[6];
+        final long[] millis = new long[6];
+        int count = 0;
+        double sum = 0;
+        float peak = 0;
+        long previousTime = -1;
+        int previousZone = 0;
+        int startIndex;
+        int rateIndex;
+
+        HeartRateZones() {
+            for (int zone = 1; zone < lower.length; zone++) {
+                lower[zone] = Math.round(query.maxHeartRate * (0.4f + 0.1f * zone));
+            }
+        }
+
+        @Override
+        void open(Cursor c) {
+            startIndex = c.getColumnIndex(HealthConstants.HeartRate.START_TIME);
+            rateIndex = c.getColumnIndex(HealthConstants.HeartRate.HEART_RATE);
+        }
+
+        @Override
+        void add(Cursor c) {
+            float rate = c.getFloat(rateIndex);
+            if (rate <= 0) {
+                return;
+            }
+
+            int zone = 0;
+            while (zone < lower.length - 1 && rate >= lower[zone + 1]) {
+                zone++;
+            }
+
+            long time = c.getLong(startIndex);
+            if (previousTime >= 0) {
+                millis[previousZone] += Math.min(time - previousTime, MAX_SAMPLE_GAP);
+            }
+            previousTime = time;
+            previousZone = zone;
+
+            samples[zone]++;
+            count++;
+            sum += rate;
+            peak = Math.max(peak, rate);
+        }
+
+        @Override
+        void finish() {
+            // The last sample has no following one and adds no time
+        }
+
+        void appendTo(StringBuilder out) {
+            out.append("{\"MAX_HEART_RATE\":").append(query.maxHeartRate)
+                    .append(",\"SAMPLES\":").append(count)
+                    .append(",\"MEAN\":");
+            appendNumber(out, count > 0 ? sum / count : Double.NaN);
+            out.append(",\"PEAK\":");
+            appendNumber(out, count > 0 ? peak : Double.NaN);
+            out.append(",\"ZONES\":[");
+
+            for (int zone = 0; zone < lower.length; zone++) {
+                if (zone > 0) {
+                    out.append(',');
+                }
+                out.append("{\"ZONE\":").append(zone)
+                        .append(",\"FROM\":").append(lower[zone])
+                        .append(",\"TO\":");
+                if (zone < lower.length - 1) {
+                    out.append(lower[zone + 1]);
+                } else {
+                    out.append("null");
+                }
+                out.append(",\"SAMPLES\":").append(samples[zone])
+                        .append(",\"MILLIS\":").append(millis[zone])
+                        .append('}');
+            }
+            out.append("]}");
+        }
+    }
+
+    /** Lowest rolling mean heart rate of every day and its mean over the last days
+     *
+     */
+    private class RestingHeartRate extends Reducer {
+        final long window = query.restingWindow * MINUTE_MILLIS;
+        final Ring samples = new Ring();
+        final Ring days = new Ring();
+        final StringBuilder out = new StringBuilder(256);
+        long day = Long.MIN_VALUE;
+        double lowest = Double.MAX_VALUE;
+        int dayCount = 0;
+        int startIndex;
+        int offsetIndex;
+        int rateIndex;
+
+        @Override
+        void open(Cursor c) {
+            startIndex = c.getColumnIndex(HealthConstants.HeartRate.START_TIME);
+            offsetIndex = c.getColumnIndex(HealthConstants.HeartRate.TIME_OFFSET);
+            rateIndex = c.getColumnIndex(HealthConstants.HeartRate.HEART_RATE);
+        }
+
+        @Override
+        void add(Cursor c) {
+            float rate = c.getFloat(rateIndex);
+            if (rate <= 0) {
+                return;
+            }
+
+            long time = c.getLong(startIndex);
+            long sampleDay = (time + c.getLong(offsetIndex)) / DAY_MILLIS;
+            if (sampleDay != day) {
+                endDay();
+                day = sampleDay;
+                lowest = Double.MAX_VALUE;
+                samples.clear();
+            }
+
+            samples.evictBefore(time - window + 1);
+            samples.add(time, rate, 0);
+            if (samples.size >= MIN_RESTING_SAMPLES) {
+                lowest = Math.min(lowest, samples.sumA / samples.size);
+            }
+        }
+
+        @Override
+        void finish() {
+            endDay();
+            day = Long.MIN_VALUE;
+        }
+
+        private void endDay() {
+            if (day == Long.MIN_VALUE || lowest == Double.MAX_VALUE) {
+                return;
+            }
+
+            days.evictBefore(day - query.restingDays + 1);
+            days.add(day, lowest, 0);
+
+            if (dayCount++ > 0) {
+                out.append(',');
+            }
+            out.append("{\"TIME\":");
+            appendDay(out, day);
+            out.append(",\"RESTING\":");
+            appendNumber(out, lowest);
+            out.append(",\"ROLLING\":");
+            appendNumber(out, days.sumA / days.size);
+            out.append(",\"DAYS\":").append(days.size).append('}');
+        }
+
+        void appendTo(StringBuilder message) {
+            message.append('[').append(out).append(']');
+        }
+    }
+
+    /** Sum of an amount per day
+     *
+     */
+    private class DailyTotal extends Reducer {
+        final String startColumn;
+        final String offsetColumn;
+        final String amountColumn;
+        long[] days = new long[32];
+        double[] totals = new double[32];
+        int count = 0;
+        int startIndex;
+        int offsetIndex;
+        int amountIndex;
+
+        DailyTotal(String pStartColumn, String pOffsetColumn, String pAmountColumn) {
+            startColumn = pStartColumn;
+            offsetColumn = pOffsetColumn;
+            amountColumn = pAmountColumn;
+        }
+
+        @Override
+        void open(Cursor c) {
+            startIndex = c.getColumnIndex(startColumn);
+            offsetIndex = c.getColumnIndex(offsetColumn);
+            amountIndex = c.getColumnIndex(amountColumn);
+        }
+
+        @Override
+        void add(Cursor c) {
+            long day = (c.getLong(startIndex) + c.getLong(offsetIndex)) / DAY_MILLIS;
+            if (count > 0 && days[count - 1] == day) {
+                totals[count - 1] += c.getFloat(amountIndex);
+                return;
+            }
+
+            if (count == days.length) {
+                days = Arrays.copyOf(days, count * 2);
+                totals = Arrays.copyOf(totals, count * 2);
+            }
+            days[count] = day;
+            totals[count] = c.getFloat(amountIndex);
+            count++;
+        }
+
+        @Override
+        void finish() {
+            // Every day is complete once it was added
+        }
+    }
+
+    /** Daily steps, walking time, mean walking cadence and the highest cadence held over the window
+     *
+     */
+    private class Cadence extends Reducer {
+        final long window = query.cadenceWindow * MINUTE_MILLIS;
+        final Ring walking = new Ring();
+        final StringBuilder out = new StringBuilder(256);
+        long day = Long.MIN_VALUE;
+        long steps = 0;
+        long walkingSteps = 0;
+        long walkingMillis = 0;
+        double peak = Double.NaN;
+        int dayCount = 0;
+        int startIndex;
+        int endIndex;
+        int offsetIndex;
+        int countIndex;
+
+        @Override
+        void open(Cursor c) {
+            startIndex = c.getColumnIndex(HealthConstants.StepCount.START_TIME);
+            endIndex = c.getColumnIndex(HealthConstants.StepCount.END_TIME);
+            offsetIndex = c.getColumnIndex(HealthConstants.StepCount.TIME_OFFSET);
+            countIndex = c.getColumnIndex(HealthConstants.StepCount.COUNT);
+        }
+
+        @Override
+        void add(Cursor c) {
+            long start = c.getLong(startIndex);
+            long end = c.getLong(endIndex);
+            int count = c.getInt(countIndex);
+            long duration = end > start ? end - start : MINUTE_MILLIS;
+
+            long rowDay = (start + c.getLong(offsetIndex)) / DAY_MILLIS;
+            if (rowDay != day) {
+                endDay();
+                day = rowDay;
+                steps = 0;
+                walkingSteps = 0;
+                walkingMillis = 0;
+                peak = Double.NaN;
+                walking.clear();
+            }
+
+            steps += count;
+
+            // Only uninterrupted walking counts towards the peak
+            if (count * (double) MINUTE_MILLIS / duration < query.minCadence) {
+                walking.clear();
+                return;
+            }
+
+            walkingSteps += count;
+            walkingMillis += duration;
+
+            walking.evictBefore(start + duration - window);
+            walking.add(start, count, duration);
+            if (walking.sumB >= window) {
+                double cadence = walking.sumA * MINUTE_MILLIS / walking.sumB;
+                peak = Double.isNaN(peak) ? cadence : Math.max(peak, cadence);
+            }
+        }
+
+        @Override
+        void finish() {
+            endDay();
+            day = Long.MIN_VALUE;
+        }
+
+        private void endDay() {
+            if (day == Long.MIN_VALUE) {
+                return;
+            }
+
+            if (dayCount++ > 0) {
+                out.append(',');
+            }
+            out.append("{\"TIME\":");
+            appendDay(out, day);
+            out.append(",\"STEPS\":").append(steps)
+                    .append(",\"WALKING_MINUTES\":");
+            appendNumber(out, walkingMillis / (double) MINUTE_MILLIS);
+            out.append(",\"CADENCE\":");
+            appendNumber(out, walkingMillis > 0 ? walkingSteps * (double) MINUTE_MILLIS / walkingMillis : Double.NaN);
+            out.append(",\"PEAK_CADENCE\":");
+            appendNumber(out, peak);
+            out.append('}');
+        }
+
+        void appendTo(StringBuilder message) {
+            message.append('[').append(out).append(']');
+        }
+    }
+
+    private final HealthDataStore mStore;
+    private final CallbackContext callbackContext;
+    private final MetricsQuery query;
+    private final Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+
+    private final List<Feed> feeds = new ArrayList<Feed>();
+    private final ArrayDeque<PagedRead> queued = new ArrayDeque<PagedRead>();
+    private HeartRateZones zones = null;
+    private RestingHeartRate resting = null;
+    private DailyTotal water = null;
+    private DailyTotal caffeine = null;
+    private Cadence cadence = null;
+
+    private int running = 0;
+    private boolean failed = false;
+    private QueryRequest request = null;
+    private Runnable onFinished = null;
+
+    /** Default Constructor.
+     *
+     * @param store             The connected {@link HealthDataStore}
+     * @param pCallbackContext  Object holding callback functions
+     * @param pQuery            The metrics to compute
+     */
+    public MetricsEngine(HealthDataStore store, CallbackContext pCallbackContext, MetricsQuery pQuery) {
+        mStore = store;
+        callbackContext = pCallbackContext;
+        query = pQuery;
+    }
+
+    /** Sets the request the computation belongs to, a cancelled request sends nothing
+     *
+     * @param pRequest      The request, may be null
+     * @return              This engine
+     */
+    public MetricsEngine setRequest(QueryRequest pRequest) {
+        request = pRequest;
+        return this;
+    }
+
+    /** Sets the callback run after the metrics or the error were sent
+     *
+     * @param pOnFinished   The callback, may be null
+     * @return              This engine
+     */
+    public MetricsEngine setOnFinished(Runnable pOnFinished) {
+        onFinished = pOnFinished;
+        return this;
+    }
+
+    /** Reads the needed data types and sends the metrics after the last row
+     *
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     */
+    public void compute(long startTime, long endTime) {
+        QueryOptions options = new QueryOptions();
+        options.readPageSize = PAGE_SIZE;
+
+        List<PagedRead> reads = new ArrayList<PagedRead>();
+
+        Feed heartRate = new Feed();
+        if (query.includes(MetricsQuery.HEART_RATE_ZONES)) {
+            zones = new HeartRateZones();
+            heartRate.reducers.add(zones);
+        }
+        if (query.includes(MetricsQuery.RESTING_HEART_RATE)) {
+            resting = new RestingHeartRate();
+            heartRate.reducers.add(resting);
+        }
+        if (!heartRate.reducers.isEmpty()) {
+            reads.add(read("HeartRate", new String[] {
+                    HealthConstants.HeartRate.START_TIME,
+                    HealthConstants.HeartRate.TIME_OFFSET,
+                    HealthConstants.HeartRate.HEART_RATE
+            }, heartRate, startTime, endTime, options));
+        }
+
+        if (query.includes(MetricsQuery.HYDRATION)) {
+            water = new DailyTotal(HealthConstants.WaterIntake.START_TIME,
+                    HealthConstants.WaterIntake.TIME_OFFSET, HealthConstants.WaterIntake.AMOUNT);
+            caffeine = new DailyTotal(HealthConstants.CaffeineIntake.START_TIME,
+                    HealthConstants.CaffeineIntake.TIME_OFFSET, HealthConstants.CaffeineIntake.AMOUNT);
+
+            Feed waterFeed = new Feed();
+            waterFeed.reducers.add(water);
+            reads.add(read("WaterIntake", new String[] {
+                    HealthConstants.WaterIntake.START_TIME,
+                    HealthConstants.WaterIntake.TIME_OFFSET,
+                    HealthConstants.WaterIntake.AMOUNT
+            }, waterFeed, startTime, endTime, options));
+
+            Feed caffeineFeed = new Feed();
+            caffeineFeed.reducers.add(caffeine);
+            reads.add(read("CaffeineIntake", new String[] {
+                    HealthConstants.CaffeineIntake.START_TIME,
+                    HealthConstants.CaffeineIntake.TIME_OFFSET,
+                    HealthConstants.CaffeineIntake.AMOUNT
+            }, caffeineFeed, startTime, endTime, options));
+        }
+
+        if (query.includes(MetricsQuery.CADENCE)) {
+            cadence = new Cadence();
+            Feed steps = new Feed();
+            steps.reducers.add(cadence);
+            reads.add(read("StepCount", new String[] {
+                    HealthConstants.StepCount.START_TIME,
+                    HealthConstants.StepCount.END_TIME,
+                    HealthConstants.StepCount.TIME_OFFSET,
+                    HealthConstants.StepCount.COUNT
+            }, steps, startTime, endTime, options));
+        }
+
+        synchronized (this) {
+            running = reads.size();
+            queued.addAll(reads);
+        }
+
+        int slots = ReadScheduler.slots(query.maxConcurrentReads, reads.size());
+        for (int i = 0; i < slots; i++) {
+            startNext();
+        }
+    }
+
+    /** Starts the next queued read, after a failure the remaining reads are only counted
+     *
+     */
+    private void startNext() {
+        PagedRead read;
+        boolean skip;
+        synchronized (this) {
+            read = queued.poll();
+            if (read == null) {
+                return;
+            }
+            skip = failed;
+        }
+
+        if (skip || !read.requestPage()) {
+            synchronized (this) {
+                failed = true;
+            }
+            onReadFinished(read);
+        }
+    }
+
+    private PagedRead read(String type, String[] hcString, Feed feed, long startTime, long endTime, QueryOptions options) {
+        feeds.add(feed);
+        return new PagedRead(mStore, DataSchema.get(type), hcString, startTime, endTime, options, feed, null)
+                .setRequest(request)
+                .setListener(this);
+    }
+
+    @Override
+    public void onReadFinished(PagedRead read) {
+        boolean last;
+        synchronized (this) {
+            if (!read.isComplete()) {
+                failed = true;
+            }
+            last = --running == 0;
+        }
+
+        if (!last) {
+            startNext();
+            return;
+        }
+
+        // A cancel or timeout was already answered
+        boolean cancelled = request != null && request.isCancelled();
+        if (failed && !cancelled) {
+            sendError();
+        } else if (!cancelled) {
+            for (Feed feed : feeds) {
+                for (Reducer reducer : feed.reducers) {
+                    reducer.finish();
+                }
+            }
+            send();
+        }
+
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    private void send() {
+        StringBuilder out = new StringBuilder(1024);
+        out.append("{\"TYPE\":\"Metrics\"");
+        if (query.requestId != null) {
+            out.append(",\"REQUEST_ID\":");
+            JsonText.appendString(out, query.requestId);
+        }
+
+        if (zones != null) {
+            out.append(",\"HEART_RATE_ZONES\":");
+            zones.appendTo(out);
+        }
+        if (resting != null) {
+            out.append(",\"RESTING_HEART_RATE\":");
+            resting.appendTo(out);
+        }
+        if (water != null) {
+            out.append(",\"HYDRATION\":");
+            appendHydration(out);
+        }
+        if (cadence != null) {
+            out.append(",\"CADENCE\":");
+            cadence.appendTo(out);
+        }
+        out.append('}');
+
+        Log.d(APP_TAG, "Metrics - " + query.metrics);
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, out.toString());
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+
+    /** Writes the water (ml) and caffeine (mg) totals of every day with either
+     *
+     */
+    private void appendHydration(StringBuilder out) {
+        out.append('[');
+        int w = 0;
+        int c = 0;
+        while (w < water.count || c < caffeine.count) {
+            long day;
+            if (c >= caffeine.count || (w < water.count && water.days[w] <= caffeine.days[c])) {
+                day = water.days[w];
+            } else {
+                day = caffeine.days[c];
+            }
+
+            double waterTotal = 0;
+            double caffeineTotal = 0;
+            while (w < water.count && water.days[w] == day) {
+                waterTotal += water.totals[w++];
+            }
+            while (c < caffeine.count && caffeine.days[c] == day) {
+                caffeineTotal += caffeine.totals[c++];
+            }
+
+            if (out.charAt(out.length() - 1) != '[') {
+                out.append(',');
+            }
+            out.append("{\"TIME\":");
+            appendDay(out, day);
+            out.append(",\"WATER\":");
+            appendNumber(out, waterTotal);
+            out.append(",\"CAFFEINE\":");
+            appendNumber(out, caffeineTotal);
+            out.append('}');
+        }
+        out.append(']');
+    }
+
+    private void appendDay(StringBuilder out, long day) {
+        calendar.setTimeInMillis(day * DAY_MILLIS);
+        out.append(String.format(Locale.US, "\"%04d-%02d-%02d\"", calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH)));
+    }
+
+    private static void appendNumber(StringBuilder out, double value) {
+        if (Double.isNaN(value)) {
+            out.append("null");
+        } else {
+            JsonText.appendDouble(out, value);
+        }
+    }
+
+    private void sendError() {
+        StringBuilder out = new StringBuilder("{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Computing metrics failed\"");
+        if (query.requestId != null) {
+            out.append(",\"REQUEST_ID\":");
+            JsonText.appendString(out, query.requestId);
+        }
+        out.append('}');
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, out.toString());
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+}
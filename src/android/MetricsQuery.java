@@ -0,0 +1,136 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** A computeMetrics request, e.g.
+ * <pre>
+ * {"metrics": ["heartRateZones", "restingHeartRate"], "maxHeartRate": 185}
+ * </pre>
+ * Without metrics all of them are computed.
+ */
+public class MetricsQuery {
+
+    /** Time per heart rate zone, zones are 10% steps from 50% of the maximum heart rate */
+    public static final String HEART_RATE_ZONES = "heartRateZones";
+
+    /** Daily resting heart rate and its rolling mean */
+    public static final String RESTING_HEART_RATE = "restingHeartRate";
+
+    /** Daily totals of WaterIntake and CaffeineIntake */
+    public static final String HYDRATION = "hydration";
+
+    /** Daily steps, walking time and step cadence */
+    public static final String CADENCE = "cadence";
+
+    private static final String[] ALL = { HEART_RATE_ZONES, RESTING_HEART_RATE, HYDRATION, CADENCE };
+
+    public final Set<String> metrics = new LinkedHashSet<String>();
+
+    /** Maximum heart rate the zones are based on, e.g. 220 minus the age */
+    public int maxHeartRate = 190;
+
+    /** Length of the rolling window in minutes whose lowest mean is the resting heart rate of a day */
+    public int restingWindow = 30;
+
+    /** Number of days of the rolling mean of the resting heart rate */
+    public int restingDays = 7;
+
+    /** Steps per minute from which a StepCount row counts as walking */
+    public int minCadence = 60;
+
+    /** Length of the rolling window in minutes of the peak cadence */
+    public int cadenceWindow = 10;
+
+    /** Identifies the request in the result and for cancel, defaults to the callback id of the call */
+    public String requestId = null;
+
+    /** Cancel the computation after this many milliseconds, 0 waits forever */
+    public long timeout = 0;
+
+    /** Maximum number of reads that run at the same time, see {@link ReadScheduler} */
+    public int maxConcurrentReads = 3;
+
+    /** Reads the request passed by JavaScript
+     *
+     * @param json      The request object, may be null
+     * @return          The parsed request
+     * @throws IllegalArgumentException if a metric is unknown
+     */
+    public static MetricsQuery fromJson(JSONObject json) {
+        MetricsQuery query = new MetricsQuery();
+        if (json == null) {
+            json = new JSONObject();
+        }
+
+        JSONArray metrics = json.optJSONArray("metrics");
+        if (metrics == null || metrics.length() == 0) {
+            for (String metric : ALL) {
+                query.metrics.add(metric);
+            }
+        } else {
+            for (int i = 0; i < metrics.length(); i++) {
+                String metric = metrics.optString(i);
+                if (!isKnown(metric)) {
+                    throw new IllegalArgumentException("Unknown metric " + metric);
+                }
+                query.metrics.add(metric);
+            }
+        }
+
+        query.maxHeartRate = Math.max(1, json.optInt("maxHeartRate", query.maxHeartRate));
+        query.restingWindow = Math.max(1, json.optInt("restingWindow", query.restingWindow));
+        query.restingDays = Math.max(1, json.optInt("restingDays", query.restingDays));
+        query.minCadence = Math.max(1, json.optInt("minCadence", query.minCadence));
+        query.cadenceWindow = Math.max(1, json.optInt("cadenceWindow", query.cadenceWindow));
+        query.requestId = json.optString("requestId", null);
+        query.timeout = Math.max(0, json.optLong("timeout", 0));
+        query.maxConcurrentReads = Math.max(1, json.optInt("maxConcurrentReads", query.maxConcurrentReads));
+
+        return query;
+    }
+
+    private static boolean isKnown(String metric) {
+        for (String known : ALL) {
+            if (known.equals(metric)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true if the metric was requested
+     *
+     * @param metric    Name of the metric
+     * @return          Whether it is computed
+     */
+    public boolean includes(String metric) {
+        return metrics.contains(metric);
+    }
+
+    /** Returns the data types read for the requested metrics
+     *
+     * @return  The health data type names
+     */
+    public List<String> getDataTypes() {
+        List<String> types = new ArrayList<String>();
+        if (includes(HEART_RATE_ZONES) || includes(RESTING_HEART_RATE)) {
+            types.add(HealthConstants.HeartRate.HEALTH_DATA_TYPE);
+        }
+        if (includes(HYDRATION)) {
+            types.add(HealthConstants.WaterIntake.HEALTH_DATA_TYPE);
+            types.add(HealthConstants.CaffeineIntake.HEALTH_DATA_TYPE);
+        }
+        if (includes(CADENCE)) {
+            types.add(HealthConstants.StepCount.HEALTH_DATA_TYPE);
+        }
+        return types;
+    }
+}
@@ -0,0 +1,92 @@
+package com.samsung.android.simplehealth;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Writes the rows of an incremental read into the {@link LocalMirror}.
+ *
+ * Rows are copied into batches that are written in one transaction each, so a
+ * read that is cancelled in the middle never leaves a transaction open.
+ */
+public class MirrorSink implements ResultSink {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final int BATCH_ROWS = 500;
+
+    private final LocalMirror mirror;
+    private final DataSchema schema;
+
+    private QueryCache.BucketBuilder copier = null;
+    private String[] columns = null;
+    private final List<Object[]> batch = new ArrayList<Object[]>();
+    private int rowCount = 0;
+    private boolean failed = false;
+
+    /** Default Constructor.
+     *
+     * @param pMirror   The mirror
+     * @param pSchema   Schema of the data type
+     */
+    public MirrorSink(LocalMirror pMirror, DataSchema pSchema) {
+        mirror = pMirror;
+        schema = pSchema;
+    }
+
+    /** Returns the number of rows written to the mirror
+     *
+     * @return  Number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** Returns true if a batch could not be written, the sync position must not move then
+     *
+     * @return  Whether writing failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    @Override
+    public void open(Cursor c) {
+        flush();
+        copier = QueryCache.BucketBuilder.forCursor(schema, c);
+        columns = copier.getColumnNames();
+    }
+
+    @Override
+    public void addRow(Cursor c) {
+        batch.add(copier.copy(c));
+        rowCount++;
+
+        if (batch.size() >= BATCH_ROWS) {
+            flush();
+        }
+    }
+
+    @Override
+    public void finish() {
+        flush();
+    }
+
+    private void flush() {
+        if (batch.isEmpty() || failed) {
+            batch.clear();
+            return;
+        }
+
+        try {
+            mirror.write(schema, columns, batch);
+        } catch (SQLiteException e) {
+            Log.e(APP_TAG, "MirrorSink " + schema.type + " - " + e.getMessage());
+            failed = true;
+        }
+        batch.clear();
+    }
+}
@@ -0,0 +1,423 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+import com.samsung.android.sdk.healthdata.HealthDataResolver;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.Filter;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.ReadRequest;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.ReadResult;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.SortOrder;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+import com.samsung.android.sdk.healthdata.HealthResultHolder;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Reads one data type page by page.
+ *
+ * With {@link QueryOptions#readPageSize} set, the rows are requested in pages sorted by
+ * start time. The next page is requested before the current one is serialized, so
+ * S Health fetches page N+1 while page N is converted and sent. Without a page size
+ * a single unbounded request is made.
+ *
+ * Incremental reads sort by UPDATE_TIME instead, only ask for rows after the given
+ * {@link SyncState.Watermark} and report the mark of the newest row once all rows were sent.
+ * They ignore the window, the mark is kept per data type and a window would hide rows
+ * that are older than the mark but were never read. Their pages continue at the
+ * UPDATE_TIME of the last row read instead of an offset, so a row that is changed
+ * while the pages are read moves behind the position and is read again, and the
+ * rows after it do not shift into the page that was already read. S Health sorts
+ * by a single property and rows with the same UPDATE_TIME (e.g. a bulk insert)
+ * come back in no fixed order, so the next page reads that time again and leaves
+ * out the UUIDs already read at it instead of skipping a number of rows.
+ *
+ * A read that belongs to a {@link QueryRequest} stops when the request is cancelled:
+ * the pending result is cancelled, the cursor is closed in the middle of the row
+ * loop and the rows that were not sent yet are dropped.
+ */
+public class PagedRead implements HealthResultHolder.ResultListener<ReadResult>, QueryRequest.Cancellable {
+
+    /** Called after the last page of a read was sent
+     *
+     */
+    public interface Listener {
+        void onReadFinished(PagedRead read);
+    }
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private final HealthDataStore mStore;
+    private final DataSchema schema;
+    private final String[] hcString;
+    private final long startTime;
+    private final long endTime;
+    private final int pageSize;
+    private final ResultSink sink;
+    private final boolean incremental;
+    private final SyncState.Watermark watermark;
+
+    private Listener listener = null;
+    private QueryRequest request = null;
+    private boolean ordered = false;
+    private boolean manual = false;
+    private boolean nextPending = false;
+    private HealthResultHolder<ReadResult> holder = null;
+    private boolean draining = false;
+    private final AtomicBoolean reported = new AtomicBoolean(false);
+    private volatile boolean complete = true;
+    private volatile boolean stopped = false;
+    private int offset = 0;
+    private long pageTime = -1;
+    private final List<String> pageUuids = new ArrayList<String>();
+    private int rowCount = 0;
+    private long newestUpdateTime = -1;
+    private String newestUuid = null;
+
+    /** Default Constructor.
+     *
+     * @param store         The connected {@link HealthDataStore}
+     * @param pSchema       Schema of the data type
+     * @param pHcString     Array of requested attributes
+     * @param pStartTime    Earliest time of measurement
+     * @param pEndTime      Latest time of measurement
+     * @param pOptions      Options of the query
+     * @param pSink         Receives the rows
+     * @param pWatermark    Only read rows after this mark, null reads the whole window
+     */
+    public PagedRead(HealthDataStore store, DataSchema pSchema, String[] pHcString, long pStartTime, long pEndTime,
+                     QueryOptions pOptions, ResultSink pSink, SyncState.Watermark pWatermark) {
+        mStore = store;
+        schema = pSchema;
+        hcString = pHcString;
+        startTime = pStartTime;
+        endTime = pEndTime;
+        pageSize = pOptions.readPageSize;
+        sink = pSink;
+        incremental = pOptions.incremental;
+        watermark = pWatermark;
+    }
+
+    /** Sets the object notified when the read is done
+     *
+     * @param pListener     The listener, may be null
+     * @return              This read
+     */
+    public PagedRead setListener(Listener pListener) {
+        listener = pListener;
+        return this;
+    }
+
+    /** Sets the request the read belongs to
+     *
+     * @param pRequest      The request, may be null
+     * @return              This read
+     */
+    public PagedRead setRequest(QueryRequest pRequest) {
+        request = pRequest;
+        return this;
+    }
+
+    /** Sorts the rows by start time even without a page size
+     *
+     * @param pOrdered      Whether the rows must arrive in time order
+     * @return              This read
+     */
+    public PagedRead setOrdered(boolean pOrdered) {
+        ordered = pOrdered;
+        return this;
+    }
+
+    /** Waits for {@link #requestNextPage()} instead of fetching the next page right away
+     *
+     * Lets a consumer that buffers pages limit how many of them are held at once.
+     *
+     * @param pManual       Whether the next page is requested by the caller
+     * @return              This read
+     */
+    public PagedRead setManualPaging(boolean pManual) {
+        manual = pManual;
+        return this;
+    }
+
+    /** Returns the schema of the data type that is read
+     *
+     * @return  The schema
+     */
+    public DataSchema getSchema() {
+        return schema;
+    }
+
+    /** Returns the mark of the newest row that was sent
+     *
+     * @return  The mark, or null if the read is not incremental or no row was sent
+     */
+    public SyncState.Watermark getNewest() {
+        return newestUpdateTime < 0 ? null : new SyncState.Watermark(newestUpdateTime, newestUuid);
+    }
+
+    /** Returns the number of rows that were sent
+     *
+     * @return  Number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /** Returns false if a page could not be requested or read, or the read was cancelled
+     *
+     * The sink of an incomplete read is not finished.
+     *
+     * @return  Whether all pages were read
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /** Requests the page starting at the current offset
+     *
+     * @return  False if the request could not be made, the read is incomplete then
+     */
+    public boolean requestPage() {
+        HealthDataResolver resolver = new HealthDataResolver(mStore, HealthThread.getHandler());
+
+        Filter filter = null;
+        if (!incremental) {
+            filter = Filter.and(Filter.greaterThanEquals(schema.hcStartTime, startTime),
+                    Filter.lessThanEquals(schema.hcStartTime, endTime));
+        }
+
+        if (watermark != null) {
+            filter = and(filter, watermark.toFilter());
+        }
+
+        // Rows after pageTime and the rows at pageTime that were not read yet
+        if (pageTime >= 0) {
+            filter = and(filter, Filter.or(Filter.greaterThan(HealthConstants.Common.UPDATE_TIME, pageTime),
+                    Filter.and(Filter.eq(HealthConstants.Common.UPDATE_TIME, pageTime),
+                            Filter.not(Filter.in(HealthConstants.Common.UUID,
+                                    pageUuids.toArray(new String[pageUuids.size()]))))));
+        }
+
+        ReadRequest.Builder builder = new ReadRequest.Builder()
+                .setDataType(schema.hcHDT)
+                .setProperties(hcString);
+
+        if (filter != null) {
+            builder.setFilter(filter);
+        }
+
+        if (incremental) {
+            builder.setSort(HealthConstants.Common.UPDATE_TIME, SortOrder.ASC);
+        } else if (pageSize > 0 || ordered) {
+            builder.setSort(schema.hcStartTime, SortOrder.ASC);
+        }
+
+        if (pageSize > 0) {
+            builder.setResultCount(offset, pageSize);
+        }
+
+        if (stopped || (request != null && !request.add(this))) {
+            complete = false;
+            return false;
+        }
+
+        try {
+            HealthResultHolder<ReadResult> pending = resolver.read(builder.build());
+            synchronized (this) {
+                holder = pending;
+            }
+            pending.setResultListener(this);
+            return true;
+        } catch (Exception e) {
+            Log.e(APP_TAG, e.getClass().getName() + " - " + e.getMessage());
+            complete = false;
+            return false;
+        }
+    }
+
+    /** Requests the next page of a read with manual paging
+     *
+     * @return  False if there is no next page or it could not be requested
+     */
+    public boolean requestNextPage() {
+        synchronized (this) {
+            if (!nextPending) {
+                return false;
+            }
+            nextPending = false;
+        }
+
+        if (isCancelled() || !requestPage()) {
+            complete = false;
+            report(false);
+            return false;
+        }
+        return true;
+    }
+
+    /** Cancels the pending page and stops draining the current one
+     *
+     * Also used by reads made of several PagedReads to stop the others once one of them failed.
+     */
+    @Override
+    public void cancel() {
+        HealthResultHolder<ReadResult> pending;
+        boolean idle;
+        synchronized (this) {
+            complete = false;
+            stopped = true;
+            pending = holder;
+            idle = !draining;
+        }
+
+        if (pending != null) {
+            pending.cancel();
+        }
+
+        // A read in the row loop notices the cancellation itself
+        if (idle) {
+            report(false);
+        }
+    }
+
+    @Override
+    public void onResult(ReadResult result) {
+        Cursor c = null;
+        boolean more = false;
+
+        synchronized (this) {
+            draining = true;
+        }
+
+        try {
+            c = result.getResultCursor();
+
+            if (c != null && !isCancelled()) {
+                int count = c.getCount();
+
+                // A full page means there may be more rows, fetch them while this page is serialized
+                if (pageSize > 0 && count >= pageSize) {
+                    nextPosition(c, count);
+                    if (manual) {
+                        synchronized (this) {
+                            nextPending = true;
+                        }
+                        more = true;
+                    } else {
+                        more = requestPage();
+                    }
+                }
+
+                sink.open(c);
+
+                int updateTimeIndex = c.getColumnIndex(HealthConstants.Common.UPDATE_TIME);
+                int uuidIndex = c.getColumnIndex(HealthConstants.Common.UUID);
+                boolean track = incremental && updateTimeIndex >= 0 && uuidIndex >= 0;
+
+                while (c.moveToNext()) {
+                    if (isCancelled()) {
+                        break;
+                    }
+
+                    sink.addRow(c);
+                    rowCount++;
+
+                    if (track) {
+                        trackNewest(c.getLong(updateTimeIndex), c.getString(uuidIndex));
+                    }
+                }
+            } else if (c == null) {
+                Log.e(APP_TAG, schema.type + " - no result cursor");
+                complete = false;
+            }
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+
+            synchronized (this) {
+                draining = false;
+            }
+        }
+
+        if (isCancelled()) {
+            complete = false;
+            report(false);
+        } else if (!more) {
+            // A read that lost a page must not look complete
+            report(complete);
+        }
+    }
+
+    private boolean isCancelled() {
+        return stopped || (request != null && request.isCancelled());
+    }
+
+    private static Filter and(Filter a, Filter b) {
+        return a == null ? b : Filter.and(a, b);
+    }
+
+    /** Moves the position of the next page behind a full page
+     *
+     * Incremental reads continue at the UPDATE_TIME of the last row and remember the
+     * UUIDs of all rows read at that time, which the next page leaves out. Other reads
+     * continue at the next offset.
+     *
+     * @param c         Cursor of the page
+     * @param count     Number of rows of the page
+     */
+    private void nextPosition(Cursor c, int count) {
+        int updateTimeIndex = c.getColumnIndex(HealthConstants.Common.UPDATE_TIME);
+        int uuidIndex = c.getColumnIndex(HealthConstants.Common.UUID);
+        if (!incremental || updateTimeIndex < 0 || uuidIndex < 0) {
+            offset += count;
+            return;
+        }
+
+        c.moveToPosition(count - 1);
+        long last = c.getLong(updateTimeIndex);
+        if (last != pageTime) {
+            pageTime = last;
+            pageUuids.clear();
+        }
+
+        // The rows at the last time are at the end of the page, in any order
+        for (int i = count - 1; i >= 0 && c.moveToPosition(i) && c.getLong(updateTimeIndex) == last; i--) {
+            pageUuids.add(c.getString(uuidIndex));
+        }
+        c.moveToPosition(-1);
+    }
+
+    /** Finishes the read once, the rows of a cancelled or failed read are dropped
+     *
+     * @param send  Send the last page
+     */
+    private void report(boolean send) {
+        if (!reported.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (request != null) {
+            request.remove(this);
+        }
+
+        if (send) {
+            sink.finish();
+        }
+
+        if (listener != null) {
+            listener.onReadFinished(this);
+        }
+    }
+
+    private void trackNewest(long updateTime, String uuid) {
+        if (updateTime > newestUpdateTime
+                || (updateTime == newestUpdateTime && uuid != null && (newestUuid == null || uuid.compareTo(newestUuid) > 0))) {
+            newestUpdateTime = updateTime;
+            newestUuid = uuid;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.samsung.android.simplehealth;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+
+/** Compresses large result pages before they cross the bridge.
+ *
+ * A compressed page is sent as an ArrayBuffer with a small header followed by a
+ * zlib stream, which JavaScript inflates with <code>DecompressionStream("deflate")</code>:
+ * <pre>
+ *  0  char[4]  magic "SHCZ"
+ *  4  uint8    version (1)
+ *  5  uint8    content, 1 = JSON text (UTF-8), 2 = columnar page (see {@link ColumnarEncoder})
+ *  6  uint16   reserved (0)
+ *  8  uint32   length of the inflated content
+ * 12  zlib stream
+ * </pre>
+ * Pages below the threshold, and pages that would not get at least 10% smaller,
+ * are sent unchanged, so small results do not pay for compression.
+ */
+public class PayloadCompressor {
+
+    public static final int VERSION = 1;
+    public static final int CONTENT_JSON = 1;
+    public static final int CONTENT_COLUMNAR = 2;
+
+    /** Pages smaller than this are sent unchanged if the options do not set a threshold */
+    public static final int DEFAULT_THRESHOLD = 8192;
+
+    private static final byte[] MAGIC = { 'S', 'H', 'C', 'Z' };
+    private static final int HEADER_BYTES = 12;
+
+    private final int threshold;
+    private byte[] chunk = null;
+
+    /** Default Constructor.
+     *
+     * @param pOptions  Options of the query
+     */
+    public PayloadCompressor(QueryOptions pOptions) {
+        threshold = pOptions.compressThreshold > 0 ? pOptions.compressThreshold : DEFAULT_THRESHOLD;
+    }
+
+    /** Compresses a page if that is worth it
+     *
+     * @param payload   The page
+     * @param content   {@link #CONTENT_JSON} or {@link #CONTENT_COLUMNAR}
+     * @return          The compressed page with header, or null to send the page unchanged
+     */
+    public byte[] compress(byte[] payload, int content) {
+        if (payload.length < threshold) {
+            return null;
+        }
+
+        if (chunk == null) {
+            chunk = new byte[16384];
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4 + HEADER_BYTES);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).put((byte) VERSION).put((byte) content).putShort((short) 0).putInt(payload.length);
+        out.write(header.array(), 0, HEADER_BYTES);
+
+        // The native zlib state is released right away, a cancelled read never finishes its sink
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(chunk);
+                out.write(chunk, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        if (out.size() > payload.length * 0.9) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,42 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionKey;
+import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionType;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/** Remembers which data types may be read.
+ *
+ * The snapshot is refreshed when S Health connects and when the permission UI
+ * returns, so queries do not ask S Health for every read. Types that were never
+ * checked count as granted, so reads are only skipped for known denials.
+ */
+public class PermissionSnapshot {
+
+    private volatile Map<String, Boolean> granted = new HashMap<String, Boolean>();
+
+    /** Replaces the snapshot with a permission result
+     *
+     * @param result    Permission per key as returned by the permission manager
+     */
+    public void update(Map<PermissionKey, Boolean> result) {
+        Map<String, Boolean> next = new HashMap<String, Boolean>(granted);
+        for (Map.Entry<PermissionKey, Boolean> entry : result.entrySet()) {
+            if (entry.getKey().getPermissionType() == PermissionType.READ) {
+                next.put(entry.getKey().getDataType(), Boolean.TRUE.equals(entry.getValue()));
+            }
+        }
+        granted = next;
+    }
+
+    /** Returns false if reading the data type is known to be denied
+     *
+     * @param dataType  Name of the S Health data type, e.g. {@link DataSchema#hcHDT}
+     * @return          Whether the data type may be read
+     */
+    public boolean isGranted(String dataType) {
+        Boolean value = granted.get(dataType);
+        return value == null || value;
+    }
+}
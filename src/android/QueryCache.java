@@ -0,0 +1,374 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataObserver;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Keeps the rows of closed hours in memory.
+ *
+ * Entries are keyed by data type, requested properties and the start of the hour
+ * (UTC aligned). Only hours that ended before the read started are stored, the
+ * current hour is always read from S Health. The least recently used hours are
+ * evicted once the estimated size exceeds the budget.
+ *
+ * An observer per data type drops all hours of a type as soon as S Health reports
+ * a change of it, so later reads see the change.
+ */
+public class QueryCache {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    /** Length of a cached time bucket */
+    public static final long BUCKET_MILLIS = 3600000L;
+
+    /** Estimated size of a bucket without rows: its key, map entry and lists */
+    private static final long BUCKET_BYTES = 256;
+
+    /** The rows of one hour
+     *
+     */
+    public static class Bucket {
+        private final String[] columns;
+        private final List<Object[]> rows;
+        private final long bytes;
+
+        Bucket(String[] pColumns, List<Object[]> pRows, long pBytes) {
+            columns = pColumns;
+            rows = pRows;
+            bytes = pBytes;
+        }
+
+        /** Returns the number of rows
+         *
+         * @return  Number of rows
+         */
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        /** Returns a new cursor over the rows, every reader gets its own position
+         *
+         * @return  The cursor
+         */
+        public Cursor toCursor() {
+            MatrixCursor c = new MatrixCursor(columns, rows.size());
+            for (Object[] row : rows) {
+                c.addRow(row);
+            }
+            return c;
+        }
+    }
+
+    /** Copies rows of a cursor into buckets
+     *
+     */
+    public static class BucketBuilder {
+        private final DataSchema.Column[] columns;
+        private final int[] indices;
+        private final List<Object[]> rows = new ArrayList<Object[]>();
+        private long bytes = BUCKET_BYTES;
+
+        /** Default Constructor.
+         *
+         * @param pColumns  Schema columns present in the cursor
+         * @param pIndices  Cursor index of each column
+         */
+        public BucketBuilder(DataSchema.Column[] pColumns, int[] pIndices) {
+            columns = pColumns;
+            indices = pIndices;
+        }
+
+        /** Creates a builder for the schema columns found in the cursor
+         *
+         * @param schema    Schema of the data type
+         * @param c         The cursor
+         * @return          The builder
+         */
+        public static BucketBuilder forCursor(DataSchema schema, Cursor c) {
+            List<DataSchema.Column> found = new ArrayList<DataSchema.Column>();
+            for (DataSchema.Column column : schema.getColumns()) {
+                if (c.getColumnIndex(column.name) >= 0) {
+                    found.add(column);
+                }
+            }
+
+            DataSchema.Column[] columns = found.toArray(new DataSchema.Column[found.size()]);
+            int[] indices = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                indices[i] = c.getColumnIndex(columns[i].name);
+            }
+            return new BucketBuilder(columns, indices);
+        }
+
+        /** Returns the number of copied rows
+         *
+         * @return  Number of rows
+         */
+        public int getRowCount() {
+            return rows.size();
+        }
+
+        /** Copies the current row of the cursor
+         *
+         * @param c     The cursor, positioned on a row
+         */
+        public void add(Cursor c) {
+            Object[] row = copy(c);
+            bytes += 16 + 8 * row.length;
+
+            for (Object value : row) {
+                if (value instanceof String) {
+                    bytes += 40 + 2 * ((String) value).length();
+                } else if (value instanceof byte[]) {
+                    bytes += 16 + ((byte[]) value).length;
+                }
+                if (value != null) {
+                    bytes += 16;
+                }
+            }
+            rows.add(row);
+        }
+
+        /** Returns the current row of the cursor as values in column order, without keeping it
+         *
+         * @param c     The cursor, positioned on a row
+         * @return      The values, null for null columns
+         */
+        public Object[] copy(Cursor c) {
+            Object[] row = new Object[columns.length];
+
+            for (int i = 0; i < columns.length; i++) {
+                int index = indices[i];
+                if (c.isNull(index)) {
+                    continue;
+                }
+
+                switch (columns[i].kind) {
+                    case LONG:
+                        row[i] = c.getLong(index);
+                        break;
+                    case INT:
+                        row[i] = c.getInt(index);
+                        break;
+                    case FLOAT:
+                        row[i] = c.getFloat(index);
+                        break;
+                    case STRING:
+                        row[i] = c.getString(index);
+                        break;
+                    case BLOB:
+                        row[i] = c.getBlob(index);
+                        break;
+                }
+            }
+            return row;
+        }
+
+        /** Returns the column names of the copied rows
+         *
+         * @return  The names, in row order
+         */
+        public String[] getColumnNames() {
+            String[] names = new String[columns.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = columns[i].name;
+            }
+            return names;
+        }
+
+        /** Returns the position of a column in the copied rows
+         *
+         * @param name  Name of the column
+         * @return      The position, or -1 if the column was not read
+         */
+        public int indexOf(String name) {
+            for (int i = 0; i < columns.length; i++) {
+                if (columns[i].name.equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /** Returns the schema column at a position of the copied rows
+         *
+         * @param i     The position
+         * @return      The column
+         */
+        public DataSchema.Column getColumn(int i) {
+            return columns[i];
+        }
+
+        /** Returns the estimated size of the copied rows
+         *
+         * @return  Size in bytes
+         */
+        public long getByteCount() {
+            return bytes;
+        }
+
+        /** Returns the copied rows as a bucket
+         *
+         * @return  The bucket
+         */
+        public Bucket build() {
+            return new Bucket(getColumnNames(), rows, bytes);
+        }
+    }
+
+    private final HealthDataStore mStore;
+    private final long budget;
+    private long size = 0;
+
+    private final LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<String, Bucket>(64, 0.75f, true);
+    private final Map<String, Integer> generations = new HashMap<String, Integer>();
+    private final Map<String, HealthDataObserver> observers = new HashMap<String, HealthDataObserver>();
+
+    /** Default Constructor.
+     *
+     * @param store     The connected {@link HealthDataStore}
+     * @param pBudget   Maximum estimated size of all cached rows in bytes
+     */
+    public QueryCache(HealthDataStore store, long pBudget) {
+        mStore = store;
+        budget = pBudget;
+    }
+
+    /** Returns the maximum estimated size of all cached rows
+     *
+     * @return  Size in bytes
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    /** Drops the cached hours of a data type whenever it changes in S Health
+     *
+     * @param schema    Schema of the data type
+     */
+    public void watch(final DataSchema schema) {
+        HealthDataObserver observer;
+
+        synchronized (this) {
+            if (observers.containsKey(schema.type)) {
+                return;
+            }
+
+            observer = new HealthDataObserver(HealthThread.getHandler()) {
+                @Override
+                public void onChange(String dataTypeName) {
+                    invalidate(schema.type);
+                }
+            };
+            observers.put(schema.type, observer);
+        }
+
+        HealthDataObserver.addObserver(mStore, schema.hcHDT, observer);
+    }
+
+    /** Returns the cached rows of an hour
+     *
+     * @param type          Name of the data type
+     * @param projection    Requested properties
+     * @param bucketStart   Start of the hour
+     * @return              The rows, or null if the hour is not cached
+     */
+    public synchronized Bucket get(String type, String projection, long bucketStart) {
+        return buckets.get(key(type, projection, bucketStart));
+    }
+
+    /** Returns a counter that changes with every invalidation of a data type
+     *
+     * @param type  Name of the data type
+     * @return      The counter
+     */
+    public synchronized int getGeneration(String type) {
+        Integer generation = generations.get(type);
+        return generation == null ? 0 : generation;
+    }
+
+    /** Stores the rows of an hour, unless the data type changed since they were read
+     *
+     * @param type          Name of the data type
+     * @param projection    Requested properties
+     * @param bucketStart   Start of the hour
+     * @param bucket        The rows
+     * @param generation    Counter of the data type when the read started
+     */
+    public synchronized void put(String type, String projection, long bucketStart, Bucket bucket, int generation) {
+        if (generation != getGeneration(type) || bucket.bytes > budget) {
+            return;
+        }
+
+        Bucket previous = buckets.put(key(type, projection, bucketStart), bucket);
+        size += bucket.bytes;
+        if (previous != null) {
+            size -= previous.bytes;
+        }
+
+        Iterator<Bucket> eldest = buckets.values().iterator();
+        while (size > budget && eldest.hasNext()) {
+            size -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    /** Drops all cached hours of a data type
+     *
+     * @param type  Name of the data type
+     */
+    public synchronized void invalidate(String type) {
+        Log.d(APP_TAG, "QueryCache invalidate " + type);
+
+        generations.put(type, getGeneration(type) + 1);
+
+        String prefix = type + "\n";
+        Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Bucket> entry = it.next();
+            if (entry.getKey().startsWith(prefix)) {
+                size -= entry.getValue().bytes;
+                it.remove();
+            }
+        }
+    }
+
+    /** Drops all cached hours and observers, they are registered again by the next read
+     *
+     */
+    public void reset() {
+        List<HealthDataObserver> removed;
+        synchronized (this) {
+            for (String type : observers.keySet()) {
+                generations.put(type, getGeneration(type) + 1);
+            }
+            removed = new ArrayList<HealthDataObserver>(observers.values());
+            observers.clear();
+            buckets.clear();
+            size = 0;
+        }
+
+        for (HealthDataObserver observer : removed) {
+            try {
+                HealthDataObserver.removeObserver(mStore, observer);
+            } catch (Exception e) {
+                // The store may have lost the observers with the old connection
+                Log.d(APP_TAG, "QueryCache removeObserver - " + e.getMessage());
+            }
+        }
+    }
+
+    private static String key(String type, String projection, long bucketStart) {
+        return type + "\n" + projection + "\n" + bucketStart;
+    }
+}
@@ -0,0 +1,256 @@
+package com.samsung.android.simplehealth;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/** Options for a single getDataFromSHealth call.
+ *
+ * Parsed from the optional third element of the parameter array, e.g.
+ * <code>[startTime, endTime, {"pageRows": 500, "readPageSize": 1000}]</code>.
+ */
+public class QueryOptions {
+
+    /** Maximum number of rows per page, 0 sends all rows of a data type at once */
+    public int pageRows = 0;
+
+    /** Approximate maximum size of a page in characters, 0 disables the byte budget */
+    public int pageBytes = 0;
+
+    /** Number of rows requested from S Health at once, 0 reads the whole time window in one request */
+    public int readPageSize = 0;
+
+    /** Result format, "json" (default) or "binary" for columnar ArrayBuffer pages */
+    public String format = "json";
+
+    /** Only read rows added or changed since the last incremental read of the data type, ignores the window */
+    public boolean incremental = false;
+
+    /** Serve closed hours from the in-memory {@link QueryCache}, ignored by incremental reads */
+    public boolean cache = false;
+
+    /** Identifies the request in every row and page, defaults to the callback id of the call */
+    public String requestId = null;
+
+    /** Milliseconds after which the request is cancelled with an error, 0 waits forever */
+    public long timeout = 0;
+
+    /** Approximate number of rows per sub-range when a long window is split, 0 reads the window at once */
+    public int splitRows = 0;
+
+    /** Maximum number of sub-ranges of one data type read at the same time */
+    public int parallelReads = 2;
+
+    /** Reduces high-frequency data types while they are read, "minmax", "mean" or "lttb", null sends every row */
+    public String downsample = null;
+
+    /** Length of a downsampling bucket in milliseconds, 0 derives it from {@link #downsamplePoints} */
+    public long downsampleInterval = 0;
+
+    /** Number of downsampling buckets in the time window, 0 uses 500 */
+    public int downsamplePoints = 0;
+
+    /** Property that is reduced, e.g. "HEART_RATE", null uses the main value of the data type */
+    public String downsampleColumn = null;
+
+    /** Send large pages deflate compressed, see {@link PayloadCompressor} */
+    public boolean compress = false;
+
+    /** Pages of at least this many bytes are compressed, 0 uses {@link PayloadCompressor#DEFAULT_THRESHOLD} */
+    public int compressThreshold = 0;
+
+    /** Where rows are read from, "shealth" (default) or "mirror" for the {@link LocalMirror} */
+    public String source = "shealth";
+
+    /** Decode the LOCATION_DATA of exercises into simplified routes, see {@link ExerciseRoute} */
+    public boolean routes = false;
+
+    /** Largest distance in meters of a dropped route point from the simplified route, negative uses the default */
+    public double routeTolerance = -1;
+
+    /** Route output, "polyline" (default, Google encoded polyline) or "points" */
+    public String routeFormat = "polyline";
+
+    /** Send the rows of all data types as one stream ordered by start time, see {@link MergedRead} */
+    public boolean merge = false;
+
+    /** Maximum number of data types read from S Health at the same time */
+    public int maxConcurrentReads = 3;
+
+    /** Read order per data type, e.g. {"HeartRate": 10}, higher first, missing types have priority 0 */
+    public Map<String, Integer> priorities = new HashMap<String, Integer>();
+
+    /** Names of the data types to read, e.g. "StepCount", null reads all types */
+    public Set<String> types = null;
+
+    /** Property names to read per data type, e.g. {"HeartRate": ["HEART_RATE"]}, missing types read all properties */
+    public Map<String, Set<String>> properties = new HashMap<String, Set<String>>();
+
+    /** Default Constructor.
+     *
+     */
+    public QueryOptions() {
+    }
+
+    /** Reads the options from the JSON object passed by JavaScript
+     *
+     * @param json      Options object, may be null
+     * @return          The parsed options
+     * @throws IllegalArgumentException if options are combined that cannot be served together
+     */
+    public static QueryOptions fromJson(JSONObject json) {
+        QueryOptions options = new QueryOptions();
+
+        if (json != null) {
+            options.pageRows = Math.max(0, json.optInt("pageRows", 0));
+            options.pageBytes = Math.max(0, json.optInt("pageBytes", 0));
+            options.readPageSize = Math.max(0, json.optInt("readPageSize", 0));
+            options.format = json.optString("format", "json");
+            options.requestId = json.optString("requestId", null);
+            options.timeout = Math.max(0, json.optLong("timeout", 0));
+            options.incremental = json.optBoolean("incremental", false);
+            options.cache = json.optBoolean("cache", false);
+            options.splitRows = Math.max(0, json.optInt("splitRows", 0));
+            options.parallelReads = Math.max(1, json.optInt("parallelReads", options.parallelReads));
+            options.downsample = json.optString("downsample", null);
+            options.downsampleInterval = Math.max(0, json.optLong("downsampleInterval", 0));
+            options.downsamplePoints = Math.max(0, json.optInt("downsamplePoints", 0));
+            options.downsampleColumn = json.optString("downsampleColumn", null);
+            options.compress = json.optBoolean("compress", false);
+            options.compressThreshold = Math.max(0, json.optInt("compressThreshold", 0));
+            options.source = json.optString("source", options.source);
+            options.routes = json.optBoolean("routes", false);
+            options.routeTolerance = json.optDouble("routeTolerance", options.routeTolerance);
+            options.routeFormat = json.optString("routeFormat", options.routeFormat);
+            options.merge = json.optBoolean("merge", options.merge);
+            options.maxConcurrentReads = Math.max(1, json.optInt("maxConcurrentReads", options.maxConcurrentReads));
+
+            JSONArray types = json.optJSONArray("types");
+            if (types != null) {
+                options.types = toSet(types);
+            }
+
+            JSONObject properties = json.optJSONObject("properties");
+            if (properties != null) {
+                Iterator<String> keys = properties.keys();
+                while (keys.hasNext()) {
+                    String type = keys.next();
+                    JSONArray names = properties.optJSONArray(type);
+                    if (names != null) {
+                        options.properties.put(type, toSet(names));
+                    }
+                }
+            }
+
+            JSONObject priorities = json.optJSONObject("priorities");
+            if (priorities != null) {
+                Iterator<String> keys = priorities.keys();
+                while (keys.hasNext()) {
+                    String type = keys.next();
+                    options.priorities.put(type, priorities.optInt(type, 0));
+                }
+            }
+        }
+
+        // Binary pages carry LOCATION_DATA as raw bytes, routes are only decoded into JSON
+        if (options.routes && options.isBinary()) {
+            throw new IllegalArgumentException("routes cannot be combined with format binary");
+        }
+
+        // A merged read sends one JSON stream read from S Health, see DataReporter#readMerged
+        if (options.merge) {
+            if (options.incremental) {
+                throw new IllegalArgumentException("merge cannot be combined with incremental");
+            }
+            if (options.isBinary()) {
+                throw new IllegalArgumentException("merge cannot be combined with format binary");
+            }
+            if (options.downsample != null) {
+                throw new IllegalArgumentException("merge cannot be combined with downsample");
+            }
+            if (options.isMirror()) {
+                throw new IllegalArgumentException("merge cannot be combined with source mirror");
+            }
+        }
+
+        return options;
+    }
+
+    /** Returns true if the data type should be read
+     *
+     * @param type  Name of the data type
+     * @return      Whether the data type was requested
+     */
+    public boolean includesType(String type) {
+        return types == null || types.contains(type);
+    }
+
+    /** Returns the requested property names of a data type
+     *
+     * @param type  Name of the data type
+     * @return      Property names, or null if all properties should be read
+     */
+    public Set<String> getProperties(String type) {
+        return properties.get(type);
+    }
+
+    /** Returns the read priority of a data type
+     *
+     * @param type  Name of the data type
+     * @return      The priority, higher is read first
+     */
+    public int getPriority(String type) {
+        Integer priority = priorities.get(type);
+        return priority == null ? 0 : priority;
+    }
+
+    private static Set<String> toSet(JSONArray array) {
+        Set<String> set = new HashSet<String>();
+        for (int i = 0; i < array.length(); i++) {
+            String value = array.optString(i, null);
+            if (value != null) {
+                set.add(value);
+            }
+        }
+        return set;
+    }
+
+    /** Returns true if results should be sent in the binary columnar format
+     *
+     * @return  Whether the binary format was requested
+     */
+    public boolean isBinary() {
+        return "binary".equals(format);
+    }
+
+    /** Returns true if the rows of the data type are reduced before they are sent
+     *
+     * @param schema    Schema of the data type
+     * @return          Whether downsampling applies, incremental reads are never reduced
+     */
+    public boolean isDownsampled(DataSchema schema) {
+        return ("minmax".equals(downsample) || "mean".equals(downsample) || "lttb".equals(downsample))
+                && !incremental && DownsampleSink.getValueColumn(schema, this) != null;
+    }
+
+    /** Returns true if the rows are read from the {@link LocalMirror}
+     *
+     * @return  Whether the mirror was requested
+     */
+    public boolean isMirror() {
+        return "mirror".equals(source);
+    }
+
+    /** Returns true if results should be delivered in pages
+     *
+     * @return  Whether paging is enabled
+     */
+    public boolean isPaged() {
+        return pageRows > 0 || pageBytes > 0;
+    }
+}
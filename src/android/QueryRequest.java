@@ -0,0 +1,116 @@
+package com.samsung.android.simplehealth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** State of one getDataFromSHealth call that can be cancelled.
+ *
+ * Reads register while they wait for S Health or drain a cursor. Cancelling the
+ * request cancels all of them; reads that were not started yet see the flag and
+ * never start.
+ */
+public class QueryRequest {
+
+    /** A running part of the request
+     *
+     */
+    public interface Cancellable {
+        void cancel();
+    }
+
+    public final String requestId;
+
+    private volatile boolean cancelled = false;
+    private boolean finished = false;
+    private Runnable timer = null;
+    private final List<Cancellable> running = new ArrayList<Cancellable>();
+    private int openReads;
+
+    /** Default Constructor.
+     *
+     * @param pRequestId    Id of the request
+     * @param pReads        Number of reads that belong to the request
+     */
+    public QueryRequest(String pRequestId, int pReads) {
+        requestId = pRequestId;
+        openReads = pReads;
+    }
+
+    /** Returns true once the request was cancelled
+     *
+     * @return  Whether the request was cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /** Sets the timeout callback posted for the request
+     *
+     * @param pTimer    The callback, removed from the handler once the request finished
+     */
+    public synchronized void setTimer(Runnable pTimer) {
+        timer = pTimer;
+    }
+
+    /** Marks the request as finished, it can no longer be cancelled afterwards
+     *
+     * @return  The timeout callback that is no longer needed, or null
+     */
+    public synchronized Runnable finish() {
+        finished = true;
+        Runnable pending = timer;
+        timer = null;
+        return pending;
+    }
+
+    /** Registers a running part
+     *
+     * @param part  The part
+     * @return      False if the request is already cancelled, the part must not run then
+     */
+    public synchronized boolean add(Cancellable part) {
+        if (cancelled) {
+            return false;
+        }
+        if (!running.contains(part)) {
+            running.add(part);
+        }
+        return true;
+    }
+
+    /** Removes a part that is done
+     *
+     * @param part  The part
+     */
+    public synchronized void remove(Cancellable part) {
+        running.remove(part);
+    }
+
+    /** Counts a finished read
+     *
+     * @return  True if it was the last read of the request
+     */
+    public synchronized boolean readFinished() {
+        return --openReads <= 0;
+    }
+
+    /** Cancels all running parts
+     *
+     * @return  False if the request was already cancelled or is finished
+     */
+    public boolean cancel() {
+        List<Cancellable> parts;
+        synchronized (this) {
+            if (cancelled || finished) {
+                return false;
+            }
+            cancelled = true;
+            parts = new ArrayList<Cancellable>(running);
+        }
+
+        for (Cancellable part : parts) {
+            part.cancel();
+        }
+        return true;
+    }
+}
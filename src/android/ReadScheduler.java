@@ -0,0 +1,139 @@
+package com.samsung.android.simplehealth;
+
+import android.util.Log;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/** Limits how many reads run against S Health at the same time.
+ *
+ * Reads are queued with a priority and started highest priority first (in the
+ * order they were submitted for equal priorities) as long as fewer reads than the
+ * limit of the next one are running. A finished read starts the next one, so only
+ * a few cursors and result buffers are alive at once. A task that runs several
+ * reads side by side reserves one slot per read, up to its limit.
+ */
+public class ReadScheduler {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    /** A read that can be queued
+     *
+     */
+    public interface Task {
+        /** Starts the read
+         *
+         * @param done  Must be run once when the read finished
+         * @return      False if the read could not be started
+         */
+        boolean start(Runnable done);
+    }
+
+    private static class Entry {
+        final Task task;
+        final int priority;
+        final int limit;
+        final int slots;
+        final long sequence;
+
+        Entry(Task pTask, int pPriority, int pLimit, int pSlots, long pSequence) {
+            task = pTask;
+            priority = pPriority;
+            limit = pLimit;
+            slots = pSlots;
+            sequence = pSequence;
+        }
+    }
+
+    private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>(16, new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            if (a.priority != b.priority) {
+                return a.priority > b.priority ? -1 : 1;
+            }
+            return a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1);
+        }
+    });
+
+    private int inFlight = 0;
+    private long sequence = 0;
+
+    /** Queues a read and starts it if there is room
+     *
+     * @param task          The read
+     * @param priority      Higher priorities start first
+     * @param limit         Maximum number of running reads, including this one
+     */
+    public void submit(Task task, int priority, int limit) {
+        submit(task, priority, limit, 1);
+    }
+
+    /** Queues a task that runs several reads at the same time
+     *
+     * @param task          The reads, must not run more of them at once than the reserved slots
+     * @param priority      Higher priorities start first
+     * @param limit         Maximum number of running reads, including these
+     * @param slots         Number of reads the task runs at once, reserved up to the limit
+     */
+    public void submit(Task task, int priority, int limit, int slots) {
+        limit = Math.max(1, limit);
+        synchronized (this) {
+            queue.add(new Entry(task, priority, limit, slots(limit, slots), sequence++));
+        }
+        startNext();
+    }
+
+    /** Returns the number of slots a task may use
+     *
+     * @param limit     Maximum number of running reads
+     * @param reads     Number of reads the task wants to run at once
+     * @return          The slots reserved for the task
+     */
+    public static int slots(int limit, int reads) {
+        return Math.max(1, Math.min(reads, limit));
+    }
+
+    private void startNext() {
+        while (true) {
+            Entry next;
+            synchronized (this) {
+                next = queue.peek();
+                if (next == null || inFlight + next.slots > next.limit) {
+                    return;
+                }
+                queue.poll();
+                inFlight += next.slots;
+            }
+
+            Done done = new Done(next.slots);
+            if (!next.task.start(done)) {
+                Log.d(APP_TAG, "ReadScheduler - read could not be started");
+                done.run();
+            }
+        }
+    }
+
+    /** Frees the slots of a task once, even if it reports more than once
+     *
+     */
+    private class Done implements Runnable {
+        private final int slots;
+        private boolean finished = false;
+
+        Done(int pSlots) {
+            slots = pSlots;
+        }
+
+        @Override
+        public void run() {
+            synchronized (ReadScheduler.this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                inFlight -= slots;
+            }
+            startNext();
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.samsung.android.simplehealth;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.apache.cordova.*;
+
+import java.nio.charset.Charset;
+
+/** Sends the rows of one data type back to JavaScript.
+ *
+ * Without paging all rows are collected and sent as one JSON array. With paging
+ * the rows are sent as soon as a page is full, each page as
+ * <code>{"TYPE":..,"SEQ":n,"DATA":[..],"DONE":false}</code>. The last page of a
+ * data type has <code>"DONE":true</code>, so memory only grows with the page size.
+ *
+ * Rows are written directly into the page buffer by a {@link RowEncoder},
+ * the buffer is reused for every page. With {@link QueryOptions#compress} large
+ * pages are sent compressed by a {@link PayloadCompressor} instead.
+ */
+public class ResultEmitter implements ResultSink {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final CallbackContext callbackContext;
+    private final DataSchema schema;
+    private final String type;
+    private final QueryOptions options;
+
+    private RowEncoder encoder;
+    private final StringBuilder page = new StringBuilder(4096);
+    private int pageRowCount = 0;
+    private int sequence = 0;
+    private final PayloadCompressor compressor;
+    private final ExerciseRoute route;
+
+    /** Default Constructor.
+     *
+     * @param pCallbackContext  Object holding callback functions
+     * @param pSchema           Schema of the data type
+     * @param pOptions          Options of the query
+     */
+    public ResultEmitter(CallbackContext pCallbackContext, DataSchema pSchema, QueryOptions pOptions) {
+        this(pCallbackContext, pSchema, pSchema.type, pOptions);
+    }
+
+    /** Constructor for rows of several data types, written with {@link #addRow(RowEncoder, Cursor)}.
+     *
+     * @param pCallbackContext  Object holding callback functions
+     * @param pType             Written as TYPE into the pages
+     * @param pOptions          Options of the query
+     */
+    public ResultEmitter(CallbackContext pCallbackContext, String pType, QueryOptions pOptions) {
+        this(pCallbackContext, null, pType, pOptions);
+    }
+
+    private ResultEmitter(CallbackContext pCallbackContext, DataSchema pSchema, String pType, QueryOptions pOptions) {
+        this.callbackContext = pCallbackContext;
+        this.schema = pSchema;
+        this.type = pType;
+        this.options = pOptions;
+        this.compressor = pOptions.compress ? new PayloadCompressor(pOptions) : null;
+        this.route = pOptions.routes ? new ExerciseRoute(pOptions) : null;
+
+        startPage();
+    }
+
+    /** Creates the encoder of a cursor of the data type, for emitters of several types
+     *
+     * @param pSchema   Schema of the data type
+     * @param c         Cursor whose rows will be encoded
+     * @return          The encoder
+     */
+    public RowEncoder createEncoder(DataSchema pSchema, Cursor c) {
+        return new RowEncoder(pSchema, c, options.requestId, route);
+    }
+
+    @Override
+    public void open(Cursor c) {
+        encoder = createEncoder(schema, c);
+    }
+
+    /** Adds the current row and sends the current page if it is full
+     *
+     * @param c     The cursor, positioned on a row
+     */
+    @Override
+    public void addRow(Cursor c) {
+        addRow(encoder, c);
+    }
+
+    /** Adds the current row with the given encoder and sends the current page if it is full
+     *
+     * @param rowEncoder    Encoder of the cursor
+     * @param c             The cursor, positioned on a row
+     */
+    public void addRow(RowEncoder rowEncoder, Cursor c) {
+        if (pageRowCount > 0) {
+            page.append(',');
+        }
+
+        rowEncoder.encode(c, page);
+        pageRowCount++;
+
+        if ((options.pageRows > 0 && pageRowCount >= options.pageRows)
+                || (options.pageBytes > 0 && page.length() >= options.pageBytes)) {
+            sendPage(false);
+        }
+    }
+
+    @Override
+    public void finish() {
+        sendPage(true);
+    }
+
+    private void startPage() {
+        page.setLength(0);
+        pageRowCount = 0;
+
+        if (options.isPaged()) {
+            page.append("{\"TYPE\":");
+            JsonText.appendString(page, type);
+            if (options.requestId != null) {
+                page.append(",\"REQUEST_ID\":");
+                JsonText.appendString(page, options.requestId);
+            }
+            page.append(",\"SEQ\":").append(sequence).append(",\"DATA\":[");
+        } else {
+            page.append('[');
+        }
+    }
+
+    /** Sends the current page and starts a new one
+     *
+     * @param done  True if this is the last page of the data type
+     */
+    private void sendPage(boolean done) {
+        if (options.isPaged()) {
+            page.append("],\"DONE\":").append(done).append('}');
+            Log.d(APP_TAG, type + " page " + sequence + " - " + pageRowCount + " rows");
+        } else {
+            page.append(']');
+            Log.d(APP_TAG, type + " - " + pageRowCount + " rows");
+        }
+
+        send(page.toString());
+
+        sequence++;
+        startPage();
+    }
+
+    private void send(String message) {
+        byte[] compressed = compressor == null ? null
+                : compressor.compress(message.getBytes(UTF8), PayloadCompressor.CONTENT_JSON);
+
+        PluginResult pluginResult;
+        if (compressed != null) {
+            Log.d(APP_TAG, type + " compressed " + message.length() + " -> " + compressed.length + " bytes");
+            pluginResult = new PluginResult(PluginResult.Status.OK, compressed);
+        } else {
+            pluginResult = new PluginResult(PluginResult.Status.OK, message);
+        }
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+    }
+}
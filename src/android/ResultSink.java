@@ -0,0 +1,29 @@
+package com.samsung.android.simplehealth;
+
+import android.database.Cursor;
+
+/** Receives the rows of one data type and sends them to JavaScript.
+ *
+ * A read calls {@link #open(Cursor)} for every result cursor (one per page),
+ * {@link #addRow(Cursor)} for every row and {@link #finish()} once after the
+ * last page.
+ */
+public interface ResultSink {
+
+    /** Called before the rows of a new result cursor are added
+     *
+     * @param c     The cursor
+     */
+    void open(Cursor c);
+
+    /** Adds the current row of the cursor
+     *
+     * @param c     The cursor, positioned on a row
+     */
+    void addRow(Cursor c);
+
+    /** Sends the remaining rows, must be called once after the last row
+     *
+     */
+    void finish();
+}
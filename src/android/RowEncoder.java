@@ -0,0 +1,122 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+
+import android.database.Cursor;
+import android.util.Base64;
+
+import java.util.List;
+
+/** Converts the rows of a result cursor to JSON using a {@link DataSchema}.
+ *
+ * The column indices and the key prefixes are resolved once when the encoder
+ * is created, and the cursor values are written straight into the output
+ * buffer, so the row loop neither looks up column names nor allocates JSON
+ * objects. Columns that are not part of the cursor (not requested) are skipped.
+ * With an {@link ExerciseRoute} the LOCATION_DATA blob is written as decoded
+ * "ROUTE" instead of base64.
+ */
+public class RowEncoder {
+
+    private final String rowPrefix;
+    private final DataSchema.Column[] columns;
+    private final String[] prefixes;
+    private final int[] indices;
+    private final ExerciseRoute route;
+
+    /** Default Constructor.
+     *
+     * @param pSchema       Schema of the data type
+     * @param c             Cursor whose rows will be encoded
+     * @param requestId     Written as REQUEST_ID into every row, may be null
+     */
+    public RowEncoder(DataSchema pSchema, Cursor c, String requestId) {
+        this(pSchema, c, requestId, null);
+    }
+
+    /** Constructor decoding exercise routes.
+     *
+     * @param pSchema       Schema of the data type
+     * @param c             Cursor whose rows will be encoded
+     * @param requestId     Written as REQUEST_ID into every row, may be null
+     * @param pRoute        Decodes LOCATION_DATA, null writes the blob as base64
+     */
+    public RowEncoder(DataSchema pSchema, Cursor c, String requestId, ExerciseRoute pRoute) {
+        route = pRoute;
+
+        StringBuilder prefix = new StringBuilder("{\"TYPE\":");
+        JsonText.appendString(prefix, pSchema.type);
+        if (requestId != null) {
+            prefix.append(",\"REQUEST_ID\":");
+            JsonText.appendString(prefix, requestId);
+        }
+        rowPrefix = prefix.toString();
+
+        List<DataSchema.Column> all = pSchema.getColumns();
+        int count = 0;
+        int[] found = new int[all.size()];
+        for (int i = 0; i < all.size(); i++) {
+            found[i] = c.getColumnIndex(all.get(i).name);
+            if (found[i] >= 0) {
+                count++;
+            }
+        }
+
+        columns = new DataSchema.Column[count];
+        prefixes = new String[count];
+        indices = new int[count];
+        for (int i = 0, j = 0; i < all.size(); i++) {
+            if (found[i] >= 0) {
+                columns[j] = all.get(i);
+                prefixes[j] = JsonText.keyPrefix(route != null && all.get(i).name.equals(HealthConstants.Exercise.LOCATION_DATA)
+                        ? "ROUTE" : all.get(i).key);
+                indices[j] = found[i];
+                j++;
+            }
+        }
+    }
+
+    /** Writes the current row of the cursor as JSON object
+     *
+     * @param c     The cursor, positioned on a row
+     * @param out   Buffer the row is appended to
+     */
+    public void encode(Cursor c, StringBuilder out) {
+        out.append(rowPrefix);
+
+        for (int i = 0; i < columns.length; i++) {
+            int index = indices[i];
+
+            switch (columns[i].kind) {
+                case LONG:
+                    out.append(prefixes[i]).append(c.getLong(index));
+                    break;
+                case INT:
+                    out.append(prefixes[i]).append(c.getInt(index));
+                    break;
+                case FLOAT:
+                    out.append(prefixes[i]);
+                    JsonText.appendFloat(out, c.getFloat(index));
+                    break;
+                case STRING:
+                    if (!c.isNull(index)) {
+                        out.append(prefixes[i]);
+                        JsonText.appendString(out, c.getString(index));
+                    }
+                    break;
+                case BLOB:
+                    if (route != null && columns[i].name.equals(HealthConstants.Exercise.LOCATION_DATA)) {
+                        out.append(prefixes[i]);
+                        route.append(c.isNull(index) ? null : c.getBlob(index), out);
+                    } else if (!c.isNull(index)) {
+                        out.append(prefixes[i]).append('"')
+                                .append(Base64.encodeToString(c.getBlob(index), Base64.NO_WRAP))
+                                .append('"');
+                    }
+                    break;
+            }
+        }
+
+        out.append('}');
+    }
+}
@@ -10,6 +10,16 @@ import android.util.Log;
 
 import com.samsung.android.sdk.healthdata.HealthConstants;
 
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.samsung.android.simplehealth.AggregateQuery;
+import com.samsung.android.simplehealth.BackgroundSync;
+import com.samsung.android.simplehealth.BatchFileSink;
+import com.samsung.android.simplehealth.MetricsQuery;
+import com.samsung.android.simplehealth.QueryOptions;
+
 public class SHealth extends CordovaPlugin {
 
     String APP_TAG = "CordovaSHealthPlugin";
@@ -17,7 +27,39 @@ public class SHealth extends CordovaPlugin {
     Activity activity = null;
     SHealthConnector connector = null;
 
+    /** Starts connecting to S Health while the app starts, so the first query does not wait for it
+     *
+     */
+    @Override
+    protected void pluginInitialize() {
+        ConnectionManager.getInstance(cordova.getActivity()).connect();
+    }
+
+    /** Reconnects after the app returns, e.g. when S Health was updated in between
+     *
+     * @param multitasking  Flag indicating if multitasking is turned on for app
+     */
+    @Override
+    public void onResume(boolean multitasking) {
+        ConnectionManager.getInstance(cordova.getActivity()).connect();
+    }
+
+    /** Stops listening to S Health when the app is closed
+     *
+     */
+    @Override
+    public void onDestroy() {
+        if (connector != null) {
+            connector.destroy();
+            connector = null;
+        }
+    }
+
     /** The function detects the called function
+     *
+     * Everything except greet runs on the cordova thread pool, results arrive on the
+     * {@link com.samsung.android.simplehealth.HealthThread}, so neither the WebView nor
+     * the UI thread waits for S Health.
      *
      * @param action          The action to execute.
      * @param data            Function parameter as JSON array.
@@ -35,7 +77,7 @@ public class SHealth extends CordovaPlugin {
 
         if( connector == null) {
             Log.d(APP_TAG, "connector == null");
-            connector = new SHealthConnector(activity, callbackContext);
+            connector = new SHealthConnector(activity, callbackContext, cordova.getThreadPool());
         }
 
         if (action.equals("greet")) {
@@ -54,14 +96,35 @@ public class SHealth extends CordovaPlugin {
         } else if (action.equals("connectToSHealth")) {
             Log.d(APP_TAG, "connectToSHealth");
 
-            connector.connect();
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.connect(caller);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("getConnectionState")) {
+            Log.d(APP_TAG, "getConnectionState");
+
+            connector.getConnectionState(callbackContext);
 
             return true;
 
         } else if (action.equals("callHealthPermissionManager")) {
             Log.d(APP_TAG, "callHealthPermissionManager");
 
-            connector.callHealthPermissionManager();
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.callHealthPermissionManager(caller);
+                }
+            });
 
             return true;
 
@@ -71,7 +134,331 @@ public class SHealth extends CordovaPlugin {
             JSONArray params = data.getJSONArray(0);
             Log.d(APP_TAG, "StartTime: " + params.getLong(0) + " - EndTime: " + params.getLong(1));
 
-            connector.startReporter(params.getLong(0), params.getLong(1));
+            final long startTime = params.getLong(0);
+            final long endTime = params.getLong(1);
+            final QueryOptions options = readOptions(params.optJSONObject(2), callbackContext);
+            if (options == null) {
+                return true;
+            }
+            if (options.requestId == null) {
+                options.requestId = callbackContext.getCallbackId();
+            }
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.startReporter(startTime, endTime, options, caller);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("getAggregatedData")) {
+            Log.d(APP_TAG, "getAggregatedData");
+
+            JSONArray params = data.getJSONArray(0);
+
+            final AggregateQuery query;
+            try {
+                query = AggregateQuery.fromJson(params.optJSONObject(2));
+            } catch (IllegalArgumentException e) {
+                Log.e(APP_TAG, "getAggregatedData - " + e.getMessage());
+
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Invalid aggregation\"}");
+                pluginResult.setKeepCallback(true);
+                callbackContext.sendPluginResult(pluginResult);
+                return true;
+            }
+
+            if (query.requestId == null) {
+                query.requestId = callbackContext.getCallbackId();
+            }
+
+            final long startTime = params.getLong(0);
+            final long endTime = params.getLong(1);
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.startAggregation(startTime, endTime, query, caller);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("getSleepSessions")) {
+            Log.d(APP_TAG, "getSleepSessions");
+
+            JSONArray params = data.getJSONArray(0);
+
+            final long startTime = params.getLong(0);
+            final long endTime = params.getLong(1);
+            final QueryOptions options = readOptions(params.optJSONObject(2), callbackContext);
+            if (options == null) {
+                return true;
+            }
+            if (options.requestId == null) {
+                options.requestId = callbackContext.getCallbackId();
+            }
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.getSleepSessions(startTime, endTime, options, caller);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("computeMetrics")) {
+            Log.d(APP_TAG, "computeMetrics");
+
+            JSONArray params = data.getJSONArray(0);
+
+            final MetricsQuery query;
+            try {
+                query = MetricsQuery.fromJson(params.optJSONObject(2));
+            } catch (IllegalArgumentException e) {
+                Log.e(APP_TAG, "computeMetrics - " + e.getMessage());
+
+                PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Invalid metrics\"}");
+                pluginResult.setKeepCallback(true);
+                callbackContext.sendPluginResult(pluginResult);
+                return true;
+            }
+
+            if (query.requestId == null) {
+                query.requestId = callbackContext.getCallbackId();
+            }
+
+            final long startTime = params.getLong(0);
+            final long endTime = params.getLong(1);
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.computeMetrics(startTime, endTime, query, caller);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("resetSync")) {
+            Log.d(APP_TAG, "resetSync");
+
+            // Optional array of data type names, all types are reset without it
+            final Set<String> types = toTypeSet(data.optJSONArray(0));
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.resetSync(types, caller);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("cancel")) {
+            Log.d(APP_TAG, "cancel");
+
+            final String requestId = data.getString(0);
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    PluginResult pluginResult;
+                    if (connector.cancel(requestId)) {
+                        pluginResult = new PluginResult(PluginResult.Status.OK, "{\"TYPE\":\"MESSAGE\",\"MESSAGE\":\"Request cancelled\"}");
+                    } else {
+                        pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Unknown request\"}");
+                    }
+                    pluginResult.setKeepCallback(true);
+                    caller.sendPluginResult(pluginResult);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("subscribe")) {
+            Log.d(APP_TAG, "subscribe");
+
+            // Optional options object, the rows of all types are pushed without it
+            final QueryOptions options = readOptions(data.optJSONObject(0), callbackContext);
+            if (options == null) {
+                return true;
+            }
+            if (options.requestId == null) {
+                options.requestId = callbackContext.getCallbackId();
+            }
+            final CallbackContext subscriber = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.subscribe(options, subscriber);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("syncMirror")) {
+            Log.d(APP_TAG, "syncMirror");
+
+            // Optional options object, all types are synced without it
+            JSONObject json = data.optJSONObject(0);
+            final QueryOptions options = readOptions(json, callbackContext);
+            if (options == null) {
+                return true;
+            }
+            final boolean reset = json != null && json.optBoolean("reset", false);
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.syncMirror(options, reset, caller);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("unsubscribe")) {
+            Log.d(APP_TAG, "unsubscribe");
+
+            // Optional array of data type names, all types are unsubscribed without it
+            final Set<String> types = toTypeSet(data.optJSONArray(0));
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connector.unsubscribe(types);
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, "{\"TYPE\":\"MESSAGE\",\"MESSAGE\":\"Unsubscribed\"}");
+                    pluginResult.setKeepCallback(true);
+                    caller.sendPluginResult(pluginResult);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("scheduleBackgroundSync")) {
+            Log.d(APP_TAG, "scheduleBackgroundSync");
+
+            // Optional config object, all types are synced every 6 hours while charging without it
+            final BackgroundSync.Config config = BackgroundSync.Config.fromJson(data.optJSONObject(0));
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean scheduled = SyncJobService.schedule(activity, config);
+                    new BackgroundSync(activity).setConfig(config, scheduled);
+
+                    PluginResult pluginResult;
+                    if (scheduled) {
+                        pluginResult = new PluginResult(PluginResult.Status.OK, "{\"TYPE\":\"MESSAGE\",\"MESSAGE\":\"Background sync scheduled\"}");
+                    } else {
+                        pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Background sync could not be scheduled\"}");
+                    }
+                    pluginResult.setKeepCallback(true);
+                    caller.sendPluginResult(pluginResult);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("cancelBackgroundSync")) {
+            Log.d(APP_TAG, "cancelBackgroundSync");
+
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    SyncJobService.cancel(activity);
+                    new BackgroundSync(activity).setUnscheduled();
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, "{\"TYPE\":\"MESSAGE\",\"MESSAGE\":\"Background sync cancelled\"}");
+                    pluginResult.setKeepCallback(true);
+                    caller.sendPluginResult(pluginResult);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("getSyncManifest")) {
+            Log.d(APP_TAG, "getSyncManifest");
+
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, new BackgroundSync(activity).getManifest());
+                    pluginResult.setKeepCallback(true);
+                    caller.sendPluginResult(pluginResult);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("readSyncFile")) {
+            Log.d(APP_TAG, "readSyncFile");
+
+            final String name = data.getString(0);
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    PluginResult pluginResult;
+                    try {
+                        byte[] content = new BackgroundSync(activity).readFile(name);
+                        if (content == null) {
+                            pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Unknown file\"}");
+                        } else if (name.endsWith(BatchFileSink.COMPRESSED)) {
+                            pluginResult = new PluginResult(PluginResult.Status.OK, content);
+                        } else {
+                            pluginResult = new PluginResult(PluginResult.Status.OK, new String(content, "UTF-8"));
+                        }
+                    } catch (IOException e) {
+                        Log.e(APP_TAG, "readSyncFile - " + e.getMessage());
+                        pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Reading the file failed\"}");
+                    }
+                    pluginResult.setKeepCallback(true);
+                    caller.sendPluginResult(pluginResult);
+                }
+            });
+
+            return true;
+
+        } else if (action.equals("deleteSyncFiles")) {
+            Log.d(APP_TAG, "deleteSyncFiles");
+
+            JSONArray params = data.getJSONArray(0);
+            final Set<String> names = new HashSet<String>();
+            for (int i = 0; i < params.length(); i++) {
+                names.add(params.getString(i));
+            }
+            final CallbackContext caller = callbackContext;
+
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    int deleted = new BackgroundSync(activity).deleteFiles(names);
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, "{\"TYPE\":\"SYNC_DELETED\",\"DELETED\":" + deleted + "}");
+                    pluginResult.setKeepCallback(true);
+                    caller.sendPluginResult(pluginResult);
+                }
+            });
 
             return true;
 
@@ -81,4 +468,43 @@ public class SHealth extends CordovaPlugin {
 
         }
     }
+
+    /** Reads the query options, invalid combinations are answered with an error
+     *
+     * @param json              Options object, may be null
+     * @param callbackContext   Callback of the request
+     * @return                  The options, or null if they are invalid
+     */
+    private QueryOptions readOptions(JSONObject json, CallbackContext callbackContext) {
+        try {
+            return QueryOptions.fromJson(json);
+        } catch (IllegalArgumentException e) {
+            Log.e(APP_TAG, "Invalid options - " + e.getMessage());
+
+            // The messages of QueryOptions contain no quotes
+            PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR,
+                    "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Invalid options: " + e.getMessage() + "\"}");
+            pluginResult.setKeepCallback(true);
+            callbackContext.sendPluginResult(pluginResult);
+            return null;
+        }
+    }
+
+    /** Reads an optional array of data type names
+     *
+     * @param params    The array, may be null
+     * @return          The names, or null for all types
+     * @throws JSONException
+     */
+    private static Set<String> toTypeSet(JSONArray params) throws JSONException {
+        if (params == null) {
+            return null;
+        }
+
+        Set<String> types = new HashSet<String>();
+        for (int i = 0; i < params.length(); i++) {
+            types.add(params.getString(i));
+        }
+        return types;
+    }
 }
\ No newline at end of file
@@ -2,7 +2,6 @@ package com.wopo.plugin;
 
 import com.samsung.android.sdk.healthdata.HealthConnectionErrorResult;
 import com.samsung.android.sdk.healthdata.HealthConstants;
-import com.samsung.android.sdk.healthdata.HealthDataService;
 import com.samsung.android.sdk.healthdata.HealthDataStore;
 import com.samsung.android.sdk.healthdata.HealthPermissionManager;
 import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionKey;
@@ -10,7 +9,11 @@ import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionResu
 import com.samsung.android.sdk.healthdata.HealthPermissionManager.PermissionType;
 import com.samsung.android.sdk.healthdata.HealthResultHolder;
 
+import com.samsung.android.simplehealth.AggregateQuery;
 import com.samsung.android.simplehealth.DataReporter;
+import com.samsung.android.simplehealth.MetricsQuery;
+import com.samsung.android.simplehealth.PermissionSnapshot;
+import com.samsung.android.simplehealth.QueryOptions;
 
 import android.util.Log;
 
@@ -21,14 +24,20 @@ import org.json.JSONException;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import android.app.Activity;
 
 public class SHealthConnector {
 
-    private HealthDataStore mStore;
+    private final ConnectionManager mConnection;
     private Set<PermissionKey> mKeySet;
-    private DataReporter mReporter;
+    private volatile DataReporter mReporter;
+    private final Executor mExecutor;
+    private volatile CallbackContext mConnectCallback = null;
+    private volatile boolean mCheckPermissions = false;
+    private final PermissionSnapshot mPermissions = new PermissionSnapshot();
+    private HealthPermissionManager mPermissionManager = null;
 
     String APP_TAG = "CordovaSHealthPlugin";
 
@@ -39,10 +48,12 @@ public class SHealthConnector {
      *
      * @param pActivity         Activity of the cordova application
      * @param pCallbackContext  Object holding callback functions
+     * @param pExecutor         Runs work that must not block the main thread
      */
-    public SHealthConnector(Activity pActivity, CallbackContext pCallbackContext){
+    public SHealthConnector(Activity pActivity, CallbackContext pCallbackContext, Executor pExecutor){
         this.activity = pActivity;
         this.callbackContext = pCallbackContext;
+        this.mExecutor = pExecutor;
 
         mKeySet = new HashSet<PermissionKey>();
         mKeySet.add(new PermissionKey(HealthConstants.StepCount.HEALTH_DATA_TYPE, PermissionType.READ));
@@ -60,46 +71,55 @@ public class SHealthConnector {
         mKeySet.add(new PermissionKey(HealthConstants.HbA1c.HEALTH_DATA_TYPE, PermissionType.READ));
         mKeySet.add(new PermissionKey(HealthConstants.AmbientTemperature.HEALTH_DATA_TYPE, PermissionType.READ));
         mKeySet.add(new PermissionKey(HealthConstants.UvExposure.HEALTH_DATA_TYPE, PermissionType.READ));
+
+        mConnection = ConnectionManager.getInstance(pActivity);
+        mConnection.addListener(mStateListener);
+        if (mConnection.getState() == ConnectionManager.State.CONNECTED) {
+            onConnected();
+        }
     }
 
     /** Connects the plugin to S Health
      *
+     * The store is shared by the whole app and may already be connected. State changes
+     * are sent to the callback as <code>{"TYPE":"CONNECTION","STATE":"CONNECTED"}</code>,
+     * missing permissions are requested once the store is connected.
+     *
+     * @param pCallbackContext  Callback of the connect call
      */
-    public void connect() {
+    public void connect(CallbackContext pCallbackContext) {
+        mConnectCallback = pCallbackContext;
+        mCheckPermissions = true;
 
-        HealthDataService healthDataService = new HealthDataService();
-        try {
-            healthDataService.initialize(activity.getApplicationContext());
-        } catch (Exception e) {
-            Log.e(APP_TAG, "healthDataService.initialize - " + e.toString());
-            e.printStackTrace();
-
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Could not successfully connect with SHealth\"}");
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+        if (mConnection.getState() == ConnectionManager.State.CONNECTED) {
+            sendState(pCallbackContext, ConnectionManager.State.CONNECTED, null);
+            checkPermissions(true);
+        } else {
+            mConnection.connect();
         }
+    }
 
-        // Create a HealthDataStore instance and set its listener
-        mStore = new HealthDataStore(activity.getApplicationContext(), mConnectionListener);
-        // Request the connection to the health data store
-        mStore.connectService();
+    /** Sends the current connection state
+     *
+     * @param pCallbackContext  Callback of the request
+     */
+    public void getConnectionState(CallbackContext pCallbackContext) {
+        sendState(pCallbackContext, mConnection.getState(), mConnection.getError());
     }
 
     /** Opens the permission manager for S Health
      *
+     * @param pCallbackContext  Callback of the request, receives the error if the UI cannot be shown
      */
-    public void callHealthPermissionManager() {
-        HealthPermissionManager pmsManager = new HealthPermissionManager(mStore);
+    public void callHealthPermissionManager(CallbackContext pCallbackContext) {
         try {
             // Show user permission UI for allowing user to change options
-            pmsManager.requestPermissions(mKeySet, activity);
+            getPermissionManager().requestPermissions(mKeySet, activity).setResultListener(mPermissionListener);
         } catch (Exception e) {
             Log.e(APP_TAG, e.getClass().getName() + " - " + e.getMessage());
             Log.e(APP_TAG, "Permission setting fails.");
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Not successfully connected with SHealth\"}");
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
+            sendNotConnected(pCallbackContext);
         }
     }
 
@@ -107,55 +127,297 @@ public class SHealthConnector {
      *
      * @param startTime     Earliest time of measurement
      * @param endTime      Latest time of measurement
+     * @param options      Paging options for the results
+     * @param pCallbackContext  Callback of the request
      */
-    public void startReporter(long startTime, long endTime) {
-        if(mReporter != null){
-            mReporter.start(startTime,endTime);
-        } else {
-            Log.e(APP_TAG, "mReporter == null");
+    public void startReporter(final long startTime, final long endTime, final QueryOptions options, final CallbackContext pCallbackContext) {
+        mConnection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected()){
+                    mReporter.start(startTime,endTime,options,pCallbackContext);
+                } else {
+                    sendNotConnected(pCallbackContext);
+                }
+            }
+        });
+    }
 
-            PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Not successfully connected with SHealth\"}");
-            pluginResult.setKeepCallback(true);
-            callbackContext.sendPluginResult(pluginResult);
-        }
+    /** Starts an aggregation query for S Health
+     *
+     * @param startTime     Earliest time of measurement
+     * @param endTime      Latest time of measurement
+     * @param query        What to aggregate
+     * @param pCallbackContext  Callback of the request
+     */
+    public void startAggregation(final long startTime, final long endTime, final AggregateQuery query, final CallbackContext pCallbackContext) {
+        mConnection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected()){
+                    mReporter.aggregate(startTime,endTime,query,pCallbackContext);
+                } else {
+                    sendNotConnected(pCallbackContext);
+                }
+            }
+        });
     }
 
-    /** Callback object for {@link HealthDataStore}
+    /** Reads sleep sessions with their stages
      *
+     * @param startTime         Earliest time of measurement
+     * @param endTime           Latest time of measurement
+     * @param options           Id, timeout and maxConcurrentReads of the request
+     * @param pCallbackContext  Callback of the request
      */
-    private final HealthDataStore.ConnectionListener mConnectionListener = new HealthDataStore.ConnectionListener() {
+    public void getSleepSessions(final long startTime, final long endTime, final QueryOptions options, final CallbackContext pCallbackContext) {
+        mConnection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected()){
+                    mReporter.getSleepSessions(startTime, endTime, options, pCallbackContext);
+                } else {
+                    sendNotConnected(pCallbackContext);
+                }
+            }
+        });
+    }
 
-        @Override
-        public void onConnected() {
-            Log.d(APP_TAG, "Health data service is connected.");
-            HealthPermissionManager pmsManager = new HealthPermissionManager(mStore);
-            mReporter = new DataReporter(mStore, activity, callbackContext);
-
-            try {
-                // Check whether the permissions that this application needs are acquired
-                Map<PermissionKey, Boolean> resultMap = pmsManager.isPermissionAcquired(mKeySet);
-
-                if (resultMap.containsValue(Boolean.FALSE)) {
-                    // Request the permission for reading step counts if it is not acquired
-                    pmsManager.requestPermissions(mKeySet, activity);
+    /** Computes derived metrics from S Health data
+     *
+     * @param startTime         Earliest time of measurement
+     * @param endTime           Latest time of measurement
+     * @param query             The metrics to compute
+     * @param pCallbackContext  Callback of the request
+     */
+    public void computeMetrics(final long startTime, final long endTime, final MetricsQuery query, final CallbackContext pCallbackContext) {
+        mConnection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected()){
+                    mReporter.computeMetrics(startTime, endTime, query, pCallbackContext);
+                } else {
+                    sendNotConnected(pCallbackContext);
+                }
+            }
+        });
+    }
+
+    /** Stops a running query
+     *
+     * @param requestId    Id of the request
+     * @return             False if there is no running request with the id
+     */
+    public boolean cancel(String requestId) {
+        return mReporter != null && mReporter.cancel(requestId);
+    }
+
+    /** Forgets how far incremental reads got
+     *
+     * @param types             Names of the data types, or null for all types
+     * @param pCallbackContext  Callback of the request, answered once the positions are reset
+     */
+    public void resetSync(final Set<String> types, final CallbackContext pCallbackContext) {
+        mConnection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected()){
+                    mReporter.resetSync(types);
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, "{\"TYPE\":\"MESSAGE\",\"MESSAGE\":\"Sync state reset\"}");
+                    pluginResult.setKeepCallback(true);
+                    pCallbackContext.sendPluginResult(pluginResult);
+                } else {
+                    sendNotConnected(pCallbackContext);
+                }
+            }
+        });
+    }
+
+    /** Pushes new rows of S Health data types as they change
+     *
+     * @param options               Types, properties and format of the pushed rows
+     * @param pCallbackContext      Keep-alive callback receiving the rows
+     */
+    public void subscribe(final QueryOptions options, final CallbackContext pCallbackContext) {
+        mConnection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected()){
+                    mReporter.subscribe(options, pCallbackContext);
+
+                    PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, "{\"TYPE\":\"MESSAGE\",\"MESSAGE\":\"Subscribed\"}");
+                    pluginResult.setKeepCallback(true);
+                    pCallbackContext.sendPluginResult(pluginResult);
+                } else {
+                    sendNotConnected(pCallbackContext);
                 }
-            } catch (Exception e) {
-                Log.e(APP_TAG, e.getClass().getName() + " - " + e.getMessage());
-                Log.e(APP_TAG, "Permission setting fails.");
             }
+        });
+    }
+
+    /** Copies new and changed rows into the local mirror
+     *
+     * @param options               Types to sync
+     * @param reset                 Clear the mirror of the types first
+     * @param pCallbackContext      Callback receiving the progress
+     */
+    public void syncMirror(final QueryOptions options, final boolean reset, final CallbackContext pCallbackContext) {
+        mConnection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                if(isConnected()){
+                    mReporter.syncMirror(options, reset, pCallbackContext);
+                } else {
+                    sendNotConnected(pCallbackContext);
+                }
+            }
+        });
+    }
+
+    /** Stops pushing changes of S Health data types
+     *
+     * @param types        Names of the data types, or null for all types
+     */
+    public void unsubscribe(Set<String> types) {
+        if(mReporter != null){
+            mReporter.unsubscribe(types);
         }
+    }
+
+    /** Stops listening to the shared connection and pushing changes, when the plugin is destroyed
+     *
+     */
+    public void destroy() {
+        mConnection.removeListener(mStateListener);
+        unsubscribe(null);
+    }
+
+    /** Returns true if queued work can use the reporter
+     *
+     * Work queued with {@link ConnectionManager#whenConnected(Runnable)} also runs when the
+     * connection failed, it has to answer with an error then.
+     *
+     * @return  Whether the store is connected
+     */
+    private boolean isConnected() {
+        return mReporter != null && mConnection.getState() == ConnectionManager.State.CONNECTED;
+    }
+
+    /** Creates the reporter once the shared store is connected
+     *
+     */
+    private final ConnectionManager.Listener mStateListener = new ConnectionManager.Listener() {
 
         @Override
-        public void onConnectionFailed(HealthConnectionErrorResult error) {
-            Log.d(APP_TAG, "Health data service is not available.");
+        public void onStateChanged(ConnectionManager.State state, HealthConnectionErrorResult error) {
+            Log.d(APP_TAG, "Connection state " + state);
+
+            if (state == ConnectionManager.State.CONNECTED) {
+                onConnected();
+                checkPermissions(mCheckPermissions);
+            }
+
+            CallbackContext connectCallback = mConnectCallback;
+            if (connectCallback != null) {
+                sendState(connectCallback, state, error);
+            }
         }
+    };
 
+    /** Creates the reporter on the first connection, later connections restore its observers
+     *
+     */
+    private synchronized void onConnected() {
+        if (mReporter == null) {
+            mReporter = new DataReporter(mConnection.getStore(), activity, callbackContext, mPermissions);
+        } else {
+            mReporter.onReconnected();
+        }
+    }
+
+    /** Refreshes the permission snapshot and requests the permissions that are not acquired yet
+     *
+     * @param request   Show the permission UI if a permission is missing
+     */
+    private void checkPermissions(final boolean request) {
+        if (request) {
+            mCheckPermissions = false;
+        }
+
+        // The permission check talks to S Health, keep it off the main thread
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    HealthPermissionManager pmsManager = getPermissionManager();
+
+                    // Check whether the permissions that this application needs are acquired
+                    Map<PermissionKey, Boolean> resultMap = pmsManager.isPermissionAcquired(mKeySet);
+                    mPermissions.update(resultMap);
+
+                    if (request && resultMap.containsValue(Boolean.FALSE)) {
+                        // Request the permission for reading step counts if it is not acquired
+                        pmsManager.requestPermissions(mKeySet, activity).setResultListener(mPermissionListener);
+                    }
+                } catch (Exception e) {
+                    Log.e(APP_TAG, e.getClass().getName() + " - " + e.getMessage());
+                    Log.e(APP_TAG, "Permission setting fails.");
+                }
+            }
+        });
+    }
+
+    /** Updates the permission snapshot when the permission UI returns
+     *
+     */
+    private final HealthResultHolder.ResultListener<PermissionResult> mPermissionListener = new HealthResultHolder.ResultListener<PermissionResult>() {
         @Override
-        public void onDisconnected() {
-            Log.d(APP_TAG, "Health data service is disconnected.");
+        public void onResult(PermissionResult result) {
+            Log.d(APP_TAG, "Permission result received.");
+            mPermissions.update(result.getResultMap());
         }
     };
 
+    /** Returns the permission manager of the shared store
+     *
+     * @return  The permission manager
+     */
+    private synchronized HealthPermissionManager getPermissionManager() {
+        // Only a manager of an existing store is kept, the store may still be created later
+        HealthDataStore store = mConnection.getStore();
+        if (store == null) {
+            throw new IllegalStateException("No HealthDataStore");
+        }
+        if (mPermissionManager == null) {
+            mPermissionManager = new HealthPermissionManager(store);
+        }
+        return mPermissionManager;
+    }
+
+    private void sendState(CallbackContext target, ConnectionManager.State state, HealthConnectionErrorResult error) {
+        StringBuilder message = new StringBuilder("{\"TYPE\":\"CONNECTION\",\"STATE\":\"");
+        message.append(state.name()).append('"');
+        if (error != null) {
+            message.append(",\"ERROR_CODE\":").append(error.getErrorCode());
+            message.append(",\"HAS_RESOLUTION\":").append(error.hasResolution());
+        }
+        message.append('}');
+
+        PluginResult pluginResult = new PluginResult(state == ConnectionManager.State.FAILED
+                ? PluginResult.Status.ERROR : PluginResult.Status.OK, message.toString());
+        pluginResult.setKeepCallback(true);
+        target.sendPluginResult(pluginResult);
+    }
+
+    private void sendNotConnected(CallbackContext target) {
+        Log.e(APP_TAG, "Not connected - " + mConnection.getState());
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, "{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Not successfully connected with SHealth\"}");
+        pluginResult.setKeepCallback(true);
+        target.sendPluginResult(pluginResult);
+    }
+
     /**  Returns the name of the class
      *
      * @return Name of class
@@ -0,0 +1,364 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+import com.samsung.android.sdk.healthdata.HealthDataResolver;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.Filter;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.ReadRequest;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.ReadResult;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.SortOrder;
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+import com.samsung.android.sdk.healthdata.HealthResultHolder;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import org.apache.cordova.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** Reads sleep sessions together with their sleep stages.
+ *
+ * The Sleep rows that overlap the window are read first and put into a hash map
+ * by UUID. The SleepStage rows of the same period are then streamed once, sorted
+ * by start time, and appended to their session by SLEEP_ID, so every session ends
+ * up with an ordered stage timeline without comparing stages and sessions pairwise.
+ * The result is sent as
+ * <code>{"TYPE":"SleepSessions","DATA":[{"UUID":..,"START_TIME":..,"END_TIME":..,"TIME_OFFSET":..,
+ * "DURATION":..,"STAGES":[{"STAGE":40002,"START_TIME":..,"END_TIME":..},..],
+ * "STAGE_DURATIONS":{"40002":..}},..]}</code>, durations in milliseconds.
+ *
+ * A read that belongs to a {@link QueryRequest} stops when the request is cancelled
+ * and sends nothing.
+ */
+public class SleepSessions implements QueryRequest.Cancellable {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    /** A stage of a session
+     *
+     */
+    private static class Stage {
+        final int stage;
+        final long startTime;
+        final long endTime;
+
+        Stage(int pStage, long pStartTime, long pEndTime) {
+            stage = pStage;
+            startTime = pStartTime;
+            endTime = pEndTime;
+        }
+    }
+
+    /** A sleep session and its stages
+     *
+     */
+    private static class Session {
+        final String uuid;
+        final long startTime;
+        final long endTime;
+        final long timeOffset;
+        final List<Stage> stages = new ArrayList<Stage>();
+
+        Session(String pUuid, long pStartTime, long pEndTime, long pTimeOffset) {
+            uuid = pUuid;
+            startTime = pStartTime;
+            endTime = pEndTime;
+            timeOffset = pTimeOffset;
+        }
+    }
+
+    private final HealthDataStore mStore;
+    private final CallbackContext callbackContext;
+    private final String requestId;
+
+    private QueryRequest request = null;
+    private Runnable onFinished = null;
+    private HealthResultHolder<ReadResult> holder = null;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    /** Default Constructor.
+     *
+     * @param store             The connected {@link HealthDataStore}
+     * @param pCallbackContext  Object holding callback functions
+     * @param pRequestId        Written as REQUEST_ID into the result, may be null
+     */
+    public SleepSessions(HealthDataStore store, CallbackContext pCallbackContext, String pRequestId) {
+        mStore = store;
+        callbackContext = pCallbackContext;
+        requestId = pRequestId;
+    }
+
+    /** Sets the request the read belongs to
+     *
+     * @param pRequest      The request, may be null
+     * @return              This read
+     */
+    public SleepSessions setRequest(QueryRequest pRequest) {
+        request = pRequest;
+        return this;
+    }
+
+    /** Sets the callback run after the sessions or the error were sent, or the read was cancelled
+     *
+     * @param pOnFinished   The callback, may be null
+     * @return              This read
+     */
+    public SleepSessions setOnFinished(Runnable pOnFinished) {
+        onFinished = pOnFinished;
+        return this;
+    }
+
+    /** Reads the sessions that overlap the window
+     *
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     */
+    public void read(long startTime, long endTime) {
+        if (request != null && !request.add(this)) {
+            finish();
+            return;
+        }
+
+        ReadRequest readRequest = new ReadRequest.Builder()
+                .setDataType(HealthConstants.Sleep.HEALTH_DATA_TYPE)
+                .setProperties(new String[] {
+                        HealthConstants.Common.UUID,
+                        HealthConstants.Sleep.START_TIME,
+                        HealthConstants.Sleep.END_TIME,
+                        HealthConstants.Sleep.TIME_OFFSET
+                })
+                .setFilter(Filter.and(Filter.lessThanEquals(HealthConstants.Sleep.START_TIME, endTime),
+                        Filter.greaterThanEquals(HealthConstants.Sleep.END_TIME, startTime)))
+                .setSort(HealthConstants.Sleep.START_TIME, SortOrder.ASC)
+                .build();
+
+        request(readRequest, new HealthResultHolder.ResultListener<ReadResult>() {
+            @Override
+            public void onResult(ReadResult result) {
+                onSessions(result.getResultCursor());
+            }
+        });
+    }
+
+    /** Cancels the pending read, nothing is sent
+     *
+     */
+    @Override
+    public void cancel() {
+        HealthResultHolder<ReadResult> pending;
+        synchronized (this) {
+            pending = holder;
+        }
+
+        if (pending != null) {
+            pending.cancel();
+        }
+        finish();
+    }
+
+    private void request(ReadRequest readRequest, HealthResultHolder.ResultListener<ReadResult> listener) {
+        try {
+            HealthResultHolder<ReadResult> pending = new HealthDataResolver(mStore, HealthThread.getHandler()).read(readRequest);
+            synchronized (this) {
+                holder = pending;
+            }
+            pending.setResultListener(listener);
+        } catch (Exception e) {
+            sendError(e.getClass().getName() + " - " + e.getMessage());
+        }
+    }
+
+    private boolean isCancelled() {
+        return request != null && request.isCancelled();
+    }
+
+    private void onSessions(Cursor c) {
+        if (isCancelled()) {
+            if (c != null) {
+                c.close();
+            }
+            finish();
+            return;
+        }
+        if (c == null) {
+            sendError("no Sleep cursor");
+            return;
+        }
+
+        final Map<String, Session> sessions = new HashMap<String, Session>();
+        final List<Session> ordered = new ArrayList<Session>();
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+
+        try {
+            int uuidIndex = c.getColumnIndex(HealthConstants.Common.UUID);
+            int startIndex = c.getColumnIndex(HealthConstants.Sleep.START_TIME);
+            int endIndex = c.getColumnIndex(HealthConstants.Sleep.END_TIME);
+            int offsetIndex = c.getColumnIndex(HealthConstants.Sleep.TIME_OFFSET);
+
+            while (c.moveToNext()) {
+                Session session = new Session(c.getString(uuidIndex), c.getLong(startIndex),
+                        c.getLong(endIndex), c.getLong(offsetIndex));
+                sessions.put(session.uuid, session);
+                ordered.add(session);
+
+                first = Math.min(first, session.startTime);
+                last = Math.max(last, session.endTime);
+            }
+        } finally {
+            c.close();
+        }
+
+        if (ordered.isEmpty()) {
+            send(ordered);
+            return;
+        }
+
+        // Stages lie within their session, so the span of the sessions covers all of them
+        ReadRequest readRequest = new ReadRequest.Builder()
+                .setDataType(HealthConstants.SleepStage.HEALTH_DATA_TYPE)
+                .setProperties(new String[] {
+                        HealthConstants.SleepStage.SLEEP_ID,
+                        HealthConstants.SleepStage.STAGE,
+                        HealthConstants.SleepStage.START_TIME,
+                        HealthConstants.SleepStage.END_TIME
+                })
+                .setFilter(Filter.and(Filter.greaterThanEquals(HealthConstants.SleepStage.START_TIME, first),
+                        Filter.lessThanEquals(HealthConstants.SleepStage.START_TIME, last)))
+                .setSort(HealthConstants.SleepStage.START_TIME, SortOrder.ASC)
+                .build();
+
+        request(readRequest, new HealthResultHolder.ResultListener<ReadResult>() {
+            @Override
+            public void onResult(ReadResult result) {
+                Cursor stages = result.getResultCursor();
+                if (isCancelled()) {
+                    if (stages != null) {
+                        stages.close();
+                    }
+                    finish();
+                } else if (stages == null) {
+                    // Sessions without their stages would look like sessions without stages
+                    sendError("no SleepStage cursor");
+                } else {
+                    onStages(stages, sessions);
+                    send(ordered);
+                }
+            }
+        });
+    }
+
+    private void onStages(Cursor c, Map<String, Session> sessions) {
+        try {
+            int sleepIdIndex = c.getColumnIndex(HealthConstants.SleepStage.SLEEP_ID);
+            int stageIndex = c.getColumnIndex(HealthConstants.SleepStage.STAGE);
+            int startIndex = c.getColumnIndex(HealthConstants.SleepStage.START_TIME);
+            int endIndex = c.getColumnIndex(HealthConstants.SleepStage.END_TIME);
+
+            while (c.moveToNext()) {
+                Session session = sessions.get(c.getString(sleepIdIndex));
+                if (session != null) {
+                    session.stages.add(new Stage(c.getInt(stageIndex), c.getLong(startIndex), c.getLong(endIndex)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private void send(List<Session> sessions) {
+        StringBuilder out = new StringBuilder(1024);
+        out.append("{\"TYPE\":\"SleepSessions\"");
+        if (requestId != null) {
+            out.append(",\"REQUEST_ID\":");
+            JsonText.appendString(out, requestId);
+        }
+        out.append(",\"DATA\":[");
+
+        for (int i = 0; i < sessions.size(); i++) {
+            Session session = sessions.get(i);
+            if (i > 0) {
+                out.append(',');
+            }
+
+            out.append("{\"UUID\":");
+            JsonText.appendString(out, session.uuid);
+            out.append(",\"START_TIME\":").append(session.startTime)
+                    .append(",\"END_TIME\":").append(session.endTime)
+                    .append(",\"TIME_OFFSET\":").append(session.timeOffset)
+                    .append(",\"DURATION\":").append(session.endTime - session.startTime)
+                    .append(",\"STAGES\":[");
+
+            Map<Integer, Long> durations = new TreeMap<Integer, Long>();
+            for (int j = 0; j < session.stages.size(); j++) {
+                Stage stage = session.stages.get(j);
+                if (j > 0) {
+                    out.append(',');
+                }
+                out.append("{\"STAGE\":").append(stage.stage)
+                        .append(",\"START_TIME\":").append(stage.startTime)
+                        .append(",\"END_TIME\":").append(stage.endTime)
+                        .append('}');
+
+                Long duration = durations.get(stage.stage);
+                durations.put(stage.stage, (duration == null ? 0 : duration) + stage.endTime - stage.startTime);
+            }
+
+            out.append("],\"STAGE_DURATIONS\":{");
+            boolean firstStage = true;
+            for (Map.Entry<Integer, Long> entry : durations.entrySet()) {
+                if (!firstStage) {
+                    out.append(',');
+                }
+                firstStage = false;
+                out.append('"').append(entry.getKey()).append("\":").append(entry.getValue());
+            }
+            out.append("}}");
+        }
+        out.append("]}");
+
+        Log.d(APP_TAG, "SleepSessions - " + sessions.size() + " sessions");
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.OK, out.toString());
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+        finish();
+    }
+
+    private void sendError(String reason) {
+        Log.e(APP_TAG, "SleepSessions - " + reason);
+
+        StringBuilder out = new StringBuilder("{\"TYPE\":\"ERROR\",\"MESSAGE\":\"Reading sleep sessions failed\"");
+        if (requestId != null) {
+            out.append(",\"REQUEST_ID\":");
+            JsonText.appendString(out, requestId);
+        }
+        out.append('}');
+
+        PluginResult pluginResult = new PluginResult(PluginResult.Status.ERROR, out.toString());
+        pluginResult.setKeepCallback(true);
+        callbackContext.sendPluginResult(pluginResult);
+        finish();
+    }
+
+    /** Ends the read once, after the result, an error or the cancellation
+     *
+     */
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (request != null) {
+            request.remove(this);
+        }
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+}
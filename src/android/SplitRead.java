@@ -0,0 +1,383 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import android.database.Cursor;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Reads a long time window of one data type as several sub-range reads.
+ *
+ * The window is split into ranges of about {@link QueryOptions#splitRows} rows each,
+ * based on the number of rows per day seen in earlier reads of the type. Up to
+ * {@link QueryOptions#parallelReads} ranges are read at once, every range sorted by
+ * start time. The earliest unfinished range streams straight into the sink, later
+ * ranges are buffered until it is done, so the rows arrive in time order and the
+ * first rows do not wait for the whole window.
+ * A range that cannot be read stops the read without finishing the sink, see
+ * {@link #isComplete()}.
+ */
+public class SplitRead implements PagedRead.Listener {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final long DAY_MILLIS = 86400000L;
+    private static final int MAX_RANGES = 32;
+
+    // Only windows of up to a year teach the density, longer ones usually start before the first row
+    private static final long MAX_LEARN_MILLIS = 366 * DAY_MILLIS;
+
+    // Rows per day, starting with a guess and refined by every finished read
+    private static final Map<String, Double> DENSITY = new HashMap<String, Double>();
+    private static final double DEFAULT_DENSITY = 10;
+
+    static {
+        DENSITY.put("StepCount", 500.0);
+        DENSITY.put("HeartRate", 1440.0);
+        DENSITY.put("OxygenSaturation", 100.0);
+    }
+
+    /** A sub-range of the window
+     *
+     */
+    private class Range implements ResultSink {
+        final long from;
+        final long to;
+        PagedRead read = null;
+        boolean live = false;
+        boolean finished = false;
+        boolean complete = false;
+        int rows = 0;
+
+        // Rows read before the range became the earliest one, the current page is
+        // kept in the builder until it ends so the sink only sees whole cursors
+        final List<QueryCache.Bucket> buffered = new ArrayList<QueryCache.Bucket>();
+        QueryCache.BucketBuilder building = null;
+
+        Range(long pFrom, long pTo) {
+            from = pFrom;
+            to = pTo;
+        }
+
+        @Override
+        public void open(Cursor c) {
+            synchronized (SplitRead.this) {
+                if (live) {
+                    drain();
+                    sink.open(c);
+                } else {
+                    flush();
+                    building = QueryCache.BucketBuilder.forCursor(schema, c);
+                }
+            }
+        }
+
+        @Override
+        public void addRow(Cursor c) {
+            synchronized (SplitRead.this) {
+                rows++;
+                if (building != null) {
+                    building.add(c);
+                } else {
+                    sink.addRow(c);
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+            // The ranges share the sink, it is finished after the last one
+        }
+
+        void flush() {
+            if (building != null && building.getRowCount() > 0) {
+                buffered.add(building.build());
+            }
+            building = null;
+        }
+
+        void drain() {
+            flush();
+            replayBuffered();
+        }
+
+        void replayBuffered() {
+            for (QueryCache.Bucket bucket : buffered) {
+                replay(bucket);
+            }
+            buffered.clear();
+        }
+    }
+
+    private final HealthDataStore mStore;
+    private final DataSchema schema;
+    private final String[] hcString;
+    private final QueryOptions options;
+    private final ResultSink sink;
+
+    private final List<Range> ranges = new ArrayList<Range>();
+    private int head = 0;
+    private int launched = 0;
+    private int running = 0;
+    private boolean done = false;
+    private boolean failed = false;
+    private Runnable onFinished = null;
+    private QueryRequest request = null;
+
+    /** Default Constructor.
+     *
+     * @param store         The connected {@link HealthDataStore}
+     * @param pSchema       Schema of the data type
+     * @param pHcString     Array of requested attributes
+     * @param pOptions      Options of the query
+     * @param pSink         Receives the rows
+     */
+    public SplitRead(HealthDataStore store, DataSchema pSchema, String[] pHcString, QueryOptions pOptions, ResultSink pSink) {
+        mStore = store;
+        schema = pSchema;
+        hcString = pHcString;
+        options = pOptions;
+        sink = pSink;
+    }
+
+    /** Sets the callback run after the last range was sent
+     *
+     * @param pOnFinished   The callback, may be null
+     * @return              This read
+     */
+    public SplitRead setOnFinished(Runnable pOnFinished) {
+        onFinished = pOnFinished;
+        return this;
+    }
+
+    /** Sets the request the read belongs to, no further ranges start once it is cancelled
+     *
+     * @param pRequest      The request, may be null
+     * @return              This read
+     */
+    public SplitRead setRequest(QueryRequest pRequest) {
+        request = pRequest;
+        return this;
+    }
+
+    /** Returns false if a range could not be read or the read was cancelled
+     *
+     * @return  Whether all rows were sent
+     */
+    public synchronized boolean isComplete() {
+        return !failed && !isCancelled();
+    }
+
+    /** Plans the ranges and starts the first ones
+     *
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     */
+    public void start(long startTime, long endTime) {
+        long planEnd = Math.max(startTime, Math.min(endTime, System.currentTimeMillis()));
+        long span = planEnd - startTime + 1;
+
+        double estimate = getDensity(schema.type) * span / DAY_MILLIS;
+        int count = (int) Math.min(MAX_RANGES, Math.max(1, Math.ceil(estimate / options.splitRows)));
+        long width = Math.max(QueryCache.BUCKET_MILLIS, span / count);
+
+        long from = startTime;
+        while (from <= endTime) {
+            long to = from + width - 1;
+            if (to >= planEnd || ranges.size() == MAX_RANGES - 1 || to < from) {
+                to = endTime;
+            }
+            ranges.add(new Range(from, to));
+            if (to == endTime) {
+                break;
+            }
+            from = to + 1;
+        }
+
+        Log.d(APP_TAG, schema.type + " split read - " + ranges.size() + " ranges, about " + (long) estimate + " rows");
+
+        boolean stop;
+        synchronized (this) {
+            advance();
+            launch();
+            stop = failed;
+        }
+        if (stop) {
+            cancelRunning();
+        }
+        finishIfDone();
+    }
+
+    /** Starts ranges until the parallel limit is reached
+     *
+     */
+    private void launch() {
+        while (running < options.parallelReads && launched < ranges.size() && !failed && !isCancelled()) {
+            Range range = ranges.get(launched++);
+            range.live = launched - 1 == head;
+
+            range.read = new PagedRead(mStore, schema, hcString, range.from, range.to, options, range, null)
+                    .setOrdered(true)
+                    .setRequest(request)
+                    .setListener(this);
+
+            if (range.read.requestPage()) {
+                running++;
+            } else {
+                range.finished = true;
+                failed = !isCancelled();
+            }
+        }
+    }
+
+    /** Sends the buffered rows of the ranges that became the earliest one
+     *
+     */
+    private void advance() {
+        while (head < launched) {
+            Range range = ranges.get(head);
+
+            if (!range.live) {
+                range.replayBuffered();
+                range.live = true;
+            }
+
+            if (!range.finished) {
+                return;
+            }
+            range.drain();
+            head++;
+        }
+    }
+
+    private void replay(QueryCache.Bucket bucket) {
+        Cursor c = bucket.toCursor();
+        try {
+            sink.open(c);
+            while (c.moveToNext() && !isCancelled()) {
+                sink.addRow(c);
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    /** Stops the ranges that are still being read after a range failed
+     *
+     */
+    private void cancelRunning() {
+        List<PagedRead> reads = new ArrayList<PagedRead>();
+        synchronized (this) {
+            for (Range range : ranges) {
+                if (range.read != null && !range.finished) {
+                    reads.add(range.read);
+                }
+            }
+        }
+
+        for (PagedRead read : reads) {
+            read.cancel();
+        }
+    }
+
+    @Override
+    public void onReadFinished(PagedRead read) {
+        boolean stop;
+        synchronized (this) {
+            boolean wasFailed = failed;
+            for (Range range : ranges) {
+                if (range.read == read) {
+                    range.finished = true;
+                    range.complete = read.isComplete();
+                    // The rows of the range are missing, later ranges must not be sent
+                    failed |= !range.complete && !isCancelled();
+                    break;
+                }
+            }
+            running--;
+
+            if (!failed) {
+                advance();
+                launch();
+            }
+            stop = failed && !wasFailed;
+        }
+        if (stop) {
+            cancelRunning();
+        }
+        finishIfDone();
+    }
+
+    /** Finishes the sink once after the last range, the rows of a cancelled or failed read are dropped
+     *
+     */
+    private void finishIfDone() {
+        boolean cancelled = isCancelled();
+        boolean learn = !ranges.isEmpty();
+        boolean stopped;
+        int rows = 0;
+
+        synchronized (this) {
+            stopped = cancelled || failed;
+            if (done || running > 0 || (head < ranges.size() && !stopped)) {
+                return;
+            }
+            done = true;
+
+            for (Range range : ranges) {
+                learn &= range.complete;
+                rows += range.rows;
+            }
+        }
+
+        if (!stopped) {
+            if (learn) {
+                learn(schema.type, rows, ranges.get(0).from, ranges.get(ranges.size() - 1).to);
+            }
+            sink.finish();
+        }
+
+        if (onFinished != null) {
+            onFinished.run();
+        }
+    }
+
+    private boolean isCancelled() {
+        return request != null && request.isCancelled();
+    }
+
+    /** Returns the estimated rows per day of a data type
+     *
+     * @param type  Name of the data type
+     * @return      Rows per day
+     */
+    public static double getDensity(String type) {
+        synchronized (DENSITY) {
+            Double density = DENSITY.get(type);
+            return density == null ? DEFAULT_DENSITY : density;
+        }
+    }
+
+    /** Refines the estimated rows per day with a finished read of the whole window
+     *
+     * @param type          Name of the data type
+     * @param rows          Number of rows that were read
+     * @param startTime     Earliest time of measurement
+     * @param endTime       Latest time of measurement
+     */
+    public static void learn(String type, int rows, long startTime, long endTime) {
+        long span = Math.min(endTime, System.currentTimeMillis()) - startTime + 1;
+        if (span < DAY_MILLIS || span > MAX_LEARN_MILLIS) {
+            return;
+        }
+
+        double observed = (double) rows * DAY_MILLIS / span;
+        synchronized (DENSITY) {
+            DENSITY.put(type, (getDensity(type) + observed) / 2);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.wopo.plugin;
+
+import com.samsung.android.sdk.healthdata.HealthDataStore;
+
+import com.samsung.android.simplehealth.BackgroundSync;
+import com.samsung.android.simplehealth.HealthThread;
+
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.util.Log;
+
+/** Runs a {@link BackgroundSync} periodically, also while the app is closed.
+ *
+ * The job connects to S Health through the shared {@link ConnectionManager}, so it
+ * works without an activity or WebView. When the system stops the job (e.g. the
+ * device is no longer charging) the running read is cancelled, its rows are not
+ * written and the job is retried later.
+ */
+public class SyncJobService extends JobService {
+
+    String APP_TAG = "CordovaSHealthPlugin";
+
+    private static final int JOB_ID = 0x53485359;
+
+    private BackgroundSync mSync = null;
+    private boolean mStopped = false;
+
+    /** Schedules the periodic sync, replacing an earlier schedule
+     *
+     * @param context   Any context of the application
+     * @param config    When to sync
+     * @return          False if the job could not be scheduled
+     */
+    public static boolean schedule(Context context, BackgroundSync.Config config) {
+        JobInfo job = new JobInfo.Builder(JOB_ID, new ComponentName(context, SyncJobService.class))
+                .setPeriodic(config.interval)
+                .setRequiresCharging(config.requiresCharging)
+                .setRequiresDeviceIdle(config.requiresIdle)
+                .setPersisted(true)
+                .build();
+
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        return scheduler.schedule(job) == JobScheduler.RESULT_SUCCESS;
+    }
+
+    /** Stops the periodic sync
+     *
+     * @param context   Any context of the application
+     */
+    public static void cancel(Context context) {
+        JobScheduler scheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        scheduler.cancel(JOB_ID);
+    }
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        Log.d(APP_TAG, "SyncJobService started");
+
+        final ConnectionManager connection = ConnectionManager.getInstance(this);
+        connection.whenConnected(new Runnable() {
+            @Override
+            public void run() {
+                final HealthDataStore store = connection.getStore();
+                if (connection.getState() != ConnectionManager.State.CONNECTED || store == null) {
+                    // Needs the user (S Health missing, agreement, ...), the next period tries again
+                    Log.d(APP_TAG, "SyncJobService - not connected");
+                    jobFinished(params, false);
+                    return;
+                }
+
+                final BackgroundSync sync = new BackgroundSync(SyncJobService.this);
+                synchronized (SyncJobService.this) {
+                    if (mStopped) {
+                        return;
+                    }
+                    mSync = sync;
+                }
+
+                HealthThread.getHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        sync.run(store, new Runnable() {
+                            @Override
+                            public void run() {
+                                synchronized (SyncJobService.this) {
+                                    mSync = null;
+                                    if (mStopped) {
+                                        return;
+                                    }
+                                }
+                                Log.d(APP_TAG, "SyncJobService finished - complete: " + sync.isComplete());
+                                jobFinished(params, false);
+                            }
+                        });
+                    }
+                });
+            }
+        });
+
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        BackgroundSync sync;
+        synchronized (this) {
+            mStopped = true;
+            sync = mSync;
+        }
+
+        if (sync != null) {
+            sync.cancel();
+        }
+        return true;
+    }
+}
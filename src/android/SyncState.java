@@ -0,0 +1,94 @@
+package com.samsung.android.simplehealth;
+
+import com.samsung.android.sdk.healthdata.HealthConstants;
+import com.samsung.android.sdk.healthdata.HealthDataResolver.Filter;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/** Persists per data type how far incremental reads got.
+ *
+ * The high-water mark is the UPDATE_TIME and UUID of the last row that was
+ * delivered. Incremental reads sort by UPDATE_TIME and only ask for rows after
+ * the mark, so rows that were added or changed since the last sync are read
+ * again and nothing else. The marks are stored in app-private shared preferences.
+ */
+public class SyncState {
+
+    /** Position after the last delivered row of a data type
+     *
+     */
+    public static class Watermark {
+        public final long updateTime;
+        public final String uuid;
+
+        public Watermark(long pUpdateTime, String pUuid) {
+            updateTime = pUpdateTime;
+            uuid = pUuid == null ? "" : pUuid;
+        }
+
+        /** Returns a filter for all rows after this mark
+         *
+         * @return  The filter
+         */
+        public Filter toFilter() {
+            return Filter.or(Filter.greaterThan(HealthConstants.Common.UPDATE_TIME, updateTime),
+                    Filter.and(Filter.eq(HealthConstants.Common.UPDATE_TIME, updateTime),
+                            Filter.greaterThan(HealthConstants.Common.UUID, uuid)));
+        }
+    }
+
+    private final SharedPreferences preferences;
+
+    /** Default Constructor.
+     *
+     * @param context   Context of the application
+     * @param name      Name of the preference file, separate consumers use separate files
+     */
+    public SyncState(Context context, String name) {
+        preferences = context.getApplicationContext().getSharedPreferences(name, Context.MODE_PRIVATE);
+    }
+
+    /** Returns the mark of a data type
+     *
+     * @param type  Name of the data type
+     * @return      The mark or null if the type was never synced
+     */
+    public Watermark get(String type) {
+        long updateTime = preferences.getLong(type + ".updateTime", -1);
+        if (updateTime < 0) {
+            return null;
+        }
+        return new Watermark(updateTime, preferences.getString(type + ".uuid", ""));
+    }
+
+    /** Stores the mark of a data type
+     *
+     * @param type          Name of the data type
+     * @param watermark     The new mark
+     */
+    public void put(String type, Watermark watermark) {
+        preferences.edit()
+                .putLong(type + ".updateTime", watermark.updateTime)
+                .putString(type + ".uuid", watermark.uuid)
+                .apply();
+    }
+
+    /** Forgets the mark of a data type, the next incremental read reads the whole window
+     *
+     * @param type  Name of the data type
+     */
+    public void remove(String type) {
+        preferences.edit()
+                .remove(type + ".updateTime")
+                .remove(type + ".uuid")
+                .apply();
+    }
+
+    /** Forgets the marks of all data types
+     *
+     */
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+}
@@ -1,5 +1,114 @@
 /*global cordova, module*/
 
+/**
+ * Decodes a binary columnar page (see ColumnarEncoder.java) into typed arrays.
+ */
+function decodeColumnar(buffer) {
+    var view = new DataView(buffer);
+    var utf8 = new TextDecoder("utf-8");
+    var pos = 16;
+
+    function readString() {
+        var length = view.getUint16(pos, true);
+        var value = utf8.decode(new Uint8Array(buffer, pos + 2, length));
+        pos += 2 + length;
+        return value;
+    }
+
+    function align() {
+        pos = (pos + 7) & ~7;
+    }
+
+    var magic = String.fromCharCode(view.getUint8(0), view.getUint8(1), view.getUint8(2), view.getUint8(3));
+    if (magic !== "SHCB") {
+        throw new Error("Not a SHealth columnar page");
+    }
+
+    var columnCount = view.getUint16(6, true);
+    var rows = view.getUint32(12, true);
+    var version = view.getUint8(4);
+    var result = {
+        TYPE: readString(),
+        REQUEST_ID: version >= 2 ? readString() : null,
+        SEQ: view.getUint32(8, true),
+        DONE: (view.getUint8(5) & 1) === 1,
+        COUNT: rows,
+        COLUMNS: {}
+    };
+
+    var kinds = [];
+    var keys = [];
+    for (var i = 0; i < columnCount; i++) {
+        kinds.push(view.getUint8(pos));
+        pos += 1;
+        keys.push(readString());
+    }
+    align();
+
+    for (var j = 0; j < columnCount; j++) {
+        var kind = kinds[j];
+        var column;
+
+        if (kind === 1) {
+            column = new Float64Array(buffer, pos, rows);
+            pos += rows * 8;
+        } else if (kind === 2) {
+            column = new Int32Array(buffer, pos, rows);
+            pos += rows * 4;
+        } else if (kind === 3) {
+            column = new Float32Array(buffer, pos, rows);
+            pos += rows * 4;
+        } else {
+            var offsets = new Int32Array(buffer, pos, rows + 1);
+            pos += (rows + 1) * 4;
+            align();
+            var bytes = new Uint8Array(buffer, pos, offsets[rows]);
+            pos += offsets[rows];
+
+            column = new Array(rows);
+            for (var r = 0; r < rows; r++) {
+                var value = bytes.subarray(offsets[r], offsets[r + 1]);
+                column[r] = kind === 4 ? utf8.decode(value) : value;
+            }
+        }
+        align();
+
+        result.COLUMNS[keys[j]] = column;
+    }
+
+    return result;
+}
+
+/**
+ * Returns true if the buffer is a compressed page (see PayloadCompressor.java).
+ */
+function isCompressed(buffer) {
+    if (buffer.byteLength < 12) {
+        return false;
+    }
+    var view = new DataView(buffer);
+    return String.fromCharCode(view.getUint8(0), view.getUint8(1), view.getUint8(2), view.getUint8(3)) === "SHCZ";
+}
+
+/**
+ * Inflates a compressed page and decodes its content.
+ */
+function decodeCompressed(buffer) {
+    if (typeof DecompressionStream === "undefined") {
+        return Promise.reject(new Error("DecompressionStream is not supported, query without compress"));
+    }
+
+    var content = new DataView(buffer).getUint8(5);
+    var stream = new Blob([new Uint8Array(buffer, 12)]).stream().pipeThrough(new DecompressionStream("deflate"));
+
+    return new Response(stream).arrayBuffer().then(function (inflated) {
+        if (content === 2) {
+            return decodeColumnar(inflated);
+        }
+        return JSON.parse(new TextDecoder("utf-8").decode(inflated));
+    });
+}
+
 module.exports = {
 	greet: function (name, successCallback, errorCallback) {
         cordova.exec(successCallback, errorCallback, "SHealth", "greet", [name]);
@@ -7,10 +116,71 @@ module.exports = {
     connectToSHealth: function (name, successCallback, errorCallback) {
         cordova.exec(successCallback, errorCallback, "SHealth", "connectToSHealth", [name]);
     },
+    getConnectionState: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "getConnectionState", [name]);
+    },
     callHealthPermissionManager: function (name, successCallback, errorCallback) {
         cordova.exec(successCallback, errorCallback, "SHealth", "callHealthPermissionManager", [name]);
     },
     getDataFromSHealth: function (name, successCallback, errorCallback) {
         cordova.exec(successCallback, errorCallback, "SHealth", "getDataFromSHealth", [name]);
+    },
+    getAggregatedData: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "getAggregatedData", [name]);
+    },
+    getSleepSessions: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "getSleepSessions", [name]);
+    },
+    computeMetrics: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "computeMetrics", [name]);
+    },
+    scheduleBackgroundSync: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "scheduleBackgroundSync", [name]);
+    },
+    cancelBackgroundSync: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "cancelBackgroundSync", [name]);
+    },
+    getSyncManifest: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "getSyncManifest", [name]);
+    },
+    readSyncFile: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "readSyncFile", [name]);
+    },
+    deleteSyncFiles: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "deleteSyncFiles", [name]);
+    },
+    resetSync: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "resetSync", [name]);
+    },
+    cancel: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "cancel", [name]);
+    },
+    subscribe: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "subscribe", [name]);
+    },
+    syncMirror: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "syncMirror", [name]);
+    },
+    unsubscribe: function (name, successCallback, errorCallback) {
+        cordova.exec(successCallback, errorCallback, "SHealth", "unsubscribe", [name]);
+    },
+    decode: function (message) {
+        if (message instanceof ArrayBuffer) {
+            if (isCompressed(message)) {
+                throw new Error("Compressed page, use decodeAsync");
+            }
+            return decodeColumnar(message);
+        }
+        return JSON.parse(message);
+    },
+    decodeAsync: function (message) {
+        if (message instanceof ArrayBuffer && isCompressed(message)) {
+            return decodeCompressed(message);
+        }
+        try {
+            return Promise.resolve(module.exports.decode(message));
+        } catch (e) {
+            return Promise.reject(e);
+        }
     }
 };